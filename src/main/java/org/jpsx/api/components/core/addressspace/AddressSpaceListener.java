@@ -20,4 +20,10 @@ package org.jpsx.api.components.core.addressspace;
 
 public interface AddressSpaceListener {
     public void cacheCleared();
+
+    /**
+     * Called when the contents of RAM have been replaced wholesale (e.g. by loading a snapshot), from a thread other
+     * than the execution thread, with the CPU paused
+     */
+    public void ramRestored();
 }
@@ -119,5 +119,11 @@ public interface CompilationContext {
 
     public int getTempLocal(int index);
 
+    /**
+     * @return the number of instructions following the current one which are guaranteed to execute straight after it
+     *         (i.e. the rest of its basic block), or 0 if the current instruction is a delay slot
+     */
+    public int getFollowingInstructionCount();
+
     public InstructionHandle getBranchTarget(int address);
 }
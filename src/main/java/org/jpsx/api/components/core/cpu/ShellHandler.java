@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.core.cpu;
+
+/**
+ * Connection interface to be implemented by a component which wants to take over when the BIOS enters its shell
+ * (the CD player/memory card manager, which shows the boot logos before booting the CD).
+ * <p/>
+ * By the time the shell is entered the BIOS has initialized the kernel, so this is the natural point to skip the
+ * shell, or to start an executable directly without the BIOS booting the CD.
+ */
+public interface ShellHandler {
+    /**
+     * The address the BIOS copies the shell to and calls
+     */
+    int SHELL_ADDRESS = 0x80030000;
+
+    /**
+     * Called on the execution thread the first time the BIOS calls the shell; the interpreter registers are up to
+     * date, and may be modified
+     *
+     * @param returnAddress the address the shell would return to
+     * @return the address to continue execution at; {@link #SHELL_ADDRESS} to run the shell, <code>returnAddress</code>
+     *         to skip it, or any other address (e.g. the entry point of an executable the handler has loaded)
+     */
+    int shellEntered(int returnAddress);
+}
@@ -19,6 +19,8 @@
 package org.jpsx.api.components.hardware.cd;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public interface CDMedia extends Closeable {
 
@@ -51,6 +53,29 @@ public interface CDMedia extends Closeable {
 
     void readSector(int sectorNumber, byte[] buffer) throws MediaException;
 
+    /**
+     * Read consecutive sectors into buffers[offset] onwards
+     *
+     * @throws MediaException
+     */
+    default void readSectors(int sectorNumber, int count, byte[][] buffers, int offset) throws MediaException {
+        for (int i = 0; i < count; i++) {
+            readSector(sectorNumber + i, buffers[offset + i]);
+        }
+    }
+
+    /**
+     * Read a sector without copying it, where the media allows
+     *
+     * @return a read only little endian buffer whose position is the start of the sector and whose limit is its end
+     * @throws MediaException
+     */
+    default ByteBuffer getSector(int sectorNumber) throws MediaException {
+        byte[] buffer = new byte[SECTOR_SIZE_BYTES];
+        readSector(sectorNumber, buffer);
+        return ByteBuffer.wrap(buffer).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /**
      * @param num
      * @param buffer
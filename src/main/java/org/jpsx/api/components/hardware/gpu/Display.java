@@ -30,6 +30,15 @@ public interface Display {
     public void releaseDisplayBuffer();
 
     public void refresh();
+
+    /**
+     * refresh the display after a change to just the given area of video RAM, which lies within the currently
+     * displayed region; the display mode and origin are unchanged since the last refresh.
+     * Displays which can't update part of the screen just do a full refresh.
+     */
+    public default void refresh(int x, int y, int w, int h) {
+        refresh();
+    }
 }
 
 
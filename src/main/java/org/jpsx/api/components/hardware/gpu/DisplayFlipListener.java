@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.hardware.gpu;
+
+/**
+ * Connection interface for components which want to see each frame the emulated machine displays.
+ * <p/>
+ * Called on the R3000 thread whenever the display origin is set (GP1(05h)), which is where double buffered games
+ * flip to the frame they have just finished drawing; the display manager already reflects the new origin. Since it
+ * is called from the emulated program rather than a timer, the display buffer contents at each call don't depend on
+ * the speed of the host.
+ */
+public interface DisplayFlipListener {
+    void displayFlipped();
+}
@@ -60,6 +60,16 @@ public interface DisplayManager {
 
     void setOrigin(int x, int y);
 
+    /**
+     * While the display is held, changes to it don't cause it to be refreshed; only {@link #present} does
+     */
+    void setHeld(boolean held);
+
+    /**
+     * Refresh the whole display as it currently is
+     */
+    void present();
+
     void toggleInterlaceField();// mark a display area as changed... if it intersects the next
 
     // display region, then we will get an update at the next vsync, or
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.hardware.gpu;
+
+/**
+ * Connection interface for components which want to know about each vertical blank of the emulated display.
+ * <p/>
+ * Called from a scheduled action (so possibly not on the R3000 thread) once for each vsync in emulated time, even if
+ * the scheduler was late and several have passed at once.
+ */
+public interface VSyncListener {
+    void vsync();
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.hardware.spu;
+
+/**
+ * Destination for the SPU's mixed output, which is 16 bit signed little endian stereo.
+ */
+public interface AudioSink {
+    /**
+     * Prepare to receive audio
+     *
+     * @param sampleRate    the sample rate in Hz
+     * @param bufferSamples the amount of audio (in stereo samples) the sink should be able to queue
+     */
+    public void openAudio(int sampleRate, int bufferSamples);
+
+    /**
+     * Write audio, blocking if there is no room for it
+     */
+    public void writeAudio(byte[] data, int offset, int length);
+
+    /**
+     * @return the number of stereo samples which have been written but not yet played, or -1 if the sink has no
+     *         clock of its own and consumes audio as soon as it is written (e.g. to a file)
+     */
+    public int getQueuedSamples();
+
+    /**
+     * Stop playing, discarding any queued audio
+     */
+    public void closeAudio();
+}
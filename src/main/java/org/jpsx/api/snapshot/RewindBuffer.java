@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.snapshot;
+
+/**
+ * A record of recent machine state, which allows the machine to be stepped back in time
+ */
+public interface RewindBuffer {
+    /**
+     * @return how far back (in quartz nanoseconds) the machine can currently be rewound
+     */
+    long getAvailableTime();
+
+    /**
+     * Restore the most recent state which is at least the given time in the past (or the oldest state if there is
+     * none that old); states newer than the restored one are discarded. This is called from any thread other than
+     * the execution thread, and leaves the CPU running or paused as it was.
+     *
+     * @return how far back (in quartz nanoseconds) the machine was rewound, or 0 if there was nothing to rewind to
+     */
+    long rewind(long time);
+}
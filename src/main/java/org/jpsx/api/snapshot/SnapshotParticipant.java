@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.snapshot;
+
+/**
+ * Connection interface to be implemented by components with machine state which should be part of a snapshot
+ * (save state).
+ * <p/>
+ * All methods are called with the CPU paused at an instruction boundary, so the component need only guard against
+ * its own threads. Participants are called in the same order for saving and loading, so state is simply read back
+ * in the order it was written; each participant should start with {@link SnapshotWriter#beginSection} so that a
+ * mismatched snapshot is detected rather than misread.
+ */
+public interface SnapshotParticipant {
+    void saveState(SnapshotWriter out);
+
+    /**
+     * @throws SnapshotException if the snapshot is not compatible with this component
+     */
+    void loadState(SnapshotReader in);
+
+    /**
+     * Called once every participant has loaded its state, for any work which depends on the state of other
+     * participants (whose order shouldn't matter)
+     */
+    default void stateLoaded() {
+    }
+}
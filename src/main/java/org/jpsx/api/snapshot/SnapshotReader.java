@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.snapshot;
+
+/**
+ * Reads the values written by a {@link SnapshotWriter} in the same order
+ */
+public interface SnapshotReader {
+    /**
+     * @throws SnapshotException if the next section is not the named one
+     */
+    void beginSection(String name);
+
+    int readInt();
+
+    long readLong();
+
+    boolean readBoolean();
+
+    String readString();
+
+    /**
+     * @return the time written by {@link SnapshotWriter#writeTime}, adjusted to the current quartz time
+     */
+    long readTime();
+
+    void readInts(int[] values, int offset, int length);
+
+    void readShorts(short[] values, int offset, int length);
+
+    void readBytes(byte[] values, int offset, int length);
+}
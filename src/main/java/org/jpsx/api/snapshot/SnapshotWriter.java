@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.snapshot;
+
+public interface SnapshotWriter {
+    /**
+     * Mark the start of the state of a component (or part of one)
+     */
+    void beginSection(String name);
+
+    void writeInt(int value);
+
+    void writeLong(long value);
+
+    void writeBoolean(boolean value);
+
+    void writeString(String value);
+
+    /**
+     * Write a {@link org.jpsx.api.components.core.scheduler.Quartz} time; it is stored relative to the time the
+     * snapshot was taken, so it is still meaningful when the snapshot is loaded at a different quartz time
+     */
+    void writeTime(long time);
+
+    void writeInts(int[] values, int offset, int length);
+
+    void writeShorts(short[] values, int offset, int length);
+
+    void writeBytes(byte[] values, int offset, int length);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.snapshot;
+
+/**
+ * Connection interface to be implemented by components with output (sound etc.) which must not be heard while the
+ * machine is run ahead speculatively; the speculative run is always undone by restoring a snapshot taken before it.
+ * <p/>
+ * Both methods are called with the CPU paused.
+ */
+public interface SpeculationListener {
+    /**
+     * The machine is about to run speculatively; output should be suppressed until {@link #speculationEnded}
+     */
+    void speculationStarted();
+
+    /**
+     * The machine has been restored to its state before the speculative run (the restore happens before this call,
+     * so participants can tell a rollback from the loading of a save state)
+     */
+    void speculationEnded();
+}
@@ -19,6 +19,9 @@
 package org.jpsx.runtime;
 
 import org.jpsx.api.CPUControl;
+import org.jpsx.api.snapshot.RewindBuffer;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SpeculationListener;
 import org.jpsx.bootstrap.connection.MultipleConnection;
 import org.jpsx.bootstrap.connection.SimpleConnection;
 
@@ -33,4 +36,7 @@ public class RuntimeConnections {
     public static final SimpleConnection<CPUControl> CPU_CONTROL = SimpleConnection.create("CPU Control", CPUControl.class);
     public static final MultipleConnection<KeyListener> KEY_LISTENERS = MultipleConnection.create("Key Listeners", KeyListener.class);
     public static final SimpleConnection<Runnable> MAIN = SimpleConnection.create("JPSX Main", Runnable.class);
+    public static final MultipleConnection<SnapshotParticipant> SNAPSHOT_PARTICIPANTS = MultipleConnection.create("Snapshot Participants", SnapshotParticipant.class);
+    public static final MultipleConnection<SpeculationListener> SPECULATION_LISTENERS = MultipleConnection.create("Speculation Listeners", SpeculationListener.class);
+    public static final SimpleConnection<RewindBuffer> REWIND_BUFFER = SimpleConnection.create("Rewind Buffer", RewindBuffer.class);
 }
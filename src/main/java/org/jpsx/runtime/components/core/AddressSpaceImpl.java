@@ -25,6 +25,9 @@ import org.jpsx.api.components.core.addressspace.AddressSpaceListener;
 import org.jpsx.api.components.core.addressspace.AddressSpaceRegistrar;
 import org.jpsx.api.components.core.addressspace.Pollable;
 import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.bootstrap.classloader.ClassModifier;
 import org.jpsx.bootstrap.classloader.JPSXClassLoader;
 import org.jpsx.bootstrap.connection.SimpleConnection;
@@ -37,6 +40,7 @@ import org.jpsx.runtime.util.ClassUtil;
 import org.jpsx.runtime.util.MiscUtil;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.SortedMap;
@@ -75,6 +79,8 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
     private static int lastPoll32Address = 0;
     private static int lastPoll32Count = 0;
     private static boolean writeEnabled = true;
+    // RAM read from a snapshot, to compare with the current contents
+    private static int[] restoredRAM;
 
     private static final int SCRATCH_MASK = SCRATCH_SIZE - 1;
     private static final int PAR_MASK = PAR_SIZE - 1;
@@ -144,6 +150,37 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
                 CoreComponentConnections.ALL_POPULATORS.close();
             }
         });
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("AddressSpace");
+                out.writeInts(ram, 0, ram.length);
+                out.writeInts(scratch, 0, scratch.length);
+                out.writeInts(hw, 0, hw.length);
+                out.writeBoolean(writeEnabled);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("AddressSpace");
+                if (restoredRAM == null) {
+                    restoredRAM = new int[ram.length];
+                }
+                in.readInts(restoredRAM, 0, ram.length);
+                // compiled code need only be thrown away if the RAM actually changed
+                boolean ramChanged = !Arrays.equals(ram, restoredRAM);
+                if (ramChanged) {
+                    System.arraycopy(restoredRAM, 0, ram, 0, ram.length);
+                }
+                in.readInts(scratch, 0, scratch.length);
+                in.readInts(hw, 0, hw.length);
+                writeEnabled = in.readBoolean();
+                ramD = writeEnabled ? ram : ramDummy;
+                lastPoll32Address = 0;
+                lastPoll32Count = 0;
+                if (ramChanged) {
+                    addressSpaceListeners.ramRestored();
+                }
+            }
+        });
     }
 
     private void rewriteHWMethod(ClassGen cgen, String name, String signature, SortedMap<Integer, InstructionList> cases, InstructionList suffix, int resolution) {
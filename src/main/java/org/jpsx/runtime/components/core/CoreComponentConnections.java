@@ -41,6 +41,7 @@ public class CoreComponentConnections {
     public static final SimpleConnection<IRQController> IRQ_CONTROLLER = SimpleConnection.create("IRQ Controller", IRQController.class);
     public static final SimpleConnection<DMAController> DMA_CONTROLLER = SimpleConnection.create("DMA Controller", DMAController.class);
     public static final SimpleConnection<NativeCompiler> NATIVE_COMPILER = SimpleConnection.create("Native Compiler", NativeCompiler.class);
+    public static final SimpleConnection<ShellHandler> SHELL_HANDLER = SimpleConnection.create("Shell Handler", ShellHandler.class);
 
     public static final MultipleConnection<CPUListener> CPU_LISTENERS = MultipleConnection.create("CPU Listeners", CPUListener.class);
     public static final MultipleConnection<InstructionProvider> INSTRUCTION_PROVIDERS = MultipleConnection.create("Instruction Providers", InstructionProvider.class);
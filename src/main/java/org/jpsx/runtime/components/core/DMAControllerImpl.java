@@ -25,6 +25,9 @@ import org.jpsx.api.components.core.addressspace.MemoryMapped;
 import org.jpsx.api.components.core.dma.DMAChannelOwner;
 import org.jpsx.api.components.core.dma.DMAController;
 import org.jpsx.api.components.core.irq.IRQController;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.runtime.JPSXMachine;
 import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
@@ -95,6 +98,20 @@ public class DMAControllerImpl extends SingletonJPSXComponent implements DMACont
         });
         irq = new IRQ();
         CoreComponentConnections.IRQ_OWNERS.add(irq);
+        // the channel registers themselves are hardware addresses, which are part of the address space's state
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("DMA");
+                out.writeInt(pcr);
+                out.writeInt(icr);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("DMA");
+                pcr = in.readInt();
+                icr = in.readInt();
+            }
+        });
     }
 
     public void registerAddresses(AddressSpaceRegistrar registrar) {
@@ -28,6 +28,10 @@ import org.jpsx.runtime.JPSXComponent;
 public class DefaultQuartz extends JPSXComponent implements Quartz, CPUListener {
     private long base;
     private long stoppedAt;
+    // the time is (System.nanoTime() - base) scaled by the rate since the rate was last changed
+    private long rateBase;
+    private long rateTime;
+    private double rate = 1.0;
 
     public void init() {
         super.init();
@@ -42,8 +46,30 @@ public class DefaultQuartz extends JPSXComponent implements Quartz, CPUListener
     }
 
     public synchronized long nanoTime() {
-        if (stoppedAt != 0L) return stoppedAt - base;
-        return System.nanoTime() - base;
+        return scaled(stoppedAt != 0L ? stoppedAt : System.nanoTime());
+    }
+
+    private long scaled(long now) {
+        if (rate == 1.0) return now - base;
+        return rateTime + (long) ((now - rateBase) * rate);
+    }
+
+    /**
+     * Run the clock faster (or slower) than real time, e.g. to emulate frames ahead of time; everything driven by the
+     * quartz speeds up with it
+     */
+    public synchronized void setRate(double rate) {
+        long now = stoppedAt != 0L ? stoppedAt : System.nanoTime();
+        long time = scaled(now);
+        this.rate = rate;
+        rateBase = now;
+        rateTime = time;
+        // keep the unscaled form consistent too, for when the rate returns to 1
+        base = now - time;
+    }
+
+    public synchronized double getRate() {
+        return rate;
     }
 
     public long bestGranularity() {
@@ -58,7 +84,9 @@ public class DefaultQuartz extends JPSXComponent implements Quartz, CPUListener
 
     public synchronized void cpuResumed() {
         if (stoppedAt != 0L) {
-            base += System.nanoTime() - stoppedAt;
+            long stopped = System.nanoTime() - stoppedAt;
+            base += stopped;
+            rateBase += stopped;
             stoppedAt = 0L;
         }
     }
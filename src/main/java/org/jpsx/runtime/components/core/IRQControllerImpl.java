@@ -24,6 +24,9 @@ import org.jpsx.api.components.core.addressspace.MemoryMapped;
 import org.jpsx.api.components.core.cpu.SCP;
 import org.jpsx.api.components.core.irq.IRQController;
 import org.jpsx.api.components.core.irq.IRQOwner;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.runtime.JPSXMachine;
 import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
@@ -62,6 +65,26 @@ public class IRQControllerImpl extends SingletonJPSXComponent implements MemoryM
             }
         });
         CoreComponentConnections.ALL_MEMORY_MAPPED.add(this);
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("IRQ");
+                synchronized (IRQControllerImpl.class) {
+                    out.writeInt(irqRequest);
+                    out.writeInt(irqMask);
+                }
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("IRQ");
+                synchronized (IRQControllerImpl.class) {
+                    irqRequest = in.readInt();
+                    irqMask = in.readInt();
+                    // the owners restore their own view of their IRQs, so don't tell them about any change
+                    oldRequest = irqRequest;
+                    updateInterruptLine();
+                }
+            }
+        });
     }
 
     @Override
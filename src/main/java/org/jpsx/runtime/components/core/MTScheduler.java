@@ -24,8 +24,14 @@ import org.jpsx.api.components.core.cpu.R3000;
 import org.jpsx.api.components.core.scheduler.Quartz;
 import org.jpsx.api.components.core.scheduler.ScheduledAction;
 import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 
+import java.util.Arrays;
+
 public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
     private static final Logger log = Logger.getLogger("Scheduler");
     private static final boolean logTraceEnabled = log.isTraceEnabled();
@@ -49,6 +55,17 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
         tickThread = new TickGeneratorThread();
         actionThread = new ActionThread();
         CoreComponentConnections.SCHEDULER.set(this);
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("Scheduler");
+                actionThread.saveState(out);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("Scheduler");
+                actionThread.loadState(in);
+            }
+        });
     }
 
     public void resolveConnections() {
@@ -155,6 +172,8 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
         private int length = 0; // length of above arrays
 
         private volatile long wakeupTime = Long.MAX_VALUE;
+        // incremented when the actions are replaced from a snapshot, so a callback in progress doesn't reschedule
+        private int restoreCount;
 
         public ActionThread() {
             super("JPSX Scheduler action thread");
@@ -184,8 +203,10 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
                 int i = 0;
                 for (; ; ) {
                     ScheduledAction toRun = null;
+                    int restores;
                     synchronized (this) {
                         if (i >= length) break;
+                        restores = restoreCount;
                         long t = times[i];
                         if (t != 0L && t <= now) {
                             toRun = actions[i];
@@ -201,6 +222,7 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
                             log.trace("Reschedule = " + traceTime(rescheduleTime));
                         }
                         synchronized (this) {
+                            if (restores != restoreCount) break;
                             times[i] = rescheduleTime;
                             if (rescheduleTime == 0L) {
                                 actions[i] = null;
@@ -280,6 +302,53 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
             }
             return false;
         }
+
+        public synchronized void saveState(SnapshotWriter out) {
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (actions[i] != null) count++;
+            }
+            out.writeInt(count);
+            for (int i = 0; i < length; i++) {
+                if (actions[i] != null) {
+                    out.writeString(actions[i].getClass().getName());
+                    out.writeTime(times[i]);
+                }
+            }
+        }
+
+        /**
+         * Actions are long lived objects belonging to their components, so those in the snapshot are matched up
+         * with the current ones by class; any not in the snapshot are unscheduled
+         */
+        public synchronized void loadState(SnapshotReader in) {
+            ScheduledAction[] current = Arrays.copyOf(actions, length);
+            Arrays.fill(actions, null);
+            Arrays.fill(times, 0L);
+            length = 0;
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String name = in.readString();
+                long time = in.readTime();
+                ScheduledAction action = null;
+                for (int i = 0; i < current.length; i++) {
+                    if (current[i] != null && current[i].getClass().getName().equals(name)) {
+                        action = current[i];
+                        current[i] = null;
+                        break;
+                    }
+                }
+                if (action != null) {
+                    actions[length] = action;
+                    times[length++] = time;
+                } else {
+                    log.warn("Scheduled action " + name + " from snapshot is not currently scheduled; its component must reschedule it");
+                }
+            }
+            restoreCount++;
+            updateWakeupTime();
+            notify();
+        }
     }
 
     private static String traceTime(long time) {
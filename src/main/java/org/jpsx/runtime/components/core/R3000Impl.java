@@ -31,6 +31,9 @@ import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.addressspace.AddressSpaceListener;
 import org.jpsx.api.components.core.cpu.*;
 import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.bootstrap.classloader.ClassModifier;
 import org.jpsx.bootstrap.classloader.JPSXClassLoader;
 import org.jpsx.bootstrap.connection.SimpleConnection;
@@ -42,6 +45,7 @@ import org.jpsx.runtime.util.MiscUtil;
 import java.lang.reflect.Modifier;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public final class R3000Impl extends SingletonJPSXComponent implements ClassModifier, R3000, CPUControl, InstructionRegistrar {
     private static final Logger logPrintf = Logger.getLogger("PRINTF");
@@ -58,7 +62,6 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     public static class Settings extends FinalComponentSettings {
         public static final boolean debugBIOS = false;
         public static final boolean traceExecutionFlow = false;
-        public static final boolean skipShell = false; // todo move this elsewhere
         public static final boolean dumpRegsOnCall = false;
     }
 
@@ -68,9 +71,18 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         public static final Scheduler scheduler = resolve(CoreComponentConnections.SCHEDULER);
     }
 
-    // todo figure out how to do this generically
+    // set once the BIOS has called the shell entry point, if there is a shell handler
     public static boolean shellHit;
 
+    // changes whenever the compiled code is thrown away; it starts at a random value so that it can't match that of
+    // another run. If the RAM is restored from a snapshot taken in the same generation, the compiled code is still
+    // valid for it (code in RAM is assumed not to change without the cache being flushed)
+    private static long codeGeneration = new Random().nextLong();
+    // set when loading a snapshot replaces the RAM, and cleared once the compiled code has been checked against the
+    // snapshot's code generation; a failed load leaves it set, as the RAM may still have been replaced
+    private boolean ramReplaced;
+    private static ShellHandler shellHandler;
+
     private static final int MAX_EXECUTION_DEPTH = 4;
     private static final boolean[] inCompiler = new boolean[MAX_EXECUTION_DEPTH];
     private static int executionDepth = -1;
@@ -92,6 +104,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     // todo revisit this; execution control interface
     private static final Object cpuControlSemaphore = new Object();
     private static volatile boolean cpuCmdPending; // cpu should pause and wait for command
+    private static volatile boolean cpuRunning; // set by go(), cleared whenever the cpu waits for a command
     private static boolean cpuReadyForCommand;
     private static int cpuCmd;
     private static final int CMD_NOP = 0;
@@ -133,6 +146,53 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
             public void cacheCleared() {
                 R3000Impl.cacheCleared();
             }
+
+            public void ramRestored() {
+                ramReplaced = true;
+            }
+        });
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            // the code generation of the snapshot being loaded
+            private long restoredCodeGeneration;
+
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("R3000");
+                out.writeInts(regs, 0, 32);
+                out.writeInt(reg_lo);
+                out.writeInt(reg_hi);
+                out.writeInt(reg_pc);
+                out.writeInt(currentPCDelta);
+                out.writeInt(delayedPCDelta);
+                out.writeInt(interpretedJumpAndLinkTarget);
+                out.writeInt(interpretedJumpAndLinkRetAddr);
+                out.writeInt(interpretedJumpTarget);
+                out.writeBoolean(shellHit);
+                out.writeLong(codeGeneration);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("R3000");
+                in.readInts(regs, 0, 32);
+                reg_lo = in.readInt();
+                reg_hi = in.readInt();
+                reg_pc = in.readInt();
+                currentPCDelta = in.readInt();
+                delayedPCDelta = in.readInt();
+                interpretedJumpAndLinkTarget = in.readInt();
+                interpretedJumpAndLinkRetAddr = in.readInt();
+                interpretedJumpTarget = in.readInt();
+                shellHit = in.readBoolean();
+                restoredCodeGeneration = in.readLong();
+            }
+
+            public void stateLoaded() {
+                // the RAM may have been loaded before or after the code generation, so decide only now
+                if (ramReplaced && restoredCodeGeneration != codeGeneration && compiler != null) {
+                    codeGeneration++;
+                    compiler.clearCache();
+                }
+                ramReplaced = false;
+            }
         });
     }
 
@@ -174,6 +234,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     public void resolveConnections() {
         super.resolveConnections();
         compiler = CoreComponentConnections.NATIVE_COMPILER.peek();
+        shellHandler = CoreComponentConnections.SHELL_HANDLER.peek();
     }
 
     public static void bootStatus(int address, int value) {
@@ -248,6 +309,20 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
 
     private static Thread executionThread;
 
+    /**
+     * @return how deeply exception handlers are nested on the execution thread; 0 for normal execution
+     */
+    public static int getExecutionDepth() {
+        return executionDepth;
+    }
+
+    /**
+     * @return true if the CPU has been told to {@link #go} and hasn't paused since
+     */
+    public static boolean isRunning() {
+        return cpuRunning;
+    }
+
     public boolean isExecutionThread() {
         return Thread.currentThread() == executionThread;
     }
@@ -284,6 +359,8 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
             if (Thread.currentThread() != executionThread) {
                 // normally fine just to have the execution thread make itself ready for a command as soon as possible
                 CoreComponentConnections.R3000.resolve().requestBreakout();
+                // the CPU won't see the breakout if it is blocked waiting for an interrupt
+                Refs.scheduler.cpuThreadNotify();
                 if (!cpuReadyForCommand) {
                     //System.out.println("main: waiting for cpu to be ready");
                     try {
@@ -356,6 +433,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     }
 
     private static void cpuWaitForCmd() {
+        cpuRunning = false;
         executionListeners.cpuPaused();
         synchronized (cpuControlSemaphore) {
             boolean done = false;
@@ -377,6 +455,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
                     case CMD_RUN:
                         done = true;
                         cpuCmdPending = false;
+                        cpuRunning = true;
                         executionListeners.cpuResumed();
                         break;
                     case CMD_STEP:
@@ -513,10 +592,13 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
             }
 
             if (reg_pc == interpretedJumpAndLinkTarget) {
-                if (Settings.skipShell) {
-                    if (!shellHit && reg_pc == 0x80030000) {
-                        shellHit = true;
-                        reg_pc = regs[31];
+                if (shellHandler != null && !shellHit && reg_pc == ShellHandler.SHELL_ADDRESS) {
+                    // the handler may already have set the PC itself, so compare with the shell address
+                    int pc = shellEntered(regs[31]);
+                    if (pc != ShellHandler.SHELL_ADDRESS) {
+                        interpretedJumpAndLinkTarget = -1;
+                        reg_pc = pc;
+                        continue;
                     }
                 }
                 if (Settings.dumpRegsOnCall && shouldDumpRegs(reg_pc)) {
@@ -599,6 +681,38 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         } while (true);
     }
 
+    public static boolean hasShellHandler() {
+        return shellHandler != null;
+    }
+
+    /**
+     * Called by the interpreter or compiled code (with the interpreter registers up to date) the first time the
+     * BIOS calls the shell
+     *
+     * @return the address to continue execution at
+     */
+    public static int shellEntered(int returnAddress) {
+        shellHit = true;
+        // the interpreter registers are up to date, so let the handler access them even if called from compiled code
+        boolean wasInCompiler = inCompiler[executionDepth];
+        inCompiler[executionDepth] = false;
+        int pc;
+        try {
+            pc = shellHandler.shellEntered(returnAddress);
+        } finally {
+            inCompiler[executionDepth] = wasInCompiler;
+        }
+        if (pc != ShellHandler.SHELL_ADDRESS && pc != returnAddress) {
+            // the handler has most likely loaded code
+            codeGeneration++;
+        }
+        if (compiler != null) {
+            // also throws away the compiled shell entry stub
+            compiler.clearCache();
+        }
+        return pc;
+    }
+
     public static boolean shouldDumpRegs(int addr) {
         if (Settings.dumpRegsOnCall) {
             //return addr==0x80072c1c || addr==0x800729ac || addr==0x8001a504 || addr==0x80019988 || addr==0x800198d8 || addr==0x8003c05c || addr==0x8003a62c;
@@ -806,6 +920,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         }    */
         totalBreakouts++;
         if (compiler != null) {
+            codeGeneration++;
             compiler.clearCache();
             if (inCompiler[executionDepth]) {
                 ContinueExecutionException e = ContinueExecutionException.SKIP_CURRENT;
@@ -26,6 +26,10 @@ import org.jpsx.api.components.core.cpu.*;
 import org.jpsx.api.components.core.irq.IRQController;
 import org.jpsx.api.components.core.scheduler.Quartz;
 import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 import org.jpsx.runtime.util.MiscUtil;
 
@@ -263,6 +267,31 @@ public class SCPImpl extends SingletonJPSXComponent implements SCP, InstructionP
         cause = 0;
         CoreComponentConnections.SCP.set(this);
         CoreComponentConnections.INSTRUCTION_PROVIDERS.add(this);
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("SCP");
+                out.writeInt(status);
+                out.writeInt(cause);
+                out.writeInt(errorEPC);
+                out.writeInt(EPC);
+                out.writeBoolean(causeIV);
+                out.writeBoolean(causeBD);
+                out.writeInt(causeCE);
+                out.writeInt(causeIPS);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("SCP");
+                status = in.readInt();
+                cause = in.readInt();
+                errorEPC = in.readInt();
+                EPC = in.readInt();
+                causeIV = in.readBoolean();
+                causeBD = in.readBoolean();
+                causeCE = in.readInt();
+                causeIPS = in.readInt();
+            }
+        });
     }
 
     public void signalResetException() {
@@ -27,9 +27,11 @@ import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.CPUInstruction;
 import org.jpsx.api.components.core.cpu.NativeCompiler;
 import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.cpu.ShellHandler;
 import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.*;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.core.R3000Impl;
 import org.jpsx.runtime.util.MiscUtil;
 
 import java.lang.reflect.Field;
@@ -793,6 +795,18 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         }
     }
 
+    /**
+     * called by compiled code on entry to the BIOS
+     * shell, when there is a shell handler
+     */
+    public static final String SHELL_ENTERED_METHOD = "c_shellEntered";
+
+    public static void c_shellEntered(int returnAddress) {
+        compilerToInterpreter();
+        // the calling stub doesn't contain the shell code, so the shell (if it is run) is run by the interpreter
+        returnToInterpreter(R3000Impl.shellHit ? ShellHandler.SHELL_ADDRESS : R3000Impl.shellEntered(returnAddress));
+    }
+
     /**
      * called by compiled code when it executes
      * an instruction whose side effects are unknown
@@ -29,6 +29,7 @@ import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.CPUInstruction;
 import org.jpsx.api.components.core.cpu.CompilationContext;
 import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.cpu.ShellHandler;
 import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.R3000Impl;
@@ -266,8 +267,10 @@ public class Stage1Generator implements CompilationContext {
         InstructionList methodIL = new InstructionList();
         MethodGen mg = new MethodGen(Constants.ACC_STATIC | Constants.ACC_PUBLIC, Type.INT, new Type[]{Type.INT, Type.BOOLEAN}, new String[]{"retAddr", "jump"}, STATIC_METHOD, contextClassGen.getClassName(), methodIL, contextCP);
 
-        if (R3000Impl.Settings.skipShell && !R3000Impl.shellHit && contextBase == 0x80030000) {
-            R3000Impl.shellHit = true;
+        if (R3000Impl.hasShellHandler() && !R3000Impl.shellHit && contextBase == ShellHandler.SHELL_ADDRESS) {
+            // c_shellEntered always continues in the interpreter, which runs the shell if the handler doesn't take over
+            methodIL.append(new ILOAD(LOCAL_RETADDR));
+            methodIL.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.SHELL_ENTERED_METHOD, "(I)V")));
             methodIL.append(new ILOAD(LOCAL_RETADDR));
             methodIL.append(new IRETURN());
         } else {
@@ -1273,5 +1276,12 @@ public class Stage1Generator implements CompilationContext {
         return rc;
     }
 
+    public int getFollowingInstructionCount() {
+        if (contextIsDelaySlot) {
+            return 0;
+        }
+        return contextBlock.offset + contextBlock.size - contextOffset - 1;
+    }
+
     // ----
 }
\ No newline at end of file
@@ -21,8 +21,12 @@ package org.jpsx.runtime.components.hardware;
 import org.jpsx.api.components.hardware.cd.CDAudioSink;
 import org.jpsx.api.components.hardware.cd.CDDrive;
 import org.jpsx.api.components.hardware.gpu.Display;
+import org.jpsx.api.components.hardware.gpu.DisplayFlipListener;
 import org.jpsx.api.components.hardware.gpu.DisplayManager;
+import org.jpsx.api.components.hardware.gpu.VSyncListener;
 import org.jpsx.api.components.hardware.sio.SerialPort;
+import org.jpsx.api.components.hardware.spu.AudioSink;
+import org.jpsx.bootstrap.connection.MultipleConnection;
 import org.jpsx.bootstrap.connection.SimpleConnection;
 
 /**
@@ -31,8 +35,11 @@ import org.jpsx.bootstrap.connection.SimpleConnection;
 public class HardwareComponentConnections {
     public static final SimpleConnection<CDDrive> CD_DRIVE = SimpleConnection.create("CD Drive", CDDrive.class);
     public static final SimpleConnection<CDAudioSink> CD_AUDIO_SINK = SimpleConnection.create("CD Audio Sink", CDAudioSink.class);
+    public static final SimpleConnection<AudioSink> AUDIO_SINK = SimpleConnection.create("Audio Sink", AudioSink.class);
     public static final SimpleConnection<SerialPort> LEFT_PORT_INSTANCE = SimpleConnection.create("Left Serial Port", SerialPort.class);
     public static final SimpleConnection<SerialPort> RIGHT_PORT_INSTANCE = SimpleConnection.create("Right Serial Port", SerialPort.class);
     public static final SimpleConnection<Display> DISPLAY = SimpleConnection.create("JPSX GPU Display", Display.class);
     public static final SimpleConnection<DisplayManager> DISPLAY_MANAGER = SimpleConnection.create("JPXS GPU Display Manager", DisplayManager.class);
+    public static final MultipleConnection<VSyncListener> VSYNC_LISTENERS = MultipleConnection.create("VSync Listeners", VSyncListener.class);
+    public static final MultipleConnection<DisplayFlipListener> DISPLAY_FLIP_LISTENERS = MultipleConnection.create("Display Flip Listeners", DisplayFlipListener.class);
 }
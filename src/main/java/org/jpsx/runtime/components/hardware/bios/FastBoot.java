@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.bios;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.cpu.ShellHandler;
+import org.jpsx.api.components.hardware.cd.CDDrive;
+import org.jpsx.api.components.hardware.cd.CDMedia;
+import org.jpsx.api.components.hardware.cd.MediaException;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+import org.jpsx.runtime.components.hardware.media.ISO9660Index;
+import org.jpsx.runtime.util.MiscUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * FastBoot replaces the BIOS shell; rather than showing the boot logos and having the BIOS boot the CD, the boot
+ * executable named by SYSTEM.CNF on the current media (found via its {@link ISO9660Index}), or a standalone PS-X EXE
+ * file specified by the <code>exe</code> property, is loaded into RAM and started directly.
+ * <p/>
+ * The BIOS has initialized the kernel by the time the shell is entered, so only the executable's own state
+ * (PC, GP, SP/FP and its BSS) needs to be set up. If no executable can be loaded the shell is just skipped, and the
+ * BIOS boots the CD as normal.
+ */
+public class FastBoot extends JPSXComponent implements ShellHandler {
+    private static final Logger log = Logger.getLogger("FastBoot");
+
+    public static final String PROPERTY_EXE = "exe";
+
+    private static final String EXE_MAGIC = "PS-X EXE";
+    private static final int EXE_HEADER_SIZE = 0x800;
+    private static final int DEFAULT_STACK = 0x801fff00;
+
+    private static final int R_GP = 28;
+    private static final int R_SP = 29;
+    private static final int R_FP = 30;
+
+    private String exeFile;
+    private AddressSpace addressSpace;
+    private R3000 r3000;
+    private CDDrive drive;
+
+    public FastBoot() {
+        super("JPSX Fast Boot");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        CoreComponentConnections.SHELL_HANDLER.set(this);
+        exeFile = getProperty(PROPERTY_EXE, null);
+    }
+
+    @Override
+    public void resolveConnections() {
+        super.resolveConnections();
+        addressSpace = CoreComponentConnections.ADDRESS_SPACE.resolve();
+        r3000 = CoreComponentConnections.R3000.resolve();
+        drive = HardwareComponentConnections.CD_DRIVE.peek();
+    }
+
+    public int shellEntered(int returnAddress) {
+        byte[] exe = null;
+        try {
+            if (exeFile != null) {
+                log.info("Loading " + exeFile);
+                exe = Files.readAllBytes(Paths.get(exeFile));
+            } else {
+                CDMedia media = drive == null ? null : drive.getCurrentMedia();
+                if (media != null) {
+                    exe = readBootExecutable(media);
+                }
+            }
+        } catch (IOException | MediaException e) {
+            log.warn("Unable to read boot executable", e);
+        }
+        if (exe == null || !startExecutable(exe)) {
+            log.info("Skipping BIOS shell");
+            return returnAddress;
+        }
+        return r3000.getPC();
+    }
+
+    /**
+     * Load a PS-X EXE into RAM, and set up the registers to start it
+     *
+     * @return false if the executable is invalid
+     */
+    protected boolean startExecutable(byte[] exe) {
+        if (exe.length < EXE_HEADER_SIZE || !EXE_MAGIC.equals(new String(exe, 0, EXE_MAGIC.length(), StandardCharsets.US_ASCII))) {
+            log.warn("Not a PS-X EXE");
+            return false;
+        }
+        int pc = readInt(exe, 0x10);
+        int gp = readInt(exe, 0x14);
+        int textAddress = readInt(exe, 0x18);
+        int textSize = readInt(exe, 0x1c);
+        int bssAddress = readInt(exe, 0x28);
+        int bssSize = readInt(exe, 0x2c);
+        int stackBase = readInt(exe, 0x30);
+        int stackOffset = readInt(exe, 0x34);
+
+        textSize = Math.min(textSize, exe.length - EXE_HEADER_SIZE);
+        if (!copyToRAM(textAddress, exe, EXE_HEADER_SIZE, textSize)) {
+            log.warn("PS-X EXE text " + MiscUtil.toHex(textAddress, 8) + "+" + MiscUtil.toHex(textSize, 8) + " is not in RAM");
+            return false;
+        }
+        if (bssSize != 0 && !zeroRAM(bssAddress, bssSize)) {
+            log.warn("PS-X EXE bss " + MiscUtil.toHex(bssAddress, 8) + "+" + MiscUtil.toHex(bssSize, 8) + " is not in RAM");
+            return false;
+        }
+        int sp = stackBase == 0 ? DEFAULT_STACK : stackBase + stackOffset;
+        r3000.setReg(R_GP, gp);
+        r3000.setReg(R_SP, sp);
+        r3000.setReg(R_FP, sp);
+        r3000.setPC(pc);
+        log.info("Starting PS-X EXE at " + MiscUtil.toHex(pc, 8));
+        return true;
+    }
+
+    private boolean copyToRAM(int address, byte[] data, int offset, int length) {
+        AddressSpace.ResolveResult rr = new AddressSpace.ResolveResult();
+        if (!resolveRAM(address, length, rr)) {
+            return false;
+        }
+        int[] mem = rr.mem;
+        int index = rr.offset;
+        int shift = (address & 3) << 3;
+        for (int i = 0; i < length; i++) {
+            mem[index] = (mem[index] & ~(0xff << shift)) | ((data[offset + i] & 0xff) << shift);
+            shift += 8;
+            if (shift == 32) {
+                shift = 0;
+                index++;
+            }
+        }
+        return true;
+    }
+
+    private boolean zeroRAM(int address, int length) {
+        AddressSpace.ResolveResult rr = new AddressSpace.ResolveResult();
+        if (!resolveRAM(address, length, rr)) {
+            return false;
+        }
+        int[] mem = rr.mem;
+        int index = rr.offset;
+        int shift = (address & 3) << 3;
+        for (int i = 0; i < length; i++) {
+            mem[index] &= ~(0xff << shift);
+            shift += 8;
+            if (shift == 32) {
+                shift = 0;
+                index++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the given range lies entirely within main RAM, in which case rr is filled in for its start
+     */
+    private boolean resolveRAM(int address, int length, AddressSpace.ResolveResult rr) {
+        if (length < 0) {
+            return false;
+        }
+        addressSpace.resolve(address, length, true, rr);
+        int[] mem = rr.mem;
+        // check the end too, so that a bad header is rejected rather than running off the end of RAM
+        return mem == addressSpace.getMainRAM() && rr.offset * 4L + (address & 3) + length <= mem.length * 4L;
+    }
+
+    /**
+     * @return the boot executable named by SYSTEM.CNF (or PSX.EXE if there is none), or null if it can't be found
+     */
+    protected static byte[] readBootExecutable(CDMedia media) throws MediaException {
+        ISO9660Index index = ISO9660Index.forMedia(media);
+        String bootPath = "PSX.EXE";
+        byte[] cnf = index.readFile("SYSTEM.CNF");
+        if (cnf != null) {
+            String boot = getBootPath(new String(cnf, StandardCharsets.US_ASCII));
+            if (boot != null) {
+                bootPath = boot;
+            }
+        }
+        log.info("Loading cdrom:\\" + bootPath);
+        byte[] exe = index.readFile(bootPath);
+        if (exe == null) {
+            log.warn("Boot executable " + bootPath + " not found");
+        }
+        return exe;
+    }
+
+    /**
+     * @return the path of the BOOT executable in a SYSTEM.CNF, relative to the root of the CD
+     */
+    protected static String getBootPath(String systemCnf) {
+        for (String line : systemCnf.split("[\r\n]+")) {
+            int equals = line.indexOf('=');
+            if (equals > 0 && line.substring(0, equals).trim().equalsIgnoreCase("BOOT")) {
+                String path = line.substring(equals + 1).trim();
+                if (path.regionMatches(true, 0, "cdrom:", 0, 6)) {
+                    path = path.substring(6);
+                }
+                // the executable may be followed by arguments
+                path = path.split("\\s+")[0];
+                while (path.startsWith("\\")) {
+                    path = path.substring(1);
+                }
+                return path.isEmpty() ? null : path;
+            }
+        }
+        return null;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | (data[offset + 3] << 24);
+    }
+}
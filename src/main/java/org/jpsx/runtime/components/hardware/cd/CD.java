@@ -32,7 +32,12 @@ import org.jpsx.api.components.hardware.cd.CDAudioSink;
 import org.jpsx.api.components.hardware.cd.CDDrive;
 import org.jpsx.api.components.hardware.cd.CDMedia;
 import org.jpsx.api.components.hardware.cd.MediaException;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.api.snapshot.SpeculationListener;
 import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.DMAChannelOwnerBase;
 import org.jpsx.runtime.components.core.IRQOwnerBase;
@@ -40,6 +45,10 @@ import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
 import org.jpsx.runtime.util.CDUtil;
 import org.jpsx.runtime.util.MiscUtil;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
 import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
 
 // todo return the correct thing for audio/no disc
@@ -81,9 +90,12 @@ public class CD extends JPSXComponent implements MemoryMapped {
      */
     private static CDMedia media;
 
-    private static XADecoder xaDecoder = new XADecoder();
+    private static XADecodeThread xaDecodeThread;
     private static CDAudioSink cdAudioSink;
     private static int cdFreq = 0;
+    // while running ahead, the audio isn't heard, and the audio state is left alone so that playback carries on
+    // undisturbed when the machine is rolled back
+    private static volatile boolean speculating;
 
     private static long rateLimitStartTime;
     private static boolean rateLimitEnabled;
@@ -273,6 +285,133 @@ public class CD extends JPSXComponent implements MemoryMapped {
         irq = new IRQ();
         CoreComponentConnections.IRQ_OWNERS.add(irq);
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new CDDMAChannel());
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("CD");
+                saveCDState(out);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("CD");
+                loadCDState(in);
+            }
+        });
+        RuntimeConnections.SPECULATION_LISTENERS.add(new SpeculationListener() {
+            public void speculationStarted() {
+                speculating = true;
+            }
+
+            public void speculationEnded() {
+                speculating = false;
+            }
+        });
+    }
+
+    private static synchronized void saveCDState(SnapshotWriter out) {
+        out.writeInt(regMode);
+        out.writeInt(cdMode);
+        out.writeInt(filterFile);
+        out.writeInt(filterChannel);
+        out.writeInt(state);
+        out.writeInt(substate);
+        out.writeBoolean(interruptEnabled);
+        out.writeBoolean(seeking);
+        out.writeBoolean(sectorReady);
+        out.writeBoolean(sectorDismissed);
+        out.writeBoolean(someDataRead);
+        out.writeBoolean(waitForDataRead);
+        out.writeInt(waitForDataReadCounter);
+        out.writeBoolean(resultCleared);
+        out.writeInts(currentSector, 0, currentSector.length);
+        out.writeInt(currentSectorOffset);
+        out.writeInt(currentSectorEnd);
+        out.writeInt(CmdParameters.count);
+        out.writeInts(CmdParameters.params, 0, CmdParameters.MAX_PARAMS);
+        out.writeBoolean(currentResult != nullResult);
+        if (currentResult != nullResult) {
+            saveResult(out, currentResult);
+        }
+        out.writeInt(resultQueueNextWrite - resultQueueNextRead);
+        for (int i = resultQueueNextRead; i != resultQueueNextWrite; i = (i + 1) % resultQueue.length) {
+            saveResult(out, resultQueue[i]);
+        }
+        saveLocation(out, lastSetLocation);
+        out.writeBoolean(setLocDone);
+        saveLocation(out, currentLocation);
+        out.writeBoolean(irq.isSet());
+    }
+
+    private static synchronized void loadCDState(SnapshotReader in) {
+        regMode = in.readInt();
+        cdMode = in.readInt();
+        filterFile = in.readInt();
+        filterChannel = in.readInt();
+        state = in.readInt();
+        substate = in.readInt();
+        interruptEnabled = in.readBoolean();
+        seeking = in.readBoolean();
+        sectorReady = in.readBoolean();
+        sectorDismissed = in.readBoolean();
+        someDataRead = in.readBoolean();
+        waitForDataRead = in.readBoolean();
+        waitForDataReadCounter = in.readInt();
+        resultCleared = in.readBoolean();
+        in.readInts(currentSector, 0, currentSector.length);
+        currentSectorOffset = in.readInt();
+        currentSectorEnd = in.readInt();
+        CmdParameters.count = in.readInt();
+        in.readInts(CmdParameters.params, 0, CmdParameters.MAX_PARAMS);
+        currentResult = in.readBoolean() ? loadResult(in) : nullResult;
+        int results = in.readInt();
+        resultQueueNextRead = 0;
+        resultQueueNextWrite = 0;
+        for (int i = 0; i < results; i++) {
+            resultQueue[resultQueueNextWrite++] = loadResult(in);
+        }
+        loadLocation(in, lastSetLocation);
+        setLocDone = in.readBoolean();
+        loadLocation(in, currentLocation);
+        irq.set = in.readBoolean();
+
+        // sectors already consumed up to the current location, unless still seeking to it
+        HeadLocation next = new HeadLocation();
+        next.init(currentLocation);
+        if (substate != 0) {
+            next.nextSequential();
+        }
+        sectorThread.restart(next);
+        resetAudio();
+        updateCallback(quartz.nanoTime());
+        CD.class.notifyAll();
+    }
+
+    private static void saveResult(SnapshotWriter out, CmdResult result) {
+        out.writeInt(result.type);
+        out.writeInt(result.resultCount);
+        out.writeInt(result.resultPos);
+        out.writeInts(result.results, 0, CmdResult.MAX_RESULTS);
+    }
+
+    private static CmdResult loadResult(SnapshotReader in) {
+        CmdResult result = new CmdResult();
+        result.type = in.readInt();
+        result.resultCount = in.readInt();
+        result.resultPos = in.readInt();
+        in.readInts(result.results, 0, CmdResult.MAX_RESULTS);
+        return result;
+    }
+
+    private static void saveLocation(SnapshotWriter out, HeadLocation location) {
+        out.writeInt(location.m);
+        out.writeInt(location.s);
+        out.writeInt(location.f);
+    }
+
+    private static void loadLocation(SnapshotReader in, HeadLocation location) {
+        int m = in.readInt();
+        int s = in.readInt();
+        int f = in.readInt();
+        location.init(m, s, f);
     }
 
     public void resolveConnections() {
@@ -543,6 +682,7 @@ public class CD extends JPSXComponent implements MemoryMapped {
 
     public void begin() {
         sectorThread = new SectorThread();
+        xaDecodeThread = new XADecodeThread();
     }
 
     // h/w access -----------------------------------------------------------------------------------
@@ -1151,9 +1291,16 @@ public class CD extends JPSXComponent implements MemoryMapped {
 
     //private static int threes = 0;
 
+    /**
+     * @return true if the state is one in which the drive is reading sectors
+     */
+    private static boolean isReadingState() {
+        return state == STATE_READN || state == STATE_READS || (state == STATE_PLAY && softwareCDDA) || state == STATE_SEEKL || state == STATE_SEEKP;
+    }
+
     private static synchronized long updateCallback(long baseTime) {
         long nextTime = 0L;
-        if (state == STATE_READN || state == STATE_READS || (state == STATE_PLAY && softwareCDDA) || state == STATE_SEEKL || state == STATE_SEEKP) {
+        if (isReadingState()) {
             long period;
             // note we
             if (0 == (cdMode & CD_MODE_DOUBLE_SPEED)) {
@@ -1368,7 +1515,7 @@ public class CD extends JPSXComponent implements MemoryMapped {
         }
     }
 
-    private static boolean stop = false;
+    private static volatile boolean stop = false;
 
     @Override
     public void close() {
@@ -1376,19 +1523,52 @@ public class CD extends JPSXComponent implements MemoryMapped {
         synchronized (CD.class) {
             CD.class.notifyAll();
         }
+        if (sectorThread != null) {
+            LockSupport.unpark(sectorThread);
+        }
+        if (xaDecodeThread != null) {
+            LockSupport.unpark(xaDecodeThread);
+        }
     }
 
+    /**
+     * Reads sectors ahead of the CD state machine into a ring of buffers.
+     * <p/>
+     * The ring has a single producer (this thread) and a single consumer (the state machine, which holds the CD
+     * monitor), so it needs no lock; each side only writes its own index. When the consumer moves the head, it
+     * bumps the generation, and sectors the producer was already reading for an older generation are skipped
+     * when they arrive. The producer parks when it has nothing to do and is unparked by the consumer.
+     * <p/>
+     * The read-ahead window starts small after each seek, and doubles each time that many sectors have been
+     * consumed in sequence, so streaming (XA audio, movies) gets a deep buffer without random access reading
+     * lots of sectors which are never used.
+     */
     private static class SectorThread extends Thread {
-        private static final int SECTOR_BUFFERS = 32;
+        // must be a power of 2
+        private static final int SECTOR_BUFFERS = 64;
+        private static final int BUFFER_MASK = SECTOR_BUFFERS - 1;
         private static final int BUFFERS_BEFORE_READ = 8;
-        private static final int MIN_SECTOR_RUN = 8; // should always read this many sectors sequentially.
-        private HeadLocation[] sectorLocations = new HeadLocation[SECTOR_BUFFERS];
-        private byte[][] sectorBuffers = new byte[SECTOR_BUFFERS][];
-        private int sectorBufferNextRead;
-        private int sectorBufferNextWrite;
-        private HeadLocation readLocation = new HeadLocation();
-        private boolean stateChanged;
-        private boolean locationChanged;
+        private static final int MIN_WINDOW = 16;
+        private static final int MAX_WINDOW = SECTOR_BUFFERS - 2;
+        // sectors are read in batches of up to this many; it is also how far below the window the ring must
+        // drain before the reader is woken, so that it reads runs rather than single sectors
+        private static final int BATCH_SECTORS = 8;
+        private final HeadLocation[] sectorLocations = new HeadLocation[SECTOR_BUFFERS];
+        private final byte[][] sectorBuffers = new byte[SECTOR_BUFFERS][];
+        private final int[] sectorGenerations = new int[SECTOR_BUFFERS];
+
+        // written only by the consumer
+        private volatile int readIndex;
+        private volatile int generation;
+        private volatile boolean reading;
+        private volatile int window = MIN_WINDOW;
+        // where to read from for the current generation; written by the consumer before the generation is bumped
+        private final HeadLocation seekLocation = new HeadLocation();
+        private int sequentialSectors;
+
+        // written only by the producer
+        private volatile int writeIndex;
+        private final HeadLocation readLocation = new HeadLocation();
 
         public SectorThread() {
             super("Sector read thread");
@@ -1404,24 +1584,70 @@ public class CD extends JPSXComponent implements MemoryMapped {
 
         public void newState() {
             assert Thread.holdsLock(CD.class);
-            stateChanged = true;
-            if (sectorBufferNextRead != sectorBufferNextWrite && sectorLocations[sectorBufferNextRead].getSector() == currentLocation.getSector()) {
+            if (available() > 0 && sectorLocations[readIndex & BUFFER_MASK].getSector() == currentLocation.getSector()) {
                 if (traceCD) log.trace("CD: updateLocation is identical to old one, so nop");
             } else {
-                locationChanged = true;
-                readLocation.init(currentLocation);
                 // for now, clear buffer
-                sectorBufferNextRead = sectorBufferNextWrite;
+                seek(currentLocation);
+            }
+            reading = isReadingState();
+            seeking = reading;
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Discard the buffered sectors and start reading afresh (if in a reading state) from the given location;
+         * used when a snapshot is loaded
+         */
+        public void restart(HeadLocation location) {
+            assert Thread.holdsLock(CD.class);
+            seek(location);
+            reading = isReadingState();
+            LockSupport.unpark(this);
+        }
+
+        private void seek(HeadLocation location) {
+            seekLocation.init(location);
+            readIndex = writeIndex;
+            generation++;
+            window = MIN_WINDOW;
+            sequentialSectors = 0;
+        }
+
+        /**
+         * @return the number of sectors ready for the consumer, having skipped any read for an old generation
+         */
+        private int available() {
+            int read = readIndex;
+            int write = writeIndex;
+            while (read != write && sectorGenerations[read & BUFFER_MASK] != generation) {
+                read++;
+            }
+            readIndex = read;
+            return write - read;
+        }
+
+        /**
+         * Consume the sector at the head of the ring
+         */
+        private void advance() {
+            currentLocation.init(sectorLocations[readIndex & BUFFER_MASK]);
+            readIndex++;
+            if (++sequentialSectors >= window && window < MAX_WINDOW) {
+                window = Math.min(MAX_WINDOW, window * 2);
+                sequentialSectors = 0;
+            }
+            if (writeIndex - readIndex <= window - BATCH_SECTORS) {
+                LockSupport.unpark(this);
             }
-            seeking = state == STATE_READN || state == STATE_READS || (state == STATE_PLAY && softwareCDDA) || state == STATE_SEEKL || state == STATE_SEEKP;
         }
 
         public boolean filterDataSector() {
             assert Thread.holdsLock(CD.class);
             // todo filter!
-            assert sectorBufferNextRead != sectorBufferNextWrite;
+            assert available() > 0;
 
-            byte[] sector = sectorBuffers[sectorBufferNextRead];
+            byte[] sector = sectorBuffers[readIndex & BUFFER_MASK];
             // xa audio submode == 0x64
 //                log.trace( MiscUtil.toHex( (sector[4]>>16)&0xff, 8));
             //if (0!=(cdMode&CD_MODE_XA)) System.out.println(MiscUtil.toHex(sector[16],2)+" "+MiscUtil.toHex(sector[18],2));
@@ -1436,13 +1662,8 @@ public class CD extends JPSXComponent implements MemoryMapped {
                         //log.trace("Skipping unfiltered sector "+(sector[4]&0xff)+" "+((sector[4]>>8)&0xff));
                     }
                 }
-                currentLocation.init(sectorLocations[sectorBufferNextRead]);
                 //if (traceCD) log.info( "skipping XA audio sector");
-                sectorBufferNextRead = (sectorBufferNextRead + 1) % SECTOR_BUFFERS;
-                int sectors = (sectorBufferNextWrite + SECTOR_BUFFERS - sectorBufferNextRead) % SECTOR_BUFFERS;
-                if (sectors < SECTOR_BUFFERS - MIN_SECTOR_RUN - 2) {
-                    CD.class.notify();
-                }
+                advance();
                 return false;
             }
             return true;
@@ -1451,17 +1672,12 @@ public class CD extends JPSXComponent implements MemoryMapped {
         public boolean filterDASector() {
             assert Thread.holdsLock(CD.class);
             // todo filter!
-            assert sectorBufferNextRead != sectorBufferNextWrite;
+            assert available() > 0;
 
-            byte[] sector = sectorBuffers[sectorBufferNextRead];
+            byte[] sector = sectorBuffers[readIndex & BUFFER_MASK];
 
             if (handleDASector(sector)) {
-                currentLocation.init(sectorLocations[sectorBufferNextRead]);
-                sectorBufferNextRead = (sectorBufferNextRead + 1) % SECTOR_BUFFERS;
-                int sectors = (sectorBufferNextWrite + SECTOR_BUFFERS - sectorBufferNextRead) % SECTOR_BUFFERS;
-                if (sectors < SECTOR_BUFFERS - MIN_SECTOR_RUN - 2) {
-                    CD.class.notify();
-                }
+                advance();
                 return true;
             }
             return false;
@@ -1469,7 +1685,7 @@ public class CD extends JPSXComponent implements MemoryMapped {
 
         public boolean sectorsReady(boolean seek) {
             assert Thread.holdsLock(CD.class);
-            int sectors = (sectorBufferNextWrite + SECTOR_BUFFERS - sectorBufferNextRead) % SECTOR_BUFFERS;
+            int sectors = available();
             boolean rc = seek ? (sectors > BUFFERS_BEFORE_READ) : (sectors > 0);
             if (traceCD) log.trace("sectors now: " + sectors);
             seeking = !rc;
@@ -1478,73 +1694,53 @@ public class CD extends JPSXComponent implements MemoryMapped {
 
         public void copySector(int[] target) {
             synchronized (CD.class) {
-                byte[] byteBuf = sectorBuffers[sectorBufferNextRead];
+                ByteBuffer.wrap(sectorBuffers[readIndex & BUFFER_MASK]).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(target, 0, SECTOR_SIZE_BYTES / 4);
 
-                for (int i = 0; i < SECTOR_SIZE_BYTES / 4; i++) {
-                    currentSector[i] = CDUtil.getUInt32LE(byteBuf, i << 2);
-                }
-                currentLocation.init(sectorLocations[sectorBufferNextRead]);
-
-                if (traceCD) log.trace("COPY SECTOR " + MiscUtil.toHex(target[3], 6) + " " + currentLocation);
+                if (traceCD) log.trace("COPY SECTOR " + MiscUtil.toHex(target[3], 6) + " " + sectorLocations[readIndex & BUFFER_MASK]);
 
                 // todo - this is only valid for data/xa sectors
 //				assert CDUtil.fromBCD( target[3] & 0xff ) == currentLocation.getM() : "sectors don't match " + MiscUtil.toHex( target[3], 6 ) + " " + currentLocation;
 //				assert CDUtil.fromBCD( (target[3] >> 8) & 0xff ) == currentLocation.getS() : "sectors don't match " + MiscUtil.toHex( target[3], 6 ) + " " + currentLocation;
 //				assert CDUtil.fromBCD( (target[3] >> 16) & 0xff ) == currentLocation.getF() : "sectors don't match " + MiscUtil.toHex( target[3], 6 ) + " " + currentLocation;
-                sectorBufferNextRead = (sectorBufferNextRead + 1) % SECTOR_BUFFERS;
-                int sectors = (sectorBufferNextWrite + SECTOR_BUFFERS - sectorBufferNextRead) % SECTOR_BUFFERS;
-                if (sectors < SECTOR_BUFFERS - MIN_SECTOR_RUN - 2) {
-                    CD.class.notify();
-                }
+                advance();
             }
         }
 
         public void run() {
             log.info("SectorThread starts");
             try {
+                int readGeneration = generation - 1;
                 while (!stop) {
-                    boolean read;
-                    synchronized (CD.class) {
-                        read = state == STATE_READN || state == STATE_READS || (state == STATE_PLAY && softwareCDDA) || state == STATE_SEEKL || state == STATE_SEEKP;
-                        int sectors = (sectorBufferNextWrite + SECTOR_BUFFERS - sectorBufferNextRead) % SECTOR_BUFFERS;
-                        if (read) {
-                            if (sectors != SECTOR_BUFFERS - 2) {
-                                sectorLocations[sectorBufferNextWrite].init(readLocation);
-                                read = true;
-                            } else {
-                                read = false;
-                            }
-                        }
-                        locationChanged = false;
-                        stateChanged = false;
+                    int currentGeneration = generation;
+                    if (currentGeneration != readGeneration) {
+                        readGeneration = currentGeneration;
+                        readLocation.init(seekLocation);
                     }
-
-                    if (read) {
-                        if (traceCD) log.trace("reading sector " + readLocation);
-                        try {
-                            media.readSector(readLocation.getSector(), sectorBuffers[sectorBufferNextWrite]);
-                        } catch (MediaException e) {
-                        }
-                        if (traceCD)
-                            log.trace("read sector complete " + MiscUtil.toHex(sectorBuffers[sectorBufferNextWrite][3], 6) + " " + readLocation);
+                    int write = writeIndex;
+                    int sectors = Math.min(window - (write - readIndex), BATCH_SECTORS);
+                    // don't wrap around the end of the ring within a batch
+                    sectors = Math.min(sectors, SECTOR_BUFFERS - (write & BUFFER_MASK));
+                    if (!reading || sectors <= 0) {
+                        if (traceCD) log.trace("SectorThread sleeps");
+                        LockSupport.park(this);
+                        if (traceCD) log.trace("SectorThread wakes");
+                        continue;
                     }
 
-                    synchronized (CD.class) {
-                        // only want to update stuff if we didn't change location in the interim
-                        if (read && !locationChanged) {
-                            sectorBufferNextWrite = (sectorBufferNextWrite + 1) % SECTOR_BUFFERS;
-                            readLocation.nextSequential();
-                        }
-                        // sleep if we had nothing to do, and noone issued a new command in the interim
-                        if (!read && !stateChanged) {
-                            try {
-                                if (traceCD) log.trace("SectorThread sleeps");
-                                CD.class.wait();
-                                if (traceCD) log.trace("SectorThread wakes");
-                            } catch (InterruptedException e) {
-                            }
-                        }
+                    int slot = write & BUFFER_MASK;
+                    int first = readLocation.getSector();
+                    for (int i = 0; i < sectors; i++) {
+                        sectorLocations[slot + i].init(readLocation);
+                        sectorGenerations[slot + i] = readGeneration;
+                        readLocation.nextSequential();
+                    }
+                    if (traceCD) log.trace("reading " + sectors + " sectors from " + sectorLocations[slot]);
+                    try {
+                        media.readSectors(first, sectors, sectorBuffers, slot);
+                    } catch (MediaException e) {
                     }
+                    // publish them
+                    writeIndex = write + sectors;
                 }
             } finally {
                 log.info("SectorThread ends");
@@ -1553,23 +1749,105 @@ public class CD extends JPSXComponent implements MemoryMapped {
     }
 
     private static void resetAudio() {
-        xaDecoder.reset();
+        if (speculating) return;
+        xaDecodeThread.reset();
         cdFreq = 0;
         rateLimitEnabled = false;
     }
 
-    private static final byte[] audioBuffer = new byte[4032 * 4];
+    /**
+     * XA audio sectors are copied into a queue by the CD state machine, and decoded and handed to the audio sink by
+     * this thread, so the state machine (which holds the CD monitor) neither does the decoding nor waits for the
+     * sink to have room. Single producer/single consumer, so no lock is needed.
+     */
+    private static class XADecodeThread extends Thread {
+        // must be a power of 2; 16 is enough for several rounds of interleaved streams at double speed
+        private static final int SECTOR_BUFFERS = 16;
+        private static final int BUFFER_MASK = SECTOR_BUFFERS - 1;
+        private final byte[][] sectorBuffers = new byte[SECTOR_BUFFERS][];
+        private final int[] sectorGenerations = new int[SECTOR_BUFFERS];
+        private final XADecoder xaDecoder = new XADecoder();
+        private final byte[] audioBuffer = new byte[4032 * 4];
+
+        // written only by the producer
+        private volatile int writeIndex;
+        private volatile int generation;
+        // written only by the consumer; the audio sink said it was playing when last handed data iff this is the
+        // current generation, so that a reset by the producer implicitly clears it
+        private volatile int readIndex;
+        private volatile int startedGeneration = -1;
+
+        public XADecodeThread() {
+            super("XA decode thread");
+            for (int i = 0; i < SECTOR_BUFFERS; i++) {
+                sectorBuffers[i] = new byte[SECTOR_SIZE_BYTES];
+            }
+            setPriority(NORM_PRIORITY + 2);
+            setDaemon(true);
+            start();
+        }
+
+        /**
+         * Discard any queued audio; the decoder is reset before the next sector is decoded
+         */
+        public void reset() {
+            generation++;
+        }
+
+        /**
+         * @return whether the audio sink said it was playing when last handed data
+         */
+        public boolean isAudioStarted() {
+            return startedGeneration == generation;
+        }
+
+        public void queue(byte[] sector) {
+            int write = writeIndex;
+            if (write - readIndex == SECTOR_BUFFERS) {
+                if (traceCD) log.trace("XA decode queue full; dropping sector");
+                return;
+            }
+            System.arraycopy(sector, 0, sectorBuffers[write & BUFFER_MASK], 0, SECTOR_SIZE_BYTES);
+            sectorGenerations[write & BUFFER_MASK] = generation;
+            writeIndex = write + 1;
+            LockSupport.unpark(this);
+        }
+
+        public void run() {
+            int decodeGeneration = generation;
+            while (!stop) {
+                int read = readIndex;
+                if (read == writeIndex) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                int currentGeneration = generation;
+                if (decodeGeneration != currentGeneration) {
+                    decodeGeneration = currentGeneration;
+                    xaDecoder.reset();
+                }
+                if (sectorGenerations[read & BUFFER_MASK] == decodeGeneration) {
+                    int samples = xaDecoder.decodeXAAudioSector(sectorBuffers[read & BUFFER_MASK], audioBuffer);
+                    // check again since decoding takes a while, so as not to deliver audio from before a reset
+                    if (samples > 0 && cdAudioSink != null && generation == decodeGeneration) {
+                        boolean started = cdAudioSink.cdAudioData(audioBuffer, 0, samples * 4);
+                        startedGeneration = started ? decodeGeneration : decodeGeneration - 1;
+                    }
+                }
+                readIndex = read + 1;
+            }
+        }
+    }
 
     private static boolean handleXASector(byte[] sectorBuffer) {
-        int samples = 0;
+        if (speculating) return true;
         if (cdFreq == 0) {
             if (cdAudioSink != null) {
                 cdAudioSink.newCDAudio();
             }
-            // need to decode to find the frequency
-            samples = xaDecoder.decodeXAAudioSector(sectorBuffer, audioBuffer);
-            if (cdFreq != xaDecoder.getFrequency()) {
-                cdFreq = xaDecoder.getFrequency();
+            int freq = XADecoder.getFrequency(sectorBuffer);
+            if (freq != 0) {
+                cdFreq = freq;
                 if (cdAudioSink != null) {
                     cdAudioSink.setCDAudioRate(cdFreq);
                 }
@@ -1580,12 +1858,10 @@ public class CD extends JPSXComponent implements MemoryMapped {
         if (rateLimit2Exceeded()) return false;
 
         if (cdAudioSink != null && cdAudioSink.isCDAudible()) {
-            if (samples == 0) samples = xaDecoder.decodeXAAudioSector(sectorBuffer, audioBuffer);
-            actualAudioBytes += samples * 4;
-            //samples = Resample.resample(audioBuffer,xaDecoder.getFrequency(),samples,audioBuffer2,44100);
-            //cdAudioSink.cdAudioData(audioBuffer2,0,samples*4);
-            // todo we might want to send data anyway?
-            boolean started = cdAudioSink.cdAudioData(audioBuffer, 0, samples * 4);
+            actualAudioBytes += XADecoder.getSampleCount(sectorBuffer) * 4;
+            xaDecodeThread.queue(sectorBuffer);
+            // as of the last sector decoded
+            boolean started = xaDecodeThread.isAudioStarted();
             if (rateLimit1 || rateLimit2) {
                 if (started) {
                     if (!rateLimitEnabled) {
@@ -1605,6 +1881,7 @@ public class CD extends JPSXComponent implements MemoryMapped {
     }
 
     private static boolean handleDASector(byte[] sectorBuffer) {
+        if (speculating) return true;
         if (cdFreq == 0) {
             cdFreq = 44100;
             if (cdAudioSink != null) {
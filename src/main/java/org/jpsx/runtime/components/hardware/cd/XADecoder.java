@@ -82,7 +82,7 @@ public class XADecoder {
             int x0 = (x << 28) >> range;
             x0 -= (ik0 * fy0 + ik1 * fy1) >> 6;
             if (x0 > 524072) x0 = 524072;
-            else if (x0 < -525088) x0 = 525088;
+            else if (x0 < -525088) x0 = -525088;
             dest[d] = (byte) (x0 >> 4);
             dest[d + 1] = (byte) (x0 >> 12);
             d += inc;
@@ -90,23 +90,23 @@ public class XADecoder {
             int x1 = ((x << 24) & 0xf0000000) >> range;
             x1 -= (ik0 * x0 + ik1 * fy0) >> 6;
             if (x1 > 524072) x1 = 524072;
-            else if (x1 < -525088) x1 = 525088;
+            else if (x1 < -525088) x1 = -525088;
             dest[d] = (byte) (x1 >> 4);
             dest[d + 1] = (byte) (x1 >> 12);
             d += inc;
 
             int x2 = ((x << 20) & 0xf0000000) >> range;
             x2 -= (ik0 * x1 + ik1 * x0) >> 6;
-            if (x0 > 524072) x2 = 524072;
-            else if (x2 < -525088) x2 = 525088;
+            if (x2 > 524072) x2 = 524072;
+            else if (x2 < -525088) x2 = -525088;
             dest[d] = (byte) (x2 >> 4);
             dest[d + 1] = (byte) (x2 >> 12);
             d += inc;
 
             int x3 = ((x << 16) & 0xf0000000) >> range;
             x3 -= (ik0 * x2 + ik1 * x1) >> 6;
-            if (x0 > 524072) x3 = 524072;
-            else if (x3 < -525088) x3 = 525088;
+            if (x3 > 524072) x3 = 524072;
+            else if (x3 < -525088) x3 = -525088;
             dest[d] = (byte) (x3 >> 4);
             dest[d + 1] = (byte) (x3 >> 12);
             d += inc;
@@ -125,6 +125,7 @@ public class XADecoder {
         int sound_datap2;
         int nbits = bps == 4 ? 4 : 2;
         int sampleCount = 0;
+        int startOffset = destOffset;
 
         if (stereo) {
             for (int j = 0; j < 18; j++) {
@@ -263,6 +264,11 @@ public class XADecoder {
 
             */
 //            throw new IllegalStateException("mono");
+            // only the left channel was written; play it on both
+            for (int d = startOffset; d < destOffset; d += 4) {
+                dest[d + 2] = dest[d];
+                dest[d + 3] = dest[d + 1];
+            }
         }
         return sampleCount;
     }
@@ -320,4 +326,29 @@ public class XADecoder {
     public int getFrequency() {
         return freq;
     }
+
+    /**
+     * @return the sample rate of an XA audio sector according to its coding info, or 0 if it is invalid
+     */
+    public static int getFrequency(byte[] sector) {
+        switch ((sector[19] >> 2) & 3) {
+            case 0:
+                return 37800;
+            case 1:
+                return 18900;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the number of stereo samples the sector decodes to according to its coding info (mono samples are
+     *         played on both channels)
+     */
+    public static int getSampleCount(byte[] sector) {
+        int coding = sector[19];
+        int nbits = ((coding >> 4) & 3) == 1 ? 2 : 4;
+        // 18 sound groups, of nbits units of 28 samples per channel
+        return 18 * nbits * 28 * ((coding & 3) == 1 ? 1 : 2);
+    }
 }
\ No newline at end of file
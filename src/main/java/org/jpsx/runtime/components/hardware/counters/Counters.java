@@ -28,6 +28,11 @@ import org.jpsx.api.components.core.scheduler.ScheduledAction;
 import org.jpsx.api.components.core.scheduler.Scheduler;
 import org.jpsx.api.components.hardware.cd.CDDrive;
 import org.jpsx.api.components.hardware.cd.CDMedia;
+import org.jpsx.api.components.hardware.gpu.VSyncListener;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.IRQOwnerBase;
@@ -63,6 +68,8 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
     private static long VSYNC_PERIOD;
 
     private static Counter[] counters;
+    private static VSyncAction vsyncAction;
+    private static VSyncListener vsyncListeners;
 
     private static boolean bandicootUS;
     private static IRQController irqController;
@@ -87,6 +94,24 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
         for (Counter counter : counters) {
             CoreComponentConnections.IRQ_OWNERS.add(counter.getIrq());
         }
+        vsyncAction = new VSyncAction();
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("Counters");
+                for (Counter counter : counters) {
+                    counter.saveState(out);
+                }
+                out.writeTime(vsyncAction.nextTime);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("Counters");
+                for (Counter counter : counters) {
+                    counter.loadState(in);
+                }
+                vsyncAction.nextTime = in.readTime();
+            }
+        });
     }
 
     @Override
@@ -95,6 +120,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
         irqController = CoreComponentConnections.IRQ_CONTROLLER.resolve();
         quartz = CoreComponentConnections.QUARTZ.resolve();
         scheduler = CoreComponentConnections.SCHEDULER.resolve();
+        vsyncListeners = HardwareComponentConnections.VSYNC_LISTENERS.resolve();
     }
 
     public void begin() {
@@ -111,7 +137,18 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
             log.info("Picking NTSC based on current media");
             setNTSC(true);
         }
-        new VSyncAction().start();
+        vsyncAction.start();
+    }
+
+    /**
+     * @return the quartz time of the next vsync
+     */
+    public static long getNextVSyncTime() {
+        return vsyncAction.nextTime;
+    }
+
+    public static long getVSyncPeriod() {
+        return VSYNC_PERIOD;
     }
 
     // todo, one shot?
@@ -205,6 +242,23 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
             return rc;
         }
 
+        public synchronized void saveState(SnapshotWriter out) {
+            out.writeInt(mode);
+            out.writeInt(target);
+            out.writeInt(baseValue);
+            out.writeTime(baseTime);
+        }
+
+        public synchronized void loadState(SnapshotReader in) {
+            mode = in.readInt();
+            target = in.readInt();
+            baseValue = in.readInt();
+            baseTime = in.readTime();
+            lastElapsed = -1;
+            delta = 0;
+            update();
+        }
+
         public void setTarget(int target) {
             target = target & 0xffff;
             if (target == 0) {
@@ -334,7 +388,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
     }
 
     private static class VSyncAction implements ScheduledAction {
-        private long nextTime;
+        private volatile long nextTime;
 
         public void start() {
             nextTime = quartz.nanoTime() + VSYNC_PERIOD;
@@ -354,6 +408,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
                     }
                 }
                 nextTime = nextTime + VSYNC_PERIOD;
+                vsyncListeners.vsync();
             }
             return nextTime;
         }
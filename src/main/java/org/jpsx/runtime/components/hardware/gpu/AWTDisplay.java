@@ -32,6 +32,7 @@ import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.*;
+import java.io.IOException;
 
 /**
  * Basic AWT Display implementation. There are other ways to do this, but this seems to work pretty at least as well
@@ -54,6 +55,9 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
     private boolean antiAlias;
 
     private boolean displayVRAM;
+    // whether the last frame presented was the whole of VRAM, and the image it was presented from
+    private boolean presentedVRAM;
+    private BufferedImage vramImage;
 
     private boolean funkyfudge;
 
@@ -67,6 +71,17 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
     private int cacheReplaceIndex;
     private VolatileImage volatileImage;
 
+    // layout of volatileImage as of the last full present; a partial present is only possible whilst it still matches
+    private boolean layoutValid;
+    private final FrameInfo layout = new FrameInfo();
+
+    // in asynchronous mode, refresh just snapshots the visible area and the present thread does the rest
+    private boolean asyncPresent;
+    private FrameInfo directFrame;
+    private FrameInfo vramFrame;
+    private FrameExchange exchange;
+    private PresentThread presentThread;
+
     private int MAX_X = 960;
     private int MAX_Y = 512;
 
@@ -92,6 +107,7 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
         showBlitTime = Boolean.valueOf(getProperty("showBlitTime","true"));
         antiAlias = Boolean.valueOf(getProperty("antiAlias","true"));
         noStretch = Boolean.valueOf(getProperty("noStretch","false"));
+        asyncPresent = Boolean.valueOf(getProperty("asyncPresent","false"));
     }
 
     @Override
@@ -115,6 +131,15 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
         DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
         ram = db.getData();
         bufferedImage = new BufferedImage(model, raster, true, null);
+        directFrame = new FrameInfo();
+        directFrame.image = bufferedImage;
+        vramImage = bufferedImage;
+        if (asyncPresent) {
+            exchange = new FrameExchange(model);
+            // the present thread keeps its own copy of VRAM to blit, as the emulator carries on drawing into ram
+            vramFrame = new FrameInfo(model);
+            vramImage = vramFrame.image;
+        }
         int w = getIntProperty(LOCATION_X_PROPERTY, -1);
         int h = getIntProperty(LOCATION_Y_PROPERTY, -1);
         if (w != -1 && h != -1) frame.setLocation(w, h);
@@ -124,6 +149,19 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
         volatileImage = frame.createVolatileImage(MAX_X, MAX_Y);
         frame.addKeyListener(RuntimeConnections.KEY_LISTENERS.resolve());
         frame.addWindowListener(new Closer());
+        if (asyncPresent) {
+            presentThread = new PresentThread();
+            presentThread.start();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (presentThread != null) {
+            presentThread.interrupt();
+            presentThread = null;
+        }
     }
 
     protected class ImageInfo {
@@ -204,9 +242,9 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
         if (showBlitTime) {
             timeBasis = Timing.nanos();
         }
-        if (displayVRAM) {
+        if (presentedVRAM) {
             if (antiAlias) ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-            g.drawImage(bufferedImage, l, t, null);
+            g.drawImage(vramImage, l, t, null);
         } else {
             if (volatileImage != null && !volatileImage.contentsLost()) {
                 if (antiAlias) ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -230,74 +268,330 @@ public class AWTDisplay extends JPSXComponent implements Display, KeyListener {
         }
     }
 
-    public synchronized void refresh() {
+    /**
+     * blit only the part of the frame covering the given area of volatileImage
+     */
+    protected synchronized void stretchBlit(Graphics g, int x, int y, int w, int h) {
+        int l = frame.getInsets().left;
+        int t = frame.getInsets().top;
+        if (noStretch) {
+            g.clipRect(l + x, t + y, w, h);
+        } else {
+            int destWidth = xres[resindex];
+            int destHeight = yres[resindex];
+            // round outwards, and allow an extra pixel either side for bilinear filtering
+            int x0 = (x * destWidth) / sourceWidth - 1;
+            int y0 = (y * destHeight) / sourceHeight - 1;
+            int x1 = ((x + w) * destWidth + sourceWidth - 1) / sourceWidth + 1;
+            int y1 = ((y + h) * destHeight + sourceHeight - 1) / sourceHeight + 1;
+            g.clipRect(l + x0, t + y0, x1 - x0, y1 - y0);
+        }
+        // the clip limits the work done to the dirty area, whilst giving identical results to a full blit
+        stretchBlit(g);
+    }
+
+    public void refresh() {
+        refresh(true, 0, 0, 0, 0);
+    }
+
+    public void refresh(int x, int y, int w, int h) {
+        refresh(false, x, y, w, h);
+    }
+
+    protected void refresh(boolean full, int x, int y, int w, int h) {
+        if (asyncPresent) {
+            // the lock only guards against the odd refresh from the AWT thread
+            synchronized (exchange) {
+                capture(exchange.getBack(), full, x, y, w, h);
+                exchange.publish();
+            }
+        } else {
+            synchronized (this) {
+                capture(directFrame, full, x, y, w, h);
+                present(directFrame);
+            }
+        }
+    }
+
+    /**
+     * Fill in the frame from the current display manager state; called on the emulation thread.
+     */
+    protected void capture(FrameInfo f, boolean full, int x, int y, int w, int h) {
         boolean rgb24 = displayManager.getRGB24bit();
         if (funkyfudge) {
             GPU.setVRAMFormat(!rgb24);
             funkyfudge = false;
+            full = true;
         }
         GPU.setVRAMFormat(rgb24);
+        f.rgb24 = rgb24;
+        f.blanked = displayManager.getBlanked();
         // for now we use default display size
-        sourceWidth = displayManager.getDefaultPixelWidth();
-        if (rgb24) sourceWidth = (sourceWidth * 3) / 2;
-        sourceHeight = displayManager.getDefaultPixelHeight();
+        f.sourceWidth = displayManager.getDefaultPixelWidth();
+        if (rgb24) f.sourceWidth = (f.sourceWidth * 3) / 2;
+        f.sourceHeight = displayManager.getDefaultPixelHeight();
+        f.xOrigin = displayManager.getXOrigin();
+        f.yOrigin = displayManager.getYOrigin();
+        f.marginLeft = displayManager.getLeftMarginPixels();
+        if (rgb24) f.marginLeft = (f.marginLeft * 3) / 2;
+        f.marginTop = displayManager.getTopMarginPixels();
+        int pixelWidth = displayManager.getPixelWidth();
+        if (rgb24) pixelWidth = (pixelWidth * 3) / 2;
+        int pixelHeight = displayManager.getPixelHeight();
+        f.marginRight = f.sourceWidth - pixelWidth - f.marginLeft;
+        f.marginBottom = f.sourceHeight - pixelHeight - f.marginTop;
+        // todo fix this - caused presumably by not displaying whole image!
+        f.width = pixelWidth > 0 ? Math.min(pixelWidth, 1024 - f.xOrigin) : 0;
+        f.height = pixelHeight > 0 ? Math.min(pixelHeight, 512 - f.yOrigin) : 0;
+        f.vram = displayVRAM;
+        f.full = full;
+        f.dirtyX0 = x;
+        f.dirtyY0 = y;
+        f.dirtyX1 = x + w;
+        f.dirtyY1 = y + h;
+        if (f.pixels == null) {
+            f.x = f.xOrigin;
+            f.y = f.yOrigin;
+        } else {
+            // snapshot the visible area, so the emulator can carry on drawing
+            f.x = 0;
+            f.y = 0;
+            if (f.vram) {
+                System.arraycopy(ram, 0, f.pixels, 0, 1024 * 512);
+            } else if (!f.blanked) {
+                for (int row = 0; row < f.height; row++) {
+                    System.arraycopy(ram, f.xOrigin + (f.yOrigin + row) * 1024, f.pixels, row * 1024, f.width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw the frame into volatileImage and blit it to the screen; called on the emulation thread, or the
+     * present thread in asynchronous mode.
+     */
+    protected synchronized void present(FrameInfo f) {
+        sourceWidth = f.sourceWidth;
+        sourceHeight = f.sourceHeight;
         if (volatileImage.contentsLost()) {
             volatileImage.validate(null);
+            layoutValid = false;
         }
-        if (displayManager.getBlanked()) {
-            Graphics2D g2 = volatileImage.createGraphics();
-            try {
+        presentedVRAM = f.vram;
+        boolean partial = !f.full && !f.vram && layoutValid && layout.layoutMatches(f);
+        int bx = 0, by = 0, bw = 0, bh = 0;
+        Graphics2D g2 = volatileImage.createGraphics();
+        try {
+            if (f.vram) {
+                layoutValid = false;
+                if (f.pixels != null) {
+                    System.arraycopy(f.pixels, 0, vramFrame.pixels, 0, 1024 * 512);
+                }
+            } else if (partial) {
+                int x0 = Math.max(f.dirtyX0, f.xOrigin);
+                int y0 = Math.max(f.dirtyY0, f.yOrigin);
+                int x1 = Math.min(f.dirtyX1, f.xOrigin + f.width);
+                int y1 = Math.min(f.dirtyY1, f.yOrigin + f.height);
+                if (x0 >= x1 || y0 >= y1) {
+                    return;
+                }
+                bx = f.marginLeft + x0 - f.xOrigin;
+                by = f.marginTop + y0 - f.yOrigin;
+                bw = x1 - x0;
+                bh = y1 - y0;
+                int sx = f.x + x0 - f.xOrigin;
+                int sy = f.y + y0 - f.yOrigin;
+                g2.drawImage(f.image, bx, by, bx + bw, by + bh, sx, sy, sx + bw, sy + bh, null);
+            } else if (f.blanked) {
+                layoutValid = false;
                 g2.setColor(Color.BLACK);
                 g2.fillRect(0, 0, sourceWidth, sourceHeight);
-            } finally {
-                g2.dispose();
-            }
-        } else {
-            Graphics2D g2 = volatileImage.createGraphics();
-            int marginLeft = displayManager.getLeftMarginPixels();
-            if (rgb24) marginLeft = (marginLeft * 3) / 2;
-            int marginTop = displayManager.getTopMarginPixels();
-            int pixelWidth = displayManager.getPixelWidth();
-            if (rgb24) pixelWidth = (pixelWidth * 3) / 2;
-            int pixelHeight = displayManager.getPixelHeight();
-            int marginRight = sourceWidth - pixelWidth - marginLeft;
-            int marginBottom = sourceHeight - pixelHeight - marginTop;
-            try {
-                if (pixelWidth > 0 && pixelHeight > 0) {
-                    g2.drawImage(getImage(displayManager.getXOrigin(), displayManager.getYOrigin(), pixelWidth, pixelHeight),
-                            marginLeft, marginTop, null);
+            } else {
+                layoutValid = false;
+                if (f.width > 0 && f.height > 0) {
+                    if (f.image == bufferedImage) {
+                        g2.drawImage(getImage(f.x, f.y, f.width, f.height), f.marginLeft, f.marginTop, null);
+                    } else {
+                        g2.drawImage(f.image, f.marginLeft, f.marginTop, f.marginLeft + f.width, f.marginTop + f.height,
+                                f.x, f.y, f.x + f.width, f.y + f.height, null);
+                    }
+                    if (!f.rgb24) {
+                        layoutValid = true;
+                        layout.copyLayout(f);
+                    }
                 }
                 g2.setColor(Color.BLACK);
-                if (marginLeft > 0) {
+                if (f.marginLeft > 0) {
                     // fill left
-                    g2.fillRect(0, 0, marginLeft, sourceHeight);
+                    g2.fillRect(0, 0, f.marginLeft, sourceHeight);
                 }
-                if (marginRight > 0) {
+                if (f.marginRight > 0) {
                     // fill left
-                    g2.fillRect(sourceWidth - marginRight, 0, marginRight, sourceHeight);
+                    g2.fillRect(sourceWidth - f.marginRight, 0, f.marginRight, sourceHeight);
                 }
-                if (marginTop > 0) {
+                if (f.marginTop > 0) {
                     // fill top
-                    g2.fillRect(0, 0, sourceWidth, marginTop);
+                    g2.fillRect(0, 0, sourceWidth, f.marginTop);
                 }
-                if (marginBottom > 0) {
+                if (f.marginBottom > 0) {
                     // fill top
-                    g2.fillRect(0, sourceHeight - marginBottom, sourceWidth, marginBottom);
+                    g2.fillRect(0, sourceHeight - f.marginBottom, sourceWidth, f.marginBottom);
                 }
-            } finally {
-                g2.dispose();
             }
+        } finally {
+            g2.dispose();
         }
         Graphics graphics = frame.getGraphics();
         if (graphics != null) {
             try {
-                stretchBlit(graphics);
+                if (partial) {
+                    stretchBlit(graphics, bx, by, bw, bh);
+                } else {
+                    stretchBlit(graphics);
+                }
             } finally {
                 graphics.dispose();
             }
         }
     }
 
+    /**
+     * Everything needed to present one refresh of the display. In synchronous mode there is a single frame which
+     * refers directly to the VRAM image; in asynchronous mode each frame holds its own snapshot of the visible area.
+     */
+    protected static class FrameInfo {
+        protected BufferedImage image;
+        protected int[] pixels;
+        // location of the visible area within image
+        protected int x, y;
+        // location of the visible area within VRAM
+        protected int xOrigin, yOrigin;
+        protected int width, height;
+        protected int sourceWidth, sourceHeight;
+        protected int marginLeft, marginTop, marginRight, marginBottom;
+        protected boolean blanked;
+        protected boolean rgb24;
+        // the frame is the whole of VRAM rather than the visible area
+        protected boolean vram;
+        // if not full, the area of VRAM which changed since the previous frame
+        protected boolean full;
+        protected int dirtyX0, dirtyY0, dirtyX1, dirtyY1;
+
+        protected FrameInfo() {
+        }
+
+        protected FrameInfo(DirectColorModel model) {
+            WritableRaster raster = model.createCompatibleWritableRaster(1024, 512);
+            pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            image = new BufferedImage(model, raster, true, null);
+        }
+
+        public void copyLayout(FrameInfo other) {
+            xOrigin = other.xOrigin;
+            yOrigin = other.yOrigin;
+            width = other.width;
+            height = other.height;
+            sourceWidth = other.sourceWidth;
+            sourceHeight = other.sourceHeight;
+            marginLeft = other.marginLeft;
+            marginTop = other.marginTop;
+        }
+
+        public boolean layoutMatches(FrameInfo other) {
+            return !other.blanked && !other.rgb24 &&
+                    xOrigin == other.xOrigin &&
+                    yOrigin == other.yOrigin &&
+                    width == other.width &&
+                    height == other.height &&
+                    sourceWidth == other.sourceWidth &&
+                    sourceHeight == other.sourceHeight &&
+                    marginLeft == other.marginLeft &&
+                    marginTop == other.marginTop;
+        }
+
+        /**
+         * Include the changes from an earlier frame which was never presented
+         */
+        public void mergeDirty(FrameInfo earlier) {
+            if (earlier.full) {
+                full = true;
+            } else if (!full) {
+                if (earlier.dirtyX0 < dirtyX0) dirtyX0 = earlier.dirtyX0;
+                if (earlier.dirtyY0 < dirtyY0) dirtyY0 = earlier.dirtyY0;
+                if (earlier.dirtyX1 > dirtyX1) dirtyX1 = earlier.dirtyX1;
+                if (earlier.dirtyY1 > dirtyY1) dirtyY1 = earlier.dirtyY1;
+            }
+        }
+    }
+
+    /**
+     * Triple buffered hand off of frames from the emulation thread to the present thread. The emulation thread
+     * always has a free frame to capture into, so never waits for a slow present; frames which are superseded
+     * before being presented are dropped.
+     */
+    private static class FrameExchange {
+        private FrameInfo back;
+        private FrameInfo ready;
+        private FrameInfo front;
+        private boolean fresh;
+
+        public FrameExchange(DirectColorModel model) {
+            back = new FrameInfo(model);
+            ready = new FrameInfo(model);
+            front = new FrameInfo(model);
+        }
+
+        /**
+         * @return the frame owned by the emulation thread
+         */
+        public FrameInfo getBack() {
+            return back;
+        }
+
+        public synchronized void publish() {
+            if (fresh) {
+                back.mergeDirty(ready);
+            }
+            FrameInfo tmp = ready;
+            ready = back;
+            back = tmp;
+            fresh = true;
+            notify();
+        }
+
+        public synchronized FrameInfo take() throws InterruptedException {
+            while (!fresh) {
+                wait();
+            }
+            FrameInfo tmp = front;
+            front = ready;
+            ready = tmp;
+            fresh = false;
+            return front;
+        }
+    }
+
+    private class PresentThread extends Thread {
+        public PresentThread() {
+            super("AWT display present thread");
+            setPriority(NORM_PRIORITY + 1);
+            setDaemon(true);
+        }
+
+        public void run() {
+            log.info("Present thread starts");
+            try {
+                for (; ; ) {
+                    present(exchange.take());
+                }
+            } catch (InterruptedException e) {
+                // done
+            } finally {
+                log.info("Present thread ends");
+            }
+        }
+    }
+
     public void keyTyped(KeyEvent e) {
     }
 
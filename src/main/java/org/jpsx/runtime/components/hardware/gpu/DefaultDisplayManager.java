@@ -178,6 +178,7 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
         }
 
         public void dirtyRectangle(int x, int y, int w, int h) {
+            if (w <= 0 || h <= 0) return;
             int x1 = x + w;
             int y1 = y + h;
             if (x0Dirty == x1Dirty) {
@@ -195,6 +196,20 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
 //                               "dirty "+x0Dirty+","+y0Dirty+" by "+(x1Dirty-x0Dirty)+","+(y1Dirty-y0Dirty));
         }
 
+        /**
+         * add the part of the dirty region which is actually displayed to the given pending region
+         */
+        public void addVisibleDirty(Rect pending) {
+            if (x0Dirty == x1Dirty) return;
+            int x0 = Math.max(x0Dirty, xOrigin);
+            int y0 = Math.max(y0Dirty, yOrigin);
+            int x1 = Math.min(x1Dirty, xOrigin + getPixelWidth());
+            int y1 = Math.min(y1Dirty, yOrigin + getPixelHeight());
+            if (x0 < x1 && y0 < y1) {
+                pending.add(x0, y0, x1, y1);
+            }
+        }
+
         public void reset(State base) {
             hStart = base.hStart;
             hEnd = base.hEnd;
@@ -240,10 +255,41 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
         }
     }
 
+    /**
+     * union of the displayed areas dirtied since the last refresh
+     */
+    private static class Rect {
+        public int x0, y0, x1, y1;
+
+        public boolean isEmpty() {
+            return x0 == x1;
+        }
+
+        public void add(int x0, int y0, int x1, int y1) {
+            if (isEmpty()) {
+                this.x0 = x0;
+                this.y0 = y0;
+                this.x1 = x1;
+                this.y1 = y1;
+            } else {
+                if (x0 < this.x0) this.x0 = x0;
+                if (y0 < this.y0) this.y0 = y0;
+                if (x1 > this.x1) this.x1 = x1;
+                if (y1 > this.y1) this.y1 = y1;
+            }
+        }
+
+        public void clear() {
+            x0 = x1;
+        }
+    }
+
     protected State states[] = new State[]{new State(), new State()};
+    private final Rect pendingDirty = new Rect();
     protected int currentState = 0;
     protected boolean interlaceField;
     protected boolean forceUpdate;
+    protected volatile boolean held;
 
     public void preAsync() {
         updateState();
@@ -265,6 +311,14 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
         updateState();
     }
 
+    public void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    public void present() {
+        display.refresh();
+    }
+
     protected State getState() {
         return states[currentState];
     }
@@ -277,8 +331,11 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
         currentState = currentState ^ 1;
         State s = getState();
         boolean refresh = (forceUpdate || !states[0].matches(states[1]));
+        // a mode/origin change (or a forced update) always redraws everything
+        boolean full = refresh;
         if (!refresh && s.isDirty()) {
             hadDirty = true;
+            s.addVisibleDirty(pendingDirty);
         }
         long time = quartz.nanoTime();
         if (!refresh && hadDirty && DIRTY_REFRESH_PERIOD < (time - lastRefreshTime)) {
@@ -293,12 +350,21 @@ public class DefaultDisplayManager extends JPSXComponent implements DisplayManag
                 log.debug("UPDATING DISPLAY BECAUSE HAVEN'T HAD ONE");
             }
             refresh = true;
+            full = true;
         }
         if (refresh) {
             lastRefreshTime = time;
             //System.out.println("UPDATING DISPLAY: "+s.toString());
             forceUpdate = false;
-            display.refresh();
+            if (held) {
+                // left to present()
+            } else if (full || pendingDirty.isEmpty()) {
+                display.refresh();
+            } else {
+                display.refresh(pendingDirty.x0, pendingDirty.y0, pendingDirty.x1 - pendingDirty.x0, pendingDirty.y1 - pendingDirty.y0);
+            }
+            pendingDirty.clear();
+            hadDirty = false;
         } else {
 //            System.out.println("NOT UPDATING DISPLAY: "+s.toString());
         }
@@ -25,6 +25,7 @@ import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.generic.ClassGen;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.FieldGen;
+import org.apache.log4j.Logger;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.addressspace.AddressSpaceRegistrar;
 import org.jpsx.api.components.core.addressspace.MemoryMapped;
@@ -32,9 +33,15 @@ import org.jpsx.api.components.core.addressspace.Pollable;
 import org.jpsx.api.components.core.cpu.PollBlockListener;
 import org.jpsx.api.components.core.dma.DMAController;
 import org.jpsx.api.components.hardware.gpu.Display;
+import org.jpsx.api.components.hardware.gpu.DisplayFlipListener;
 import org.jpsx.api.components.hardware.gpu.DisplayManager;
 import org.jpsx.bootstrap.classloader.ClassGenerator;
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.bootstrap.classloader.JPSXClassLoader;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.DMAChannelOwnerBase;
@@ -50,6 +57,7 @@ import java.net.URL;
 // todo convert subrange back to 16 bit.
 
 public class GPU extends SingletonJPSXComponent implements ClassGenerator, MemoryMapped, PollBlockListener, Pollable {
+    private static final Logger log = Logger.getLogger("GPU");
     private static final boolean ignoreGPU = false;
     private static final boolean dumpGPUD = false;
     private static final boolean debugTransfers = false;
@@ -118,6 +126,8 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
 
     private static DisplayManager manager;
 
+    private static DisplayFlipListener displayFlipListeners;
+
     private static final int[] dma16flags;
 
     private static AddressSpace addressSpace;
@@ -132,6 +142,7 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
         addressSpace = CoreComponentConnections.ADDRESS_SPACE.resolve();
         display = HardwareComponentConnections.DISPLAY.resolve();
         manager = HardwareComponentConnections.DISPLAY_MANAGER.resolve();
+        displayFlipListeners = HardwareComponentConnections.DISPLAY_FLIP_LISTENERS.resolve();
     }
 
 
@@ -228,6 +239,7 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
 
     private static final byte[][] _4bitTexturePages = new byte[32][];
     private static final byte[][] _8bitTexturePages = new byte[32][];
+    private static int[] restoredVRAM;
 
     public void init() {
         super.init();
@@ -240,6 +252,129 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
         CoreComponentConnections.POLL_BLOCK_LISTENERS.add(this);
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new GPUDMAChannel());
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new OTCDMAChannel());
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("GPU");
+                saveGPUState(out);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("GPU");
+                loadGPUState(in);
+            }
+        });
+    }
+
+    private static void saveGPUState(SnapshotWriter out) {
+        out.writeInt(dmaMode);
+        out.writeInt(maskMode);
+        out.writeInt(drawMode);
+        out.writeInt(m_gpudState);
+        out.writeInt(m_gpudCommand);
+        out.writeInt(cmdBufferUsed);
+        out.writeInt(cmdBufferTarget);
+        out.writeInts(m_cmdBuffer, 0, CMD_BUFFER_SIZE);
+        out.writeInt(m_drawOffsetX);
+        out.writeInt(m_drawOffsetY);
+        out.writeInt(m_clipLeft);
+        out.writeInt(m_clipRight);
+        out.writeInt(m_clipTop);
+        out.writeInt(m_clipBottom);
+        out.writeInt(textureWindowValue);
+        out.writeInt(m_dmaRGB24Index);
+        out.writeInt(m_dmaRGB24LastPixel);
+        out.writeInt(m_dmaRGB24LastDWord);
+        out.writeInt(m_dmaX);
+        out.writeInt(m_dmaY);
+        out.writeInt(m_dmaOriginX);
+        out.writeInt(m_dmaOriginY);
+        out.writeInt(m_dmaW);
+        out.writeInt(m_dmaH);
+        out.writeInt(m_dmaDWordsRemaining);
+        out.writeInt(m_dmaWordsRemaining);
+        out.writeInt(displayEnableValue);
+        out.writeInt(displayModeValue);
+        out.writeInt(displayOriginValue);
+        out.writeInt(monitorLeftRightValue);
+        out.writeInt(monitorTopBottomValue);
+        int[] vram = display.acquireDisplayBuffer();
+        try {
+            out.writeInt(vram.length);
+            out.writeInts(vram, 0, vram.length);
+        } finally {
+            display.releaseDisplayBuffer();
+        }
+    }
+
+    private static void loadGPUState(SnapshotReader in) {
+        dmaMode = in.readInt();
+        maskMode = in.readInt();
+        drawMode = in.readInt();
+        m_gpudState = in.readInt();
+        m_gpudCommand = in.readInt();
+        cmdBufferUsed = in.readInt();
+        cmdBufferTarget = in.readInt();
+        in.readInts(m_cmdBuffer, 0, CMD_BUFFER_SIZE);
+        m_drawOffsetX = in.readInt();
+        m_drawOffsetY = in.readInt();
+        m_clipLeft = in.readInt();
+        m_clipRight = in.readInt();
+        m_clipTop = in.readInt();
+        m_clipBottom = in.readInt();
+        gpudSetTextureWindow(new int[]{in.readInt()}, 0, 1);
+        m_dmaRGB24Index = in.readInt();
+        m_dmaRGB24LastPixel = in.readInt();
+        m_dmaRGB24LastDWord = in.readInt();
+        m_dmaX = in.readInt();
+        m_dmaY = in.readInt();
+        m_dmaOriginX = in.readInt();
+        m_dmaOriginY = in.readInt();
+        m_dmaW = in.readInt();
+        m_dmaH = in.readInt();
+        m_dmaDWordsRemaining = in.readInt();
+        m_dmaWordsRemaining = in.readInt();
+        // the display settings live in the display manager, so are reapplied from the register values
+        gpusSetDispEnable(in.readInt());
+        gpusSetDisplayMode(in.readInt());
+        gpusSetDisplayOrigin(in.readInt());
+        gpusSetMonitorLeftRight(in.readInt());
+        gpusSetMonitorTopBottom(in.readInt());
+        int[] vram = display.acquireDisplayBuffer();
+        try {
+            if (in.readInt() != vram.length) {
+                throw new SnapshotException("Snapshot VRAM size does not match the display's");
+            }
+            if (restoredVRAM == null || restoredVRAM.length != vram.length) {
+                restoredVRAM = new int[vram.length];
+            }
+            in.readInts(restoredVRAM, 0, vram.length);
+            // texture pages decoded from VRAM which hasn't changed are still good
+            boolean[] changed = new boolean[0x20];
+            for (int page = 0; page < 0x20; page++) {
+                int offset = (page & 15) * 64 + (page & 0x10) * 1024 * 16;
+                for (int y = 0; y < 256 && !changed[page]; y++, offset += 1024) {
+                    for (int x = 0; x < 64; x++) {
+                        if (vram[offset + x] != restoredVRAM[offset + x]) {
+                            changed[page] = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            System.arraycopy(restoredVRAM, 0, vram, 0, vram.length);
+            for (int page = 0; page < 0x20; page++) {
+                if (changed[page]) {
+                    _4bitTexturePages[page] = null;
+                }
+                // 8 bit pages are twice as wide
+                if (changed[page] || ((page & 15) != 15 && changed[page + 1])) {
+                    _8bitTexturePages[page] = null;
+                }
+            }
+        } finally {
+            display.releaseDisplayBuffer();
+        }
+        manager.dirtyRectangle(0, 0, 1024, 512);
     }
 
     private static int m_gpudFunctionArgumentCount[] = {
@@ -503,6 +638,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
 
     private static boolean m_displayEnabled;
 
+    // the values last written to the display control and texture window registers, for snapshots
+    private static int displayEnableValue;
+    private static int displayModeValue;
+    private static int displayOriginValue;
+    private static int monitorLeftRightValue;
+    private static int monitorTopBottomValue;
+    private static int textureWindowValue;
+
 
     public void registerAddresses(AddressSpaceRegistrar registrar) {
         registrar.registerWrite32Callback(ADDR_GPU_CTRLSTATUS, GPU.class, "gpuCtrlWrite32");
@@ -1026,43 +1169,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                                         if (_renderSemiType != SEMI_NONE && (_renderTextureType == TEXTURE_NONE || (src & 0x01000000) != 0)) {
                                             // semi transparency
                                             int dest = videoRAM[i];
-                                            int destB = dest & 0xff;
-                                            int destG = (dest >> 8) & 0xff;
-                                            int destR = (dest >> 16) & 0xff;
-                                            int srcB = src & 0xff;
-                                            int srcG = (src >> 8) & 0xff;
-                                            int srcR = (src >> 16) & 0xff;
-                                            int tmpR, tmpG, tmpB;
-
                                             if (_renderSemiType == SEMI_5P5) {
-                                                tmpR = (srcR + destR) >> 1;
-                                                tmpG = (srcG + destG) >> 1;
-                                                tmpB = (srcB + destB) >> 1;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend5P5(dest, src);
                                             } else if (_renderSemiType == SEMI_10P10) {
-                                                tmpR = srcR + destR;
-                                                tmpG = srcG + destG;
-                                                tmpB = srcB + destB;
-                                                if (tmpR > 255) tmpR = 255;
-                                                if (tmpG > 255) tmpG = 255;
-                                                if (tmpB > 255) tmpB = 255;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10P10(dest, src);
                                             } else if (_renderSemiType == SEMI_10M10) {
-                                                tmpR = destR - srcR;
-                                                tmpG = destG - srcG;
-                                                tmpB = destB - srcB;
-                                                if (tmpR < 0) tmpR = 0;
-                                                if (tmpG < 0) tmpG = 0;
-                                                if (tmpB < 0) tmpB = 0;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10M10(dest, src);
                                             } else if (_renderSemiType == SEMI_10P25) {
-                                                tmpR = destR + (srcR >> 2);
-                                                tmpG = destG + (srcG >> 2);
-                                                tmpB = destB + (srcB >> 2);
-                                                if (tmpR > 255) tmpR = 255;
-                                                if (tmpG > 255) tmpG = 255;
-                                                if (tmpB > 255) tmpB = 255;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10P25(dest, src);
                                             }
                                         }
 
@@ -1195,43 +1309,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                                         if (_renderSemiType != SEMI_NONE && (_renderTextureType == TEXTURE_NONE || (src & 0x01000000) != 0)) {
                                             // semi transparency
                                             int dest = videoRAM[i];
-                                            int destB = dest & 0xff;
-                                            int destG = (dest >> 8) & 0xff;
-                                            int destR = (dest >> 16) & 0xff;
-                                            int srcB = src & 0xff;
-                                            int srcG = (src >> 8) & 0xff;
-                                            int srcR = (src >> 16) & 0xff;
-                                            int tmpR, tmpG, tmpB;
-
                                             if (_renderSemiType == SEMI_5P5) {
-                                                tmpR = (srcR + destR) >> 1;
-                                                tmpG = (srcG + destG) >> 1;
-                                                tmpB = (srcB + destB) >> 1;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend5P5(dest, src);
                                             } else if (_renderSemiType == SEMI_10P10) {
-                                                tmpR = srcR + destR;
-                                                tmpG = srcG + destG;
-                                                tmpB = srcB + destB;
-                                                if (tmpR > 255) tmpR = 255;
-                                                if (tmpG > 255) tmpG = 255;
-                                                if (tmpB > 255) tmpB = 255;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10P10(dest, src);
                                             } else if (_renderSemiType == SEMI_10M10) {
-                                                tmpR = destR - srcR;
-                                                tmpG = destG - srcG;
-                                                tmpB = destB - srcB;
-                                                if (tmpR < 0) tmpR = 0;
-                                                if (tmpG < 0) tmpG = 0;
-                                                if (tmpB < 0) tmpB = 0;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10M10(dest, src);
                                             } else if (_renderSemiType == SEMI_10P25) {
-                                                tmpR = destR + (srcR >> 2);
-                                                tmpG = destG + (srcG >> 2);
-                                                tmpB = destB + (srcB >> 2);
-                                                if (tmpR > 255) tmpR = 255;
-                                                if (tmpG > 255) tmpG = 255;
-                                                if (tmpB > 255) tmpB = 255;
-                                                src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                                src = SemiTransparency.blend10P25(dest, src);
                                             }
                                         }
 
@@ -1538,43 +1623,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                             if (_renderSemiType != SEMI_NONE && (_renderTextureType == TEXTURE_NONE || (src & 0x01000000) != 0)) {
                                 // semi transparency
                                 int dest = videoRAM[i];
-                                int destB = dest & 0xff;
-                                int destG = (dest >> 8) & 0xff;
-                                int destR = (dest >> 16) & 0xff;
-                                int srcB = src & 0xff;
-                                int srcG = (src >> 8) & 0xff;
-                                int srcR = (src >> 16) & 0xff;
-                                int tmpR, tmpG, tmpB;
-
                                 if (_renderSemiType == SEMI_5P5) {
-                                    tmpR = (srcR + destR) >> 1;
-                                    tmpG = (srcG + destG) >> 1;
-                                    tmpB = (srcB + destB) >> 1;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend5P5(dest, src);
                                 } else if (_renderSemiType == SEMI_10P10) {
-                                    tmpR = srcR + destR;
-                                    tmpG = srcG + destG;
-                                    tmpB = srcB + destB;
-                                    if (tmpR > 255) tmpR = 255;
-                                    if (tmpG > 255) tmpG = 255;
-                                    if (tmpB > 255) tmpB = 255;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10P10(dest, src);
                                 } else if (_renderSemiType == SEMI_10M10) {
-                                    tmpR = destR - srcR;
-                                    tmpG = destG - srcG;
-                                    tmpB = destB - srcB;
-                                    if (tmpR < 0) tmpR = 0;
-                                    if (tmpG < 0) tmpG = 0;
-                                    if (tmpB < 0) tmpB = 0;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10M10(dest, src);
                                 } else if (_renderSemiType == SEMI_10P25) {
-                                    tmpR = destR + (srcR >> 2);
-                                    tmpG = destG + (srcG >> 2);
-                                    tmpB = destB + (srcB >> 2);
-                                    if (tmpR > 255) tmpR = 255;
-                                    if (tmpG > 255) tmpG = 255;
-                                    if (tmpB > 255) tmpB = 255;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10P25(dest, src);
                                 }
                             }
 
@@ -1739,43 +1795,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                             if (_renderSemiType != SEMI_NONE && (_renderTextureType == TEXTURE_NONE || (src & 0x01000000) != 0)) {
                                 // semi transparency
                                 int dest = videoRAM[i];
-                                int destB = dest & 0xff;
-                                int destG = (dest >> 8) & 0xff;
-                                int destR = (dest >> 16) & 0xff;
-                                int srcB = src & 0xff;
-                                int srcG = (src >> 8) & 0xff;
-                                int srcR = (src >> 16) & 0xff;
-                                int tmpR, tmpG, tmpB;
-
                                 if (_renderSemiType == SEMI_5P5) {
-                                    tmpR = (srcR + destR) >> 1;
-                                    tmpG = (srcG + destG) >> 1;
-                                    tmpB = (srcB + destB) >> 1;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend5P5(dest, src);
                                 } else if (_renderSemiType == SEMI_10P10) {
-                                    tmpR = srcR + destR;
-                                    tmpG = srcG + destG;
-                                    tmpB = srcB + destB;
-                                    if (tmpR > 255) tmpR = 255;
-                                    if (tmpG > 255) tmpG = 255;
-                                    if (tmpB > 255) tmpB = 255;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10P10(dest, src);
                                 } else if (_renderSemiType == SEMI_10M10) {
-                                    tmpR = destR - srcR;
-                                    tmpG = destG - srcG;
-                                    tmpB = destB - srcB;
-                                    if (tmpR < 0) tmpR = 0;
-                                    if (tmpG < 0) tmpG = 0;
-                                    if (tmpB < 0) tmpB = 0;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10M10(dest, src);
                                 } else if (_renderSemiType == SEMI_10P25) {
-                                    tmpR = destR + (srcR >> 2);
-                                    tmpG = destG + (srcG >> 2);
-                                    tmpB = destB + (srcB >> 2);
-                                    if (tmpR > 255) tmpR = 255;
-                                    if (tmpG > 255) tmpG = 255;
-                                    if (tmpB > 255) tmpB = 255;
-                                    src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                                    src = SemiTransparency.blend10P25(dest, src);
                                 }
                             }
 
@@ -1908,43 +1935,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                     if (_renderSemiType != SEMI_NONE) {
                         // semi transparency
                         int dest = videoRAM[i];
-                        int destB = dest & 0xff;
-                        int destG = (dest >> 8) & 0xff;
-                        int destR = (dest >> 16) & 0xff;
-                        int srcB = src & 0xff;
-                        int srcG = (src >> 8) & 0xff;
-                        int srcR = (src >> 16) & 0xff;
-                        int tmpR, tmpG, tmpB;
-
                         if (_renderSemiType == SEMI_5P5) {
-                            tmpR = (srcR + destR) >> 1;
-                            tmpG = (srcG + destG) >> 1;
-                            tmpB = (srcB + destB) >> 1;
-                            src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                            src = SemiTransparency.blend5P5(dest, src);
                         } else if (_renderSemiType == SEMI_10P10) {
-                            tmpR = srcR + destR;
-                            tmpG = srcG + destG;
-                            tmpB = srcB + destB;
-                            if (tmpR > 255) tmpR = 255;
-                            if (tmpG > 255) tmpG = 255;
-                            if (tmpB > 255) tmpB = 255;
-                            src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                            src = SemiTransparency.blend10P10(dest, src);
                         } else if (_renderSemiType == SEMI_10M10) {
-                            tmpR = destR - srcR;
-                            tmpG = destG - srcG;
-                            tmpB = destB - srcB;
-                            if (tmpR < 0) tmpR = 0;
-                            if (tmpG < 0) tmpG = 0;
-                            if (tmpB < 0) tmpB = 0;
-                            src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                            src = SemiTransparency.blend10M10(dest, src);
                         } else if (_renderSemiType == SEMI_10P25) {
-                            tmpR = destR + (srcR >> 2);
-                            tmpG = destG + (srcG >> 2);
-                            tmpB = destB + (srcB >> 2);
-                            if (tmpR > 255) tmpR = 255;
-                            if (tmpG > 255) tmpG = 255;
-                            if (tmpB > 255) tmpB = 255;
-                            src = (tmpR << 16) | (tmpG << 8) | tmpB;
+                            src = SemiTransparency.blend10P25(dest, src);
                         }
                     }
 
@@ -1981,7 +1979,8 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
             }
 
             if (m_gpudCommand > 2 && m_gpudCommand < 0x80) {
-                // todo; dirty based on clip rect
+                // primitives can only touch pixels within the clip rect
+                manager.dirtyRectangle(m_clipLeft, m_clipTop, m_clipRight - m_clipLeft, m_clipBottom - m_clipTop);
             }
 
             switch (m_gpudCommand & 0xe0) {
@@ -2249,6 +2248,9 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
             h = 512 - y;
         }
 
+        if (w > 0 && h > 0) {
+            manager.dirtyRectangle(x, y, w, h);
+        }
         int base = x + y * 1024;
         int color = b | (g << 8) | (r << 16);
         for (; h > 0; h--) {
@@ -8384,6 +8386,7 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
     }
 
     public static int gpudSetTextureWindow(int[] data, int offset, int size) {
+        textureWindowValue = data[offset];
         if (!supportTextureWindow) {
             noTextureWindow = true;
             return 0;
@@ -8698,6 +8701,7 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
     }
 
     private static void gpusSetDispEnable(int val) {
+        displayEnableValue = val;
         m_displayEnabled = ((val & 1) == 0) ? true : false;
         manager.setBlanked(!m_displayEnabled);
         //System.out.println("GPUS SET DISP ENABLE "+m_displayEnabled);
@@ -8709,24 +8713,29 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
     }
 
     private static void gpusSetDisplayOrigin(int val) {
+        displayOriginValue = val;
         int originX = val & 0x3ff;
         int originY = (val >> 10) & 0x1ff;
         manager.setOrigin(originX, originY);
+        displayFlipListeners.displayFlipped();
     }
 
     private static void gpusSetMonitorLeftRight(int val) {
+        monitorLeftRightValue = val;
         int l = val & 0xfff;
         int r = (val >> 12) & 0xfff;
         manager.setHorizontalTiming(l, r);
     }
 
     private static void gpusSetMonitorTopBottom(int val) {
+        monitorTopBottomValue = val;
         int t = val & 0x3ff;
         int b = (val >> 10) & 0x3ff;
         manager.setVerticalTiming(t, b);
     }
 
     private static void gpusSetDisplayMode(int val) {
+        displayModeValue = val;
         displayMode = ((val & 0x3f) << 1) | ((val & 0x40 >> 6));
 
         boolean doubleY = 0 != (val & 0x4);
@@ -8826,13 +8835,13 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                         offset += count;
                         size -= count;
                     } else {
-                        // use cmdBuffer for filling
+                        // command is split across packets; use cmdBuffer for filling
                         for (int i = 0; i < size; i++) {
-                            m_cmdBuffer[i++] = mem[offset++];
+                            m_cmdBuffer[i] = mem[offset++];
                         }
                         cmdBufferUsed = size;
                         cmdBufferTarget = count;
-                        m_gpudState = GPUD_CMD_EXTRA;
+                        m_gpudState = GPUD_CMD_FILLING;
                         size = 0;
                     }
                     break;
@@ -8861,21 +8870,102 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
 
     private static AddressSpace.ResolveResult m_resolveResult = new AddressSpace.ResolveResult();
 
+    // a chain can't visit more distinct nodes than there are words in main RAM
+    private static final int MAX_CHAIN_NODES = AddressSpace.RAM_SIZE >> 2;
+
+    // statistics for linked list DMA, for profiling
+    private static int lastChainNodes;
+    private static int lastChainPackets;
+    private static int lastChainWords;
+    private static long totalChains;
+    private static long totalChainNodes;
+    private static long totalChainPackets;
+    private static long totalChainWords;
+
+    /**
+     * Walk an ordering table in main RAM. Packet data is handed to the GPU in place; only commands split
+     * across packets are copied into m_cmdBuffer. A chain which loops back on itself (which would hang a
+     * real PSX) is detected and abandoned rather than hanging the emulator.
+     */
     private static void handleGPUDataChain(int address) {
         address &= 0xffffff;
         int[] mainRAM = addressSpace.getMainRAM();
+        int nodes = 0;
+        int packets = 0;
+        int words = 0;
+        // Brent's cycle detection; compare against a node saved at each power of two steps
+        int saved = -1;
+        int power = 1;
+        int steps = 0;
         while (address < AddressSpace.RAM_SIZE) {
-            int head = mainRAM[address >> 2];
+            int index = address >> 2;
+            int head = mainRAM[index];
             //System.out.println("HEAD "+MiscUtil.toHex( head, 8));
             int count = (head >> 24) & 0xff;
+            nodes++;
             if (count > 0) {
-                handleGPUData(mainRAM, (address >> 2) + 1, count);
+                if (index + count >= mainRAM.length) {
+                    count = mainRAM.length - 1 - index;
+                }
+                packets++;
+                words += count;
+                handleGPUData(mainRAM, index + 1, count);
             }
             address = head & 0xffffff;
             // TODO: maybe a temp thing
             if ((address & 0xffffff) == 0)
                 break;
+            if (address == saved) {
+                log.warn("GPU DMA chain loops at " + MiscUtil.toHex(address, 8) + " after " + nodes + " nodes; abandoning");
+                break;
+            }
+            if (++steps == power) {
+                saved = address;
+                power <<= 1;
+                steps = 0;
+            }
+            if (nodes >= MAX_CHAIN_NODES) {
+                log.warn("GPU DMA chain exceeds " + MAX_CHAIN_NODES + " nodes; abandoning");
+                break;
+            }
         }
+        lastChainNodes = nodes;
+        lastChainPackets = packets;
+        lastChainWords = words;
+        totalChains++;
+        totalChainNodes += nodes;
+        totalChainPackets += packets;
+        totalChainWords += words;
+        if (debugTransfers)
+            System.out.println("DMA chain: " + nodes + " nodes, " + packets + " packets, " + words + " words");
+    }
+
+    public static int getLastChainNodes() {
+        return lastChainNodes;
+    }
+
+    public static int getLastChainPackets() {
+        return lastChainPackets;
+    }
+
+    public static int getLastChainWords() {
+        return lastChainWords;
+    }
+
+    public static long getTotalChains() {
+        return totalChains;
+    }
+
+    public static long getTotalChainNodes() {
+        return totalChainNodes;
+    }
+
+    public static long getTotalChainPackets() {
+        return totalChainPackets;
+    }
+
+    public static long getTotalChainWords() {
+        return totalChainWords;
     }
 
     public static final int makePixel(int val) {
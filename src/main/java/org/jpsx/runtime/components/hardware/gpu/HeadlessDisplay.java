@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gpu;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.hardware.gpu.Display;
+import org.jpsx.api.components.hardware.gpu.DisplayFlipListener;
+import org.jpsx.api.components.hardware.gpu.DisplayManager;
+import org.jpsx.api.components.hardware.gpu.VSyncListener;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+import org.jpsx.runtime.util.MiscUtil;
+import org.jpsx.runtime.util.Timing;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Display which never opens a window, for batch runs and benchmarking.
+ * <p/>
+ * Optionally it computes a hash of the visible area of every frame (for regression checks) and dumps every
+ * Nth frame as a PNG. A frame is taken each time the game sets the display origin, on the R3000 thread, rather than
+ * on a refresh or a vsync, since when those happen relative to the drawing depends on the speed of the host. It also
+ * logs the refresh and vsync rates periodically.
+ */
+public class HeadlessDisplay extends JPSXComponent implements Display, DisplayFlipListener, VSyncListener {
+    private static final Logger log = Logger.getLogger("Display");
+
+    public static final String HASH_FRAMES_PROPERTY = "hashFrames";
+    public static final String HASH_FILE_PROPERTY = "hashFile";
+    public static final String DUMP_EVERY_PROPERTY = "dumpEvery";
+    public static final String DUMP_DIR_PROPERTY = "dumpDir";
+    public static final String REPORT_PERIOD_PROPERTY = "reportPeriod";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // the display buffer should be at least 1024*512 + 192 (+192 due to current texture page problem in GPU).
+    private final int[] ram = new int[1024 * 513];
+    private DisplayManager displayManager;
+
+    private boolean hashFrames;
+    private PrintWriter hashWriter;
+    private int dumpEvery;
+    private File dumpDir;
+    private long reportPeriod;
+
+    // frames are only counted, hashed and dumped on the R3000 thread
+    private long frameCount;
+    private long lastHash;
+    private long refreshCount;
+    // counted on the scheduler's action thread
+    private volatile long vsyncCount;
+    private long reportStartTime;
+    private long reportStartRefresh;
+    private long reportStartVSync;
+
+    public HeadlessDisplay() {
+        super("JPSX Headless Display");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        HardwareComponentConnections.DISPLAY.set(this);
+        HardwareComponentConnections.DISPLAY_FLIP_LISTENERS.add(this);
+        HardwareComponentConnections.VSYNC_LISTENERS.add(this);
+        hashFrames = getBooleanProperty(HASH_FRAMES_PROPERTY, false);
+        dumpEvery = getIntProperty(DUMP_EVERY_PROPERTY, 0);
+        dumpDir = new File(getProperty(DUMP_DIR_PROPERTY, "."));
+        reportPeriod = getIntProperty(REPORT_PERIOD_PROPERTY, 5) * 1000000000L;
+    }
+
+    @Override
+    public void resolveConnections() {
+        super.resolveConnections();
+        displayManager = HardwareComponentConnections.DISPLAY_MANAGER.resolve();
+    }
+
+    public void initDisplay() {
+        String hashFile = getProperty(HASH_FILE_PROPERTY, null);
+        if (hashFile != null) {
+            try {
+                hashWriter = new PrintWriter(new FileWriter(hashFile));
+            } catch (IOException e) {
+                log.error("Unable to open frame hash file " + hashFile, e);
+            }
+        }
+        if (dumpEvery > 0 && !dumpDir.isDirectory() && !dumpDir.mkdirs()) {
+            log.error("Unable to create frame dump directory " + dumpDir + "; not dumping frames");
+            dumpEvery = 0;
+        }
+        reportStartTime = Timing.nanos();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (hashWriter != null) {
+            hashWriter.close();
+            hashWriter = null;
+        }
+    }
+
+    public int[] acquireDisplayBuffer() {
+        return ram;
+    }
+
+    public void releaseDisplayBuffer() {
+    }
+
+    /**
+     * @return the hash of the visible area of the last frame
+     */
+    public long getLastHash() {
+        return lastHash;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public void refresh() {
+        GPU.setVRAMFormat(displayManager.getRGB24bit());
+        refreshCount++;
+        long now = Timing.nanos();
+        if (now - reportStartTime >= reportPeriod) {
+            double seconds = (now - reportStartTime) / 1000000000.0;
+            long vsyncs = vsyncCount;
+            log.info("Display refreshes: " + refreshCount + " total, " + Math.round((refreshCount - reportStartRefresh) / seconds) + "/s; vsyncs: " +
+                    Math.round((vsyncs - reportStartVSync) / seconds) + "/s; frames: " + frameCount);
+            reportStartTime = now;
+            reportStartRefresh = refreshCount;
+            reportStartVSync = vsyncs;
+        }
+    }
+
+    public void vsync() {
+        vsyncCount++;
+    }
+
+    /**
+     * Hash and dump the visible area, as the game flips to it. This is called on the R3000 thread from the GPU, so
+     * nothing is drawing at the time, and the frame seen is the one the game has finished with.
+     */
+    public void displayFlipped() {
+        if (!hashFrames && dumpEvery == 0) {
+            frameCount++;
+            return;
+        }
+        boolean rgb24 = displayManager.getRGB24bit();
+        // whether VRAM is in the 24 bit format otherwise depends on when the last refresh happened
+        GPU.setVRAMFormat(rgb24);
+        int x = displayManager.getXOrigin();
+        int y = displayManager.getYOrigin();
+        int w = displayManager.getPixelWidth();
+        if (rgb24) w = (w * 3) / 2;
+        int h = displayManager.getPixelHeight();
+        if (x + w > 1024) w = 1024 - x;
+        if (y + h > 512) h = 512 - y;
+        boolean blanked = displayManager.getBlanked() || w <= 0 || h <= 0;
+
+        frameCount++;
+        if (hashFrames) {
+            lastHash = blanked ? FNV_OFFSET_BASIS : hash(x, y, w, h);
+            if (hashWriter != null) {
+                hashWriter.println(frameCount + " " + MiscUtil.toHex((int) (lastHash >> 32), 8) + MiscUtil.toHex((int) lastHash, 8));
+            }
+        }
+        if (dumpEvery > 0 && !blanked && (frameCount % dumpEvery) == 0) {
+            dump(x, y, w, h);
+        }
+    }
+
+    /**
+     * FNV-1a over the three colour bytes of each pixel, so the flag bits the GPU keeps in VRAM don't affect the result
+     */
+    private long hash(int x, int y, int w, int h) {
+        long rc = FNV_OFFSET_BASIS;
+        for (int row = 0; row < h; row++) {
+            int base = x + (y + row) * 1024;
+            for (int i = base; i < base + w; i++) {
+                int pixel = ram[i];
+                rc = (rc ^ (pixel & 0xff)) * FNV_PRIME;
+                rc = (rc ^ ((pixel >> 8) & 0xff)) * FNV_PRIME;
+                rc = (rc ^ ((pixel >> 16) & 0xff)) * FNV_PRIME;
+            }
+        }
+        return rc;
+    }
+
+    private void dump(int x, int y, int w, int h) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(ram, x + (y + row) * 1024, pixels, row * w, w);
+        }
+        File file = new File(dumpDir, "frame" + frameCount + ".png");
+        try {
+            ImageIO.write(image, "png", file);
+        } catch (IOException e) {
+            log.warn("Unable to write frame dump " + file, e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gpu;
+
+/**
+ * Semi-transparency blending of VRAM pixels, operating on all three 8 bit colour channels of the 0x00RRGGBB
+ * pixel at once (SWAR). The top bit of each channel is handled separately so that carries/borrows out of a
+ * channel can be detected and turned into saturation, rather than spilling into the next channel.
+ * <p/>
+ * Flag bits above the colour are ignored, and the result contains only the colour, exactly as if each channel
+ * had been blended and clamped individually.
+ * <p/>
+ * These are called from the template renderers, so must stay public.
+ */
+public class SemiTransparency {
+    private static final int COLOR_MASK = 0xffffff;
+    private static final int CHANNEL_HIGH_BITS = 0x808080;
+    private static final int CHANNEL_LOW_BITS = 0x7f7f7f;
+
+    /**
+     * (dest + src) / 2
+     */
+    public static int blend5P5(int dest, int src) {
+        dest &= COLOR_MASK;
+        src &= COLOR_MASK;
+        return (dest & src) + (((dest ^ src) & 0xfefefe) >>> 1);
+    }
+
+    /**
+     * dest + src
+     */
+    public static int blend10P10(int dest, int src) {
+        return addSaturate(dest & COLOR_MASK, src & COLOR_MASK);
+    }
+
+    /**
+     * dest - src
+     */
+    public static int blend10M10(int dest, int src) {
+        return subtractSaturate(dest & COLOR_MASK, src & COLOR_MASK);
+    }
+
+    /**
+     * dest + src / 4
+     */
+    public static int blend10P25(int dest, int src) {
+        return addSaturate(dest & COLOR_MASK, (src >>> 2) & 0x3f3f3f);
+    }
+
+    private static int addSaturate(int a, int b) {
+        int sum = ((a & CHANNEL_LOW_BITS) + (b & CHANNEL_LOW_BITS)) ^ ((a ^ b) & CHANNEL_HIGH_BITS);
+        int carry = ((a & b) | ((a | b) & ~sum)) & CHANNEL_HIGH_BITS;
+        // 0xff in each channel which overflowed
+        return sum | ((carry << 1) - (carry >>> 7));
+    }
+
+    private static int subtractSaturate(int a, int b) {
+        int diff = ((a | CHANNEL_HIGH_BITS) - (b & CHANNEL_LOW_BITS)) ^ ((a ^ ~b) & CHANNEL_HIGH_BITS);
+        int borrow = ((~a & b) | (~(a ^ b) & diff)) & CHANNEL_HIGH_BITS;
+        // clear each channel which underflowed
+        return diff & ~((borrow << 1) - (borrow >>> 7)) & COLOR_MASK;
+    }
+}
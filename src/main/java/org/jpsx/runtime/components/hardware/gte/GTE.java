@@ -22,7 +22,11 @@ import org.apache.bcel.generic.*;
 import org.apache.log4j.Logger;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.*;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.util.ClassUtil;
 import org.jpsx.runtime.util.MiscUtil;
@@ -255,6 +259,12 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         super("JPSX Geometry Transform Engine");
     }
 
+    /**
+     * if false, the GTE commands are always compiled as calls to the interpreter
+     */
+    public static final String PROPERTY_INLINE_COMMANDS = "inlineCommands";
+
+    private static boolean inlineCommands = true;
     private static AddressSpace addressSpace;
     private static R3000 r3000;
     private static int[] r3000regs;
@@ -1131,9 +1141,609 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         }
     }
 
+    // ---------------------------------------------------------------------------------------------------------------
+    // Inline compilation of the GTE commands. The code emitted is specialised for the command's field values, and
+    // if the FLAG value the command produces can't be observed (see isFlagLive) then the checks whose only effect is
+    // on FLAG are left out altogether
+
+    /**
+     * Determine whether the value the GTE command at the given address leaves in FLAG can be observed. We only look at
+     * the straight line code following the command; if that contains another command which resets FLAG (or a ctc2 which
+     * overwrites it) before a cfc2 which reads it, or before anything which might leave the compiled code, then FLAG
+     * is dead.
+     */
+    private static boolean isFlagLive(CompilationContext context, int address) {
+        int count = context.getFollowingInstructionCount();
+        for (int i = 1; i <= count; i++) {
+            int ci = addressSpace.internalRead32(address + (i << 2));
+            CPUInstruction inst = r3000.decodeInstruction(ci);
+            if (inst == i_cfc2 || inst == i_ctc2) {
+                if (R3000.Util.bits_rd(ci) + 32 == R_FLAG) {
+                    return inst == i_cfc2;
+                }
+            } else if (inst == i_cdp || inst == i_cc) {
+                // these accumulate into FLAG rather than resetting it
+                return true;
+            } else if (inst.getInterpreterClass() == GTE.class) {
+                if (inst != i_mfc2 && inst != i_mtc2 && inst != i_lwc2 && inst != i_swc2) {
+                    return false;
+                }
+            } else if (0 != (inst.getFlags() & (CPUInstruction.FLAG_BRANCH | CPUInstruction.FLAG_MAY_SIGNAL_EXCEPTION |
+                    CPUInstruction.FLAG_REQUIRES_COMPLETE_INTERPRETER_STATE | CPUInstruction.FLAG_INVALID))) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static void emitGetStatic(InstructionList il, ConstantPoolGen cp, String name) {
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, name, "I")));
+    }
+
+    private static void emitPutStatic(InstructionList il, ConstantPoolGen cp, String name) {
+        il.append(new PUTSTATIC(cp.addFieldref(CLASS, name, "I")));
+    }
+
+    private static void emitInvoke(InstructionList il, ConstantPoolGen cp, String name, String signature) {
+        il.append(new INVOKESTATIC(cp.addMethodref(CLASS, name, signature)));
+    }
+
+    private static void emitClearFlag(InstructionList il, ConstantPoolGen cp) {
+        il.append(new PUSH(cp, 0));
+        emitPutStatic(il, cp, "reg_flag");
+    }
+
+    /**
+     * push (long) matrix.m[row][col]
+     */
+    private static void emitMatrixElement(InstructionList il, ConstantPoolGen cp, String matrix, int row, int col) {
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, matrix, MATRIX_SIGNATURE)));
+        il.append(new GETFIELD(cp.addFieldref(MATRIX_CLASS, "m" + row + col, "I")));
+        il.append(new I2L());
+    }
+
+    /**
+     * push (long) element (1-3) of the vector selected by a GTE_V_ value
+     */
+    private static void emitVectorElement(InstructionList il, ConstantPoolGen cp, int v, int element) {
+        if (v == GTE_V_IR) {
+            emitGetStatic(il, cp, "reg_ir" + element);
+        } else {
+            il.append(new GETSTATIC(cp.addFieldref(CLASS, "reg_v" + (v / GTE_V_V1), VECTOR_SIGNATURE)));
+            il.append(new GETFIELD(cp.addFieldref(VECTOR_CLASS, element == 1 ? "x" : (element == 2 ? "y" : "z"), "I")));
+        }
+        il.append(new I2L());
+    }
+
+    /**
+     * push matrix row * vector as a long
+     */
+    private static void emitDotProduct(InstructionList il, ConstantPoolGen cp, String matrix, int row, int v) {
+        for (int col = 1; col <= 3; col++) {
+            emitMatrixElement(il, cp, matrix, row, col);
+            emitVectorElement(il, cp, v, col);
+            il.append(new LMUL());
+            if (col > 1) {
+                il.append(new LADD());
+            }
+        }
+    }
+
+    /**
+     * long value on the stack to int, as per A1/A2/A3
+     */
+    private static void emitA(InstructionList il, ConstantPoolGen cp, int index, boolean flagLive) {
+        if (flagLive) {
+            emitInvoke(il, cp, "A" + index, "(J)I");
+        } else {
+            il.append(new PUSH(cp, 12));
+            il.append(new LSHR());
+            il.append(new L2I());
+        }
+    }
+
+    private static void emitLimitB(InstructionList il, ConstantPoolGen cp, int index, boolean lm, boolean flagLive) {
+        if (flagLive) {
+            emitInvoke(il, cp, "LiB" + index + (lm ? "_1" : "_0"), "(I)I");
+        } else {
+            emitInvoke(il, cp, lm ? "LmB_1" : "LmB_0", "(I)I");
+        }
+    }
+
+    private static void emitLimit(InstructionList il, ConstantPoolGen cp, String limit, boolean flagLive) {
+        if (flagLive) {
+            emitInvoke(il, cp, "Li" + limit, "(I)I");
+        } else {
+            // G1 and G2 only differ in the flag bit
+            emitInvoke(il, cp, "Lm" + limit.substring(0, 1), "(I)I");
+        }
+    }
+
+    /**
+     * long value on the stack to int, as per LiF
+     */
+    private static void emitF(InstructionList il, ConstantPoolGen cp, boolean flagLive) {
+        if (flagLive) {
+            emitInvoke(il, cp, "LiF", "(J)I");
+        } else {
+            il.append(new PUSH(cp, 16));
+            il.append(new LSHR());
+            il.append(new L2I());
+        }
+    }
+
+    /**
+     * Store MAC1-3 from the stack (MAC3 on top), and the saturated IR1-3 values
+     */
+    private static void emitStoreMACAndIR(InstructionList il, ConstantPoolGen cp, boolean lm, boolean flagLive) {
+        for (int i = 3; i >= 1; i--) {
+            il.append(new DUP());
+            emitPutStatic(il, cp, "reg_mac" + i);
+            emitLimitB(il, cp, i, lm, flagLive);
+            emitPutStatic(il, cp, "reg_ir" + i);
+        }
+    }
+
+    /**
+     * push MAC1-3 (MAC3 on top) for the perspective transformation of the given vector
+     */
+    private static void emitRTPMAC(InstructionList il, ConstantPoolGen cp, int v, boolean flagLive) {
+        String[] translation = {"reg_trx", "reg_try", "reg_trz"};
+        for (int row = 1; row <= 3; row++) {
+            emitDotProduct(il, cp, "reg_rot", row, v);
+            emitGetStatic(il, cp, translation[row - 1]);
+            il.append(new I2L());
+            il.append(new PUSH(cp, 12));
+            il.append(new LSHL());
+            il.append(new LADD());
+            emitA(il, cp, row, flagLive);
+        }
+    }
+
+    /**
+     * With MAC1 and MAC2 on the stack, and the screen z already saturated on top of them, calculate and store the
+     * screen x and y, and IR0/MAC0.
+     * <p/>
+     * If this isn't the last of the vectors in an rtpt, the MAC and IR values will be overwritten, so we only
+     * calculate them if needed for FLAG
+     */
+    private static void emitRTPProjection(InstructionList il, CompilationContext context, String sx, String sy, boolean last, boolean flagLive) {
+        ConstantPoolGen cp = context.getConstantPoolGen();
+        int hsz = context.getTempLocal(0);
+
+        emitGetStatic(il, cp, "reg_h");
+        il.append(new SWAP());
+        emitInvoke(il, cp, "divide", "(II)I");
+        emitLimit(il, cp, "E", flagLive);
+        il.append(new I2L());
+        il.append(new LSTORE(hsz));
+
+        String[] axes = {sx, sy};
+        String[] offsets = {"reg_ofx", "reg_ofy"};
+        for (int i = 2; i >= 1; i--) {
+            if (last) {
+                il.append(new DUP());
+                emitPutStatic(il, cp, "reg_mac" + i);
+            }
+            emitLimitB(il, cp, i, false, flagLive);
+            if (last) {
+                il.append(new DUP());
+                emitPutStatic(il, cp, "reg_ir" + i);
+            }
+            il.append(new I2L());
+            il.append(new LLOAD(hsz));
+            il.append(new LMUL());
+            emitGetStatic(il, cp, offsets[i - 1]);
+            il.append(new I2L());
+            il.append(new LADD());
+            emitF(il, cp, flagLive);
+            emitLimit(il, cp, "G" + i, flagLive);
+            emitPutStatic(il, cp, axes[i - 1]);
+        }
+
+        if (last || flagLive) {
+            emitGetStatic(il, cp, "reg_dqb");
+            il.append(new I2L());
+            emitGetStatic(il, cp, "reg_dqa");
+            il.append(new I2L());
+            il.append(new LLOAD(hsz));
+            il.append(new LMUL());
+            il.append(new LADD());
+            emitF(il, cp, flagLive);
+            if (last) {
+                il.append(new DUP());
+                emitPutStatic(il, cp, "reg_mac0");
+            }
+            emitLimit(il, cp, "H", flagLive);
+            if (last) {
+                emitPutStatic(il, cp, "reg_ir0");
+            } else {
+                il.append(new POP());
+            }
+        }
+    }
+
+    private static void emitRTPS(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+        ConstantPoolGen cp = context.getConstantPoolGen();
+        if (0 == (ci & GTE_SF_MASK)) {
+            log.warn("RTPS with SF field!");
+        }
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        emitRTPMAC(il, cp, GTE_V_V0, flagLive);
+        il.append(new DUP());
+        emitPutStatic(il, cp, "reg_mac3");
+        il.append(new DUP());
+        emitLimitB(il, cp, 3, false, flagLive);
+        emitPutStatic(il, cp, "reg_ir3");
+
+        // shift the FIFOs
+        String[][] fifo = {
+                {"reg_szx", "reg_sz0", "reg_sz1", "reg_sz2"},
+                {"reg_sx0", "reg_sx1", "reg_sx2"},
+                {"reg_sy0", "reg_sy1", "reg_sy2"}};
+        for (String[] regs : fifo) {
+            for (int i = 0; i < regs.length - 1; i++) {
+                emitGetStatic(il, cp, regs[i + 1]);
+                emitPutStatic(il, cp, regs[i]);
+            }
+        }
+
+        emitLimit(il, cp, "D", flagLive);
+        il.append(new DUP());
+        emitPutStatic(il, cp, "reg_sz2");
+        emitRTPProjection(il, context, "reg_sx2", "reg_sy2", true, flagLive);
+    }
+
+    private static void emitRTPT(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+        ConstantPoolGen cp = context.getConstantPoolGen();
+        if (0 == (ci & GTE_SF_MASK)) {
+            log.warn("RTPS with SF field!");
+        }
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        int[] vectors = {GTE_V_V0, GTE_V_V1, GTE_V_V2};
+        for (int i = 0; i < 3; i++) {
+            boolean last = i == 2;
+            emitRTPMAC(il, cp, vectors[i], flagLive);
+            if (last) {
+                il.append(new DUP());
+                emitPutStatic(il, cp, "reg_mac3");
+                il.append(new DUP());
+                emitLimitB(il, cp, 3, false, flagLive);
+                emitPutStatic(il, cp, "reg_ir3");
+            } else if (flagLive) {
+                il.append(new DUP());
+                emitLimitB(il, cp, 3, false, flagLive);
+                il.append(new POP());
+            }
+            emitLimit(il, cp, "D", flagLive);
+            il.append(new DUP());
+            emitPutStatic(il, cp, "reg_sz" + i);
+            emitRTPProjection(il, context, "reg_sx" + i, "reg_sy" + i, last, flagLive);
+        }
+    }
+
+    private static void emitMVMVA(InstructionList il, ConstantPoolGen cp, int ci, boolean flagLive) {
+        String matrix;
+        switch (ci & GTE_MX_MASK) {
+            case GTE_MX_LIGHT:
+                matrix = "reg_ls";
+                break;
+            case GTE_MX_COLOR:
+                matrix = "reg_lc";
+                break;
+            default:
+                matrix = "reg_rot";
+                break;
+        }
+        String[] cv;
+        switch (ci & GTE_CV_MASK) {
+            case GTE_CV_TR:
+                cv = new String[]{"reg_trx", "reg_try", "reg_trz"};
+                break;
+            case GTE_CV_BK:
+                cv = new String[]{"reg_rbk", "reg_gbk", "reg_bbk"};
+                break;
+            case GTE_CV_FC:
+                cv = new String[]{"reg_rfc", "reg_gfc", "reg_bfc"};
+                break;
+            default:
+                cv = null;
+                break;
+        }
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        // all of MAC1-3 are calculated before IR1-3 are written, since they may be the input vector
+        for (int row = 1; row <= 3; row++) {
+            emitDotProduct(il, cp, matrix, row, ci & GTE_V_MASK);
+            if (0 != (ci & GTE_SF_MASK)) {
+                il.append(new PUSH(cp, 12));
+                il.append(new LSHR());
+            }
+            if (cv != null) {
+                emitGetStatic(il, cp, cv[row - 1]);
+                il.append(new I2L());
+                il.append(new LADD());
+            }
+            if (flagLive) {
+                il.append(new PUSH(cp, 12));
+                il.append(new LSHL());
+                emitA(il, cp, row, true);
+            } else {
+                // A(x << 12) without the checks is just the low 32 bits
+                il.append(new L2I());
+            }
+        }
+        emitStoreMACAndIR(il, cp, 0 != (ci & GTE_LM_MASK), flagLive);
+    }
+
+    private static void emitOP(InstructionList il, ConstantPoolGen cp, int ci, boolean flagLive) {
+        boolean sf = 0 != (ci & GTE_SF_MASK);
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        // MAC1 = D2*IR3 - D3*IR2, MAC2 = D3*IR1 - D1*IR3, MAC3 = D1*IR2 - D2*IR1
+        for (int i = 1; i <= 3; i++) {
+            int a = i % 3 + 1;
+            int b = a % 3 + 1;
+            emitMatrixElement(il, cp, "reg_rot", a, a);
+            emitGetStatic(il, cp, "reg_ir" + b);
+            il.append(new I2L());
+            il.append(new LMUL());
+            emitMatrixElement(il, cp, "reg_rot", b, b);
+            emitGetStatic(il, cp, "reg_ir" + a);
+            il.append(new I2L());
+            il.append(new LMUL());
+            il.append(new LSUB());
+            if (flagLive) {
+                if (!sf) {
+                    il.append(new PUSH(cp, 12));
+                    il.append(new LSHL());
+                }
+                emitA(il, cp, i, true);
+            } else {
+                if (sf) {
+                    il.append(new PUSH(cp, 12));
+                    il.append(new LSHR());
+                }
+                il.append(new L2I());
+            }
+        }
+        emitStoreMACAndIR(il, cp, 0 != (ci & GTE_LM_MASK), flagLive);
+    }
+
+    private static void emitSQR(InstructionList il, ConstantPoolGen cp, int ci, boolean flagLive) {
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        for (int i = 1; i <= 3; i++) {
+            emitGetStatic(il, cp, "reg_ir" + i);
+            il.append(new DUP());
+            il.append(new IMUL());
+            if (0 != (ci & GTE_SF_MASK)) {
+                il.append(new PUSH(cp, 12));
+                il.append(new ISHR());
+            }
+        }
+        // lm=0 isn't pertinent, since the values are positive
+        emitStoreMACAndIR(il, cp, true, flagLive);
+    }
+
+    private static void emitNCLIP(InstructionList il, ConstantPoolGen cp, boolean flagLive) {
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        // SX0*SY1 + SX1*SY2 + SX2*SY0 - SX0*SY2 - SX1*SY0 - SX2*SY1
+        for (int i = 0; i < 6; i++) {
+            int x = i % 3;
+            int y = (i < 3) ? (x + 1) % 3 : (x + 2) % 3;
+            emitGetStatic(il, cp, "reg_sx" + x);
+            emitGetStatic(il, cp, "reg_sy" + y);
+            il.append(new IMUL());
+            if (i > 0) {
+                il.append(i < 3 ? new IADD() : new ISUB());
+            }
+        }
+        emitPutStatic(il, cp, "reg_mac0");
+    }
+
+    private static void emitAVSZ(InstructionList il, ConstantPoolGen cp, String[] sz, String zsf, boolean flagLive) {
+        if (flagLive) {
+            emitClearFlag(il, cp);
+        }
+        emitGetStatic(il, cp, zsf);
+        il.append(new I2L());
+        for (int i = 0; i < sz.length; i++) {
+            emitGetStatic(il, cp, sz[i]);
+            if (i > 0) {
+                il.append(new IADD());
+            }
+        }
+        il.append(new PUSH(cp, 4));
+        il.append(new ISHL());
+        il.append(new I2L());
+        il.append(new LMUL());
+        emitF(il, cp, flagLive);
+        il.append(new DUP());
+        emitPutStatic(il, cp, "reg_mac0");
+        emitLimit(il, cp, "D", flagLive);
+        emitPutStatic(il, cp, "reg_otz");
+    }
+
+    /**
+     * A GTE command which is compiled inline rather than calling the interpreter
+     */
+    private static abstract class InlineCommand extends CPUInstruction {
+        InlineCommand(String name) {
+            super(name, GTE.class, 0, 0);
+        }
+
+        public final void compile(CompilationContext context, int address, int ci, InstructionList il) {
+            if (inlineCommands) {
+                emit(il, context, ci, isFlagLive(context, address));
+            } else {
+                super.compile(context, address, ci, il);
+            }
+        }
+
+        protected abstract void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive);
+    }
+
     public void init() {
         super.init();
+        inlineCommands = getBooleanProperty(PROPERTY_INLINE_COMMANDS, true);
         CoreComponentConnections.INSTRUCTION_PROVIDERS.add(this);
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("GTE");
+                saveVector(out, reg_v0);
+                saveVector(out, reg_v1);
+                saveVector(out, reg_v2);
+                saveMatrix(out, reg_rot);
+                saveMatrix(out, reg_ls);
+                saveMatrix(out, reg_lc);
+                out.writeInt(reg_rgb);
+                out.writeInt(reg_otz);
+                out.writeInt(reg_ir0);
+                out.writeInt(reg_ir1);
+                out.writeInt(reg_ir2);
+                out.writeInt(reg_ir3);
+                out.writeInt(reg_sx0);
+                out.writeInt(reg_sy0);
+                out.writeInt(reg_sx1);
+                out.writeInt(reg_sy1);
+                out.writeInt(reg_sx2);
+                out.writeInt(reg_sy2);
+                out.writeInt(reg_sxp);
+                out.writeInt(reg_syp);
+                out.writeInt(reg_szx);
+                out.writeInt(reg_sz0);
+                out.writeInt(reg_sz1);
+                out.writeInt(reg_sz2);
+                out.writeInt(reg_rgb0);
+                out.writeInt(reg_rgb1);
+                out.writeInt(reg_rgb2);
+                out.writeInt(reg_res1);
+                out.writeInt(reg_mac0);
+                out.writeInt(reg_mac1);
+                out.writeInt(reg_mac2);
+                out.writeInt(reg_mac3);
+                out.writeInt(reg_lzcr);
+                out.writeInt(reg_lzcs);
+                out.writeInt(reg_trx);
+                out.writeInt(reg_try);
+                out.writeInt(reg_trz);
+                out.writeInt(reg_rbk);
+                out.writeInt(reg_gbk);
+                out.writeInt(reg_bbk);
+                out.writeInt(reg_rfc);
+                out.writeInt(reg_gfc);
+                out.writeInt(reg_bfc);
+                out.writeInt(reg_ofx);
+                out.writeInt(reg_ofy);
+                out.writeInt(reg_h);
+                out.writeInt(reg_dqa);
+                out.writeInt(reg_dqb);
+                out.writeInt(reg_zsf3);
+                out.writeInt(reg_zsf4);
+                out.writeInt(reg_flag);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("GTE");
+                loadVector(in, reg_v0);
+                loadVector(in, reg_v1);
+                loadVector(in, reg_v2);
+                loadMatrix(in, reg_rot);
+                loadMatrix(in, reg_ls);
+                loadMatrix(in, reg_lc);
+                reg_rgb = in.readInt();
+                reg_otz = in.readInt();
+                reg_ir0 = in.readInt();
+                reg_ir1 = in.readInt();
+                reg_ir2 = in.readInt();
+                reg_ir3 = in.readInt();
+                reg_sx0 = in.readInt();
+                reg_sy0 = in.readInt();
+                reg_sx1 = in.readInt();
+                reg_sy1 = in.readInt();
+                reg_sx2 = in.readInt();
+                reg_sy2 = in.readInt();
+                reg_sxp = in.readInt();
+                reg_syp = in.readInt();
+                reg_szx = in.readInt();
+                reg_sz0 = in.readInt();
+                reg_sz1 = in.readInt();
+                reg_sz2 = in.readInt();
+                reg_rgb0 = in.readInt();
+                reg_rgb1 = in.readInt();
+                reg_rgb2 = in.readInt();
+                reg_res1 = in.readInt();
+                reg_mac0 = in.readInt();
+                reg_mac1 = in.readInt();
+                reg_mac2 = in.readInt();
+                reg_mac3 = in.readInt();
+                reg_lzcr = in.readInt();
+                reg_lzcs = in.readInt();
+                reg_trx = in.readInt();
+                reg_try = in.readInt();
+                reg_trz = in.readInt();
+                reg_rbk = in.readInt();
+                reg_gbk = in.readInt();
+                reg_bbk = in.readInt();
+                reg_rfc = in.readInt();
+                reg_gfc = in.readInt();
+                reg_bfc = in.readInt();
+                reg_ofx = in.readInt();
+                reg_ofy = in.readInt();
+                reg_h = in.readInt();
+                reg_dqa = in.readInt();
+                reg_dqb = in.readInt();
+                reg_zsf3 = in.readInt();
+                reg_zsf4 = in.readInt();
+                reg_flag = in.readInt();
+            }
+        });
+    }
+
+    private static void saveVector(SnapshotWriter out, Vector v) {
+        out.writeInt(v.x);
+        out.writeInt(v.y);
+        out.writeInt(v.z);
+    }
+
+    private static void loadVector(SnapshotReader in, Vector v) {
+        v.x = in.readInt();
+        v.y = in.readInt();
+        v.z = in.readInt();
+    }
+
+    private static void saveMatrix(SnapshotWriter out, Matrix m) {
+        out.writeInt(m.m11);
+        out.writeInt(m.m12);
+        out.writeInt(m.m13);
+        out.writeInt(m.m21);
+        out.writeInt(m.m22);
+        out.writeInt(m.m23);
+        out.writeInt(m.m31);
+        out.writeInt(m.m32);
+        out.writeInt(m.m33);
+    }
+
+    private static void loadMatrix(SnapshotReader in, Matrix m) {
+        m.m11 = in.readInt();
+        m.m12 = in.readInt();
+        m.m13 = in.readInt();
+        m.m21 = in.readInt();
+        m.m22 = in.readInt();
+        m.m23 = in.readInt();
+        m.m31 = in.readInt();
+        m.m32 = in.readInt();
+        m.m33 = in.readInt();
     }
 
     @Override
@@ -1231,19 +1841,51 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
                 il2.dispose();
             }
         };
-        i_rtpt = new CPUInstruction("rtpt", GTE.class, 0, 0);
-        i_rtps = new CPUInstruction("rtps", GTE.class, 0, 0);
-        i_mvmva = new CPUInstruction("mvmva", GTE.class, 0, 0);
-        i_op = new CPUInstruction("op", GTE.class, 0, 0);
-        i_avsz3 = new CPUInstruction("avsz3", GTE.class, 0, 0);
-        i_avsz4 = new CPUInstruction("avsz4", GTE.class, 0, 0);
-        i_nclip = new CPUInstruction("nclip", GTE.class, 0, 0);
+        i_rtpt = new InlineCommand("rtpt") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitRTPT(il, context, ci, flagLive);
+            }
+        };
+        i_rtps = new InlineCommand("rtps") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitRTPS(il, context, ci, flagLive);
+            }
+        };
+        i_mvmva = new InlineCommand("mvmva") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitMVMVA(il, context.getConstantPoolGen(), ci, flagLive);
+            }
+        };
+        i_op = new InlineCommand("op") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitOP(il, context.getConstantPoolGen(), ci, flagLive);
+            }
+        };
+        i_avsz3 = new InlineCommand("avsz3") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitAVSZ(il, context.getConstantPoolGen(), new String[]{"reg_sz0", "reg_sz1", "reg_sz2"}, "reg_zsf3", flagLive);
+            }
+        };
+        i_avsz4 = new InlineCommand("avsz4") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitAVSZ(il, context.getConstantPoolGen(), new String[]{"reg_sz0", "reg_sz1", "reg_sz2", "reg_szx"}, "reg_zsf4", flagLive);
+            }
+        };
+        i_nclip = new InlineCommand("nclip") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitNCLIP(il, context.getConstantPoolGen(), flagLive);
+            }
+        };
         i_ncct = new CPUInstruction("ncct", GTE.class, 0, 0);
         i_gpf = new CPUInstruction("gpf", GTE.class, 0, 0);
         i_dcpl = new CPUInstruction("dcpl", GTE.class, 0, 0);
         i_dpcs = new CPUInstruction("dpcs", GTE.class, 0, 0);
         i_intpl = new CPUInstruction("intpl", GTE.class, 0, 0);
-        i_sqr = new CPUInstruction("sqr", GTE.class, 0, 0);
+        i_sqr = new InlineCommand("sqr") {
+            protected void emit(InstructionList il, CompilationContext context, int ci, boolean flagLive) {
+                emitSQR(il, context.getConstantPoolGen(), ci, flagLive);
+            }
+        };
         i_ncs = new CPUInstruction("ncs", GTE.class, 0, 0);
         i_nct = new CPUInstruction("nct", GTE.class, 0, 0);
         i_ncds = new CPUInstruction("ncds", GTE.class, 0, 0);
@@ -1965,13 +2607,26 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             log.warn("RTPS with SF field!");
         }
 
+        // the matrix, translation and projection parameters are the same for all three vertices
+        final long m11 = reg_rot.m11, m12 = reg_rot.m12, m13 = reg_rot.m13;
+        final long m21 = reg_rot.m21, m22 = reg_rot.m22, m23 = reg_rot.m23;
+        final long m31 = reg_rot.m31, m32 = reg_rot.m32, m33 = reg_rot.m33;
+        final long trx = ((long) reg_trx) << 12;
+        final long tr_y = ((long) reg_try) << 12;
+        final long trz = ((long) reg_trz) << 12;
+        final int h = reg_h;
+        final int ofx = reg_ofx;
+        final int ofy = reg_ofy;
+        final int dqa = reg_dqa;
+        final int dqb = reg_dqb;
+
         long vx = reg_v0.x;
         long vy = reg_v0.y;
         long vz = reg_v0.z;
 
-        reg_mac1 = A1(reg_rot.m11 * vx + reg_rot.m12 * vy + reg_rot.m13 * vz + (((long) reg_trx) << 12));
-        reg_mac2 = A2(reg_rot.m21 * vx + reg_rot.m22 * vy + reg_rot.m23 * vz + (((long) reg_try) << 12));
-        reg_mac3 = A3(reg_rot.m31 * vx + reg_rot.m32 * vy + reg_rot.m33 * vz + (((long) reg_trz) << 12));
+        reg_mac1 = A1(m11 * vx + m12 * vy + m13 * vz + trx);
+        reg_mac2 = A2(m21 * vx + m22 * vy + m23 * vz + tr_y);
+        reg_mac3 = A3(m31 * vx + m32 * vy + m33 * vz + trz);
 
         reg_ir1 = LiB1_0(reg_mac1);
         reg_ir2 = LiB2_0(reg_mac2);
@@ -1982,12 +2637,11 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             MiscUtil.assertionMessage("rtpt overflow 0");
         }
 
-
-        long hsz = LiE(divide(reg_h, reg_sz0));
-        reg_sx0 = LiG1(LiF(reg_ofx + reg_ir1 * hsz));
-        reg_sy0 = LiG2(LiF(reg_ofy + reg_ir2 * hsz));
-        reg_mac0 = LiF(reg_dqb + reg_dqa * hsz);
-        reg_ir0 = LiH(reg_mac0);
+        long hsz = LiE(divide(h, reg_sz0));
+        reg_sx0 = LiG1(LiF(ofx + reg_ir1 * hsz));
+        reg_sy0 = LiG2(LiF(ofy + reg_ir2 * hsz));
+        // MAC0 and IR0 are overwritten by the last vertex, but may still set FLAG bits
+        LiH(LiF(dqb + dqa * hsz));
 
         // ---------------------------------------------------
 
@@ -1995,9 +2649,9 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         vy = reg_v1.y;
         vz = reg_v1.z;
 
-        reg_mac1 = A1(reg_rot.m11 * vx + reg_rot.m12 * vy + reg_rot.m13 * vz + (((long) reg_trx) << 12));
-        reg_mac2 = A2(reg_rot.m21 * vx + reg_rot.m22 * vy + reg_rot.m23 * vz + (((long) reg_try) << 12));
-        reg_mac3 = A3(reg_rot.m31 * vx + reg_rot.m32 * vy + reg_rot.m33 * vz + (((long) reg_trz) << 12));
+        reg_mac1 = A1(m11 * vx + m12 * vy + m13 * vz + trx);
+        reg_mac2 = A2(m21 * vx + m22 * vy + m23 * vz + tr_y);
+        reg_mac3 = A3(m31 * vx + m32 * vy + m33 * vz + trz);
 
         reg_ir1 = LiB1_0(reg_mac1);
         reg_ir2 = LiB2_0(reg_mac2);
@@ -2009,11 +2663,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             MiscUtil.assertionMessage("rtpt overflow 1");
         }
 
-        hsz = LiE(divide(reg_h, reg_sz1));
-        reg_sx1 = LiG1(LiF(reg_ofx + reg_ir1 * hsz));
-        reg_sy1 = LiG2(LiF(reg_ofy + reg_ir2 * hsz));
-        reg_mac0 = LiF(reg_dqb + reg_dqa * hsz);
-        reg_ir0 = LiH(reg_mac0);
+        hsz = LiE(divide(h, reg_sz1));
+        reg_sx1 = LiG1(LiF(ofx + reg_ir1 * hsz));
+        reg_sy1 = LiG2(LiF(ofy + reg_ir2 * hsz));
+        LiH(LiF(dqb + dqa * hsz));
 
         // ---------------------------------------------------
 
@@ -2021,9 +2674,9 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         vy = reg_v2.y;
         vz = reg_v2.z;
 
-        reg_mac1 = A1(reg_rot.m11 * vx + reg_rot.m12 * vy + reg_rot.m13 * vz + (((long) reg_trx) << 12));
-        reg_mac2 = A2(reg_rot.m21 * vx + reg_rot.m22 * vy + reg_rot.m23 * vz + (((long) reg_try) << 12));
-        reg_mac3 = A3(reg_rot.m31 * vx + reg_rot.m32 * vy + reg_rot.m33 * vz + (((long) reg_trz) << 12));
+        reg_mac1 = A1(m11 * vx + m12 * vy + m13 * vz + trx);
+        reg_mac2 = A2(m21 * vx + m22 * vy + m23 * vz + tr_y);
+        reg_mac3 = A3(m31 * vx + m32 * vy + m33 * vz + trz);
 
         reg_ir1 = LiB1_0(reg_mac1);
         reg_ir2 = LiB2_0(reg_mac2);
@@ -2035,10 +2688,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             MiscUtil.assertionMessage("rtpt overflow 2");
         }
 
-        hsz = LiE(divide(reg_h, reg_sz2));
-        reg_sx2 = LiG1(LiF(reg_ofx + reg_ir1 * hsz));
-        reg_sy2 = LiG2(LiF(reg_ofy + reg_ir2 * hsz));
-        reg_mac0 = LiF(reg_dqb + reg_dqa * hsz);
+        hsz = LiE(divide(h, reg_sz2));
+        reg_sx2 = LiG1(LiF(ofx + reg_ir1 * hsz));
+        reg_sy2 = LiG2(LiF(ofy + reg_ir2 * hsz));
+        reg_mac0 = LiF(dqb + dqa * hsz);
         reg_ir0 = LiH(reg_mac0);
     }
 
@@ -2371,7 +3024,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         return src;
     }
 
-    private static int LiE(int src) {
+    public static int LiE(int src) {
         if (src >= 0x20000) {
             reg_flag |= FLAG_E;
             src = 0x1ffff;
@@ -2379,7 +3032,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         return src;
     }
 
-    private static int LiF(long src) {
+    public static int LiF(long src) {
         if (src >= BIT47) {
             reg_flag |= FLAG_FP;
             if (debugLimit) log.info("F + "+src);
@@ -2431,7 +3084,62 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         return src;
     }
 
-    private static int A1(long val) {
+    // The Lm* methods saturate exactly as the corresponding Li* methods, but leave FLAG alone. They are used
+    // by compiled code when the FLAG value is known to be dead
+
+    public static int LmB_0(int src) {
+        if (src >= 0x8000) {
+            return 0x7fff;
+        } else if (src < -0x8000) {
+            return -0x8000;
+        }
+        return src;
+    }
+
+    public static int LmB_1(int src) {
+        if (src >= 0x8000) {
+            return 0x7fff;
+        } else if (src < 0) {
+            return 0;
+        }
+        return src;
+    }
+
+    public static int LmD(int src) {
+        if (src < 0) {
+            return 0;
+        } else if (src >= 0x10000) {
+            return 0xffff;
+        }
+        return src;
+    }
+
+    public static int LmE(int src) {
+        if (src >= 0x20000) {
+            return 0x1ffff;
+        }
+        return src;
+    }
+
+    public static int LmG(int src) {
+        if (src >= 0x400) {
+            return 0x3ff;
+        } else if (src < -0x400) {
+            return -0x400;
+        }
+        return src;
+    }
+
+    public static int LmH(int src) {
+        if (src >= 0x1000) {
+            return 0xfff;
+        } else if (src < 0) {
+            return 0;
+        }
+        return src;
+    }
+
+    public static int A1(long val) {
         if (val >= BIT43) {
             reg_flag |= FLAG_A1P;
         } else if (val <= -BIT43) {
@@ -2440,7 +3148,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         return (int) (val >> 12);
     }
 
-    private static int A2(long val) {
+    public static int A2(long val) {
         if (val >= BIT43) {
             reg_flag |= FLAG_A2P;
         } else if (val <= -BIT43) {
@@ -2451,7 +3159,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 
     private static long mac3_64;
 
-    private static int A3(long val) {
+    public static int A3(long val) {
         if (val >= BIT43) {
             reg_flag |= FLAG_A3P;
         } else if (val <= -BIT43) {
@@ -3529,7 +4237,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_rgb2 = (reg_rgb & 0xff000000) | rr | (gg << 8) | (bb << 16);
     }
 
-    static int table[] =
+    /**
+     * The GTE's reciprocal seed table, indexed by the top bits of the normalized divisor
+     */
+    private static final int[] UNR_TABLE =
             {
                     0xff, 0xfd, 0xfb, 0xf9, 0xf7, 0xf5, 0xf3, 0xf1, 0xef, 0xee, 0xec, 0xea, 0xe8, 0xe6, 0xe4, 0xe3,
                     0xe1, 0xdf, 0xdd, 0xdc, 0xda, 0xd8, 0xd6, 0xd5, 0xd3, 0xd1, 0xd0, 0xce, 0xcd, 0xcb, 0xc9, 0xc8,
@@ -3550,36 +4261,43 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
                     0x00
             };
 
-    static int dividex(int numerator, int denominator) {
-        if (denominator == 0) {
-            return Integer.MAX_VALUE;
+    /**
+     * The reciprocal the GTE's Newton-Raphson step derives from UNR_TABLE, for each normalized divisor 0x8000-0xffff;
+     * precomputed, as a lookup is cheaper than the two dependent multiplies
+     */
+    private static final int[] UNR_RECIPROCALS = new int[0x8000];
+
+    static {
+        for (int i = 0; i < UNR_RECIPROCALS.length; i++) {
+            int d = 0x8000 + i;
+            int u = UNR_TABLE[(d - 0x7fc0) >> 7] + 0x101;
+            d = (0x2000080 - d * u) >> 8;
+            UNR_RECIPROCALS[i] = (0x80 + d * u) >> 8;
         }
-        return (int)((((long)numerator)<<16)/denominator);
     }
 
-    static int divide(int numerator, int denominator) {
+    static int dividex(int numerator, int denominator) {
         if (denominator == 0) {
             return Integer.MAX_VALUE;
         }
-        if (numerator <= 0x7fff) {
-            return (numerator<<16)/denominator;
-        } else {
-            return (int)((((long)numerator)<<16)/denominator);
-        }
+        return (int)((((long)numerator)<<16)/denominator);
     }
 
-    static int gte_divide(int numerator, int denominator) {
-        if (numerator < (denominator * 2)) {
+    /**
+     * (numerator << 16) / denominator for the 16 bit unsigned H and SZ values, computed exactly as the GTE does it;
+     * an unsigned Newton-Raphson iteration for the reciprocal of the normalized denominator, seeded from UNR_TABLE
+     * (see UNR_RECIPROCALS).
+     *
+     * @return the quotient (at most 0x1ffff), or Integer.MAX_VALUE if the division overflows, which
+     *         {@link #LiE} will flag
+     */
+    public static int divide(int numerator, int denominator) {
+        if (numerator < denominator * 2) {
             int shift = Integer.numberOfLeadingZeros(denominator) - 16;
-
-            int r1 = (denominator << shift) & 0x7fff;
-            int r2 = table[((r1 + 0x40) >> 7)] + 0x101;
-            int r3 = ((0x80 - (r2 * (r1 + 0x8000))) >> 8) & 0x1ffff;
-            int reciprocal = ((r2 * r3) + 0x80) >> 8;
-
-            return (int) ((((long) reciprocal * (numerator << shift)) + 0x8000) >> 16);
+            int d = UNR_RECIPROCALS[(denominator << shift) - 0x8000];
+            int rc = (int) ((((long) d) * (numerator << shift) + 0x8000) >> 16);
+            return rc < 0x1ffff ? rc : 0x1ffff;
         }
-
         return Integer.MAX_VALUE;
     }
 }
@@ -28,6 +28,21 @@ public class IDCT {
 
     private static final int clamp[] = new int[2048];
 
+    // AAN constants, and the extra precision kept between its passes
+    private static final int AAN_CONST_BITS = 8;
+    private static final int AAN_PASS1_BITS = 2;
+    private static final int FIX_1_082392200 = 277; // 256*1.082392200
+    private static final int FIX_1_414213562 = 362; // 256*1.414213562
+    private static final int FIX_1_847759065 = 473; // 256*1.847759065
+    private static final int FIX_2_613125930 = 669; // 256*2.613125930
+
+    private static final int AAN_SCALE_BITS = 14;
+    /**
+     * shift to apply to coefficients dequantised with a table from {@link #scaleQuantTable}
+     */
+    public static final int AAN_DEQUANT_SHIFT = AAN_SCALE_BITS - AAN_PASS1_BITS;
+    private static final int[] aanscale = new int[64];
+
     private static void idctrow(int[] blk, int base) {
         int x0, x1, x2, x3, x4, x5, x6, x7, x8;
 
@@ -119,6 +134,93 @@ public class IDCT {
         blk[base + 8 * 7] = clamp[1024 + ((x7 - x1) >> 14)];
     }
 
+    /**
+     * {@link #idctrow} for a row whose last four coefficients are zero
+     */
+    private static void idctrow4(int[] blk, int base) {
+        int x0, x1, x2, x3, x4, x5, x6, x7, x8;
+
+        if (0 == ((x3 = blk[base + 2]) | (x4 = blk[base + 1]) | (x7 = blk[base + 3]))) {
+            blk[base + 0] = blk[base + 1] = blk[base + 2] = blk[base + 3] = blk[base + 4] = blk[base + 5] = blk[base + 6] = blk[base + 7] = blk[base + 0] << 3;
+            return;
+        }
+
+        x0 = (blk[base + 0] << 11) + 128;
+
+        x5 = W7 * x4;
+        x4 = W1 * x4;
+        x6 = W3 * x7;
+        x7 = -W5 * x7;
+
+        x8 = x0;
+        x2 = W6 * x3;
+        x3 = W2 * x3;
+        x1 = x4 + x6;
+        x4 -= x6;
+        x6 = x5 + x7;
+        x5 -= x7;
+
+        x7 = x8 + x3;
+        x8 -= x3;
+        x3 = x0 + x2;
+        x0 -= x2;
+        x2 = (181 * (x4 + x5) + 128) >> 8;
+        x4 = (181 * (x4 - x5) + 128) >> 8;
+
+        blk[base + 0] = (x7 + x1) >> 8;
+        blk[base + 1] = (x3 + x2) >> 8;
+        blk[base + 2] = (x0 + x4) >> 8;
+        blk[base + 3] = (x8 + x6) >> 8;
+        blk[base + 4] = (x8 - x6) >> 8;
+        blk[base + 5] = (x0 - x4) >> 8;
+        blk[base + 6] = (x3 - x2) >> 8;
+        blk[base + 7] = (x7 - x1) >> 8;
+    }
+
+    /**
+     * {@link #idctcol} for a column whose last four coefficients are zero
+     */
+    private static void idctcol4(int[] blk, int base) {
+        int x0, x1, x2, x3, x4, x5, x6, x7, x8;
+
+        if (0 == ((x3 = blk[base + 8 * 2]) | (x4 = blk[base + 8 * 1]) | (x7 = blk[base + 8 * 3]))) {
+            blk[base + 8 * 0] = blk[base + 8 * 1] = blk[base + 8 * 2] = blk[base + 8 * 3] = blk[base + 8 * 4] = blk[base + 8 * 5] = blk[base + 8 * 6] = blk[base + 8 * 7] =
+                    clamp[1024 + ((blk[base + 8 * 0] + 32) >> 6)];
+            return;
+        }
+
+        x0 = (blk[base + 8 * 0] << 8) + 8192;
+
+        x5 = (W7 * x4 + 4) >> 3;
+        x4 = (W1 * x4 + 4) >> 3;
+        x6 = (W3 * x7 + 4) >> 3;
+        x7 = (4 - W5 * x7) >> 3;
+
+        x8 = x0;
+        x2 = (W6 * x3 + 4) >> 3;
+        x3 = (W2 * x3 + 4) >> 3;
+        x1 = x4 + x6;
+        x4 -= x6;
+        x6 = x5 + x7;
+        x5 -= x7;
+
+        x7 = x8 + x3;
+        x8 -= x3;
+        x3 = x0 + x2;
+        x0 -= x2;
+        x2 = (181 * (x4 + x5) + 128) >> 8;
+        x4 = (181 * (x4 - x5) + 128) >> 8;
+
+        blk[base + 8 * 0] = clamp[1024 + ((x7 + x1) >> 14)];
+        blk[base + 8 * 1] = clamp[1024 + ((x3 + x2) >> 14)];
+        blk[base + 8 * 2] = clamp[1024 + ((x0 + x4) >> 14)];
+        blk[base + 8 * 3] = clamp[1024 + ((x8 + x6) >> 14)];
+        blk[base + 8 * 4] = clamp[1024 + ((x8 - x6) >> 14)];
+        blk[base + 8 * 5] = clamp[1024 + ((x0 - x4) >> 14)];
+        blk[base + 8 * 6] = clamp[1024 + ((x3 - x2) >> 14)];
+        blk[base + 8 * 7] = clamp[1024 + ((x7 - x1) >> 14)];
+    }
+
     public static void transform(int[] block) {
         for (int i = 0; i < 64; i += 8)
             idctrow(block, i);
@@ -127,6 +229,153 @@ public class IDCT {
             idctcol(block, i);
     }
 
+    /**
+     * Same result as {@link #transform(int[])}, but skipping the work for coefficients known to be zero
+     *
+     * @param positions the bitwise or of the positions (0-63) of all the non zero coefficients other than the DC;
+     *                  0 means the block is DC only, and no 0x20 (row) or 0x04 (column) bit means all coefficients
+     *                  are in the top left 4x4
+     */
+    public static void transform(int[] block, int positions) {
+        if (positions == 0) {
+            int dc = clamp[1024 + (((block[0] << 3) + 32) >> 6)];
+            for (int i = 0; i < 64; i++) block[i] = dc;
+        } else if (0 == (positions & 0x24)) {
+            for (int i = 0; i < 32; i += 8)
+                idctrow4(block, i);
+
+            for (int i = 0; i < 8; i++)
+                idctcol4(block, i);
+        } else {
+            transform(block);
+        }
+    }
+
+    /**
+     * Fold the AAN scale factors into a quantisation table (in zig-zag order); coefficients dequantised with the
+     * result, then shifted right by {@link #AAN_DEQUANT_SHIFT}, are ready for {@link #transformAAN}
+     */
+    public static void scaleQuantTable(int[] qm, int[] unzig, int[] scaledQm) {
+        for (int i = 0; i < 64; i++) {
+            scaledQm[i] = qm[i] * aanscale[unzig[i]];
+        }
+    }
+
+    private static int aanMultiply(int x, int c) {
+        return (x * c + (1 << (AAN_CONST_BITS - 1))) >> AAN_CONST_BITS;
+    }
+
+    /**
+     * Arai-Agui-Nakajima scaled IDCT; fewer multiplies than {@link #transform(int[])}, but not bit exact with it
+     * (a few percent of pixels differ, by at most 2 in testing). The block must be dequantised with a table from
+     * {@link #scaleQuantTable}.
+     *
+     * @param positions as for {@link #transform(int[], int)}
+     */
+    public static void transformAAN(int[] block, int positions) {
+        if (positions == 0) {
+            int dc = clamp[1024 + ((block[0] + (1 << (AAN_PASS1_BITS + 2))) >> (AAN_PASS1_BITS + 3))];
+            for (int i = 0; i < 64; i++) block[i] = dc;
+            return;
+        }
+        int rows = 0 == (positions & 0x20) ? 32 : 64;
+        for (int i = 0; i < rows; i += 8)
+            aanrow(block, i);
+        for (int i = 0; i < 8; i++)
+            aancol(block, i);
+    }
+
+    private static int aanclamp(int x) {
+        // the AAN IDCT can overshoot further than the clamp table allows for on extreme input
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+
+    private static void aanrow(int[] blk, int base) {
+        int in0 = blk[base], in1 = blk[base + 1], in2 = blk[base + 2], in3 = blk[base + 3];
+        int in4 = blk[base + 4], in5 = blk[base + 5], in6 = blk[base + 6], in7 = blk[base + 7];
+        if (0 == (in1 | in2 | in3 | in4 | in5 | in6 | in7)) {
+            blk[base] = blk[base + 1] = blk[base + 2] = blk[base + 3] = blk[base + 4] = blk[base + 5] = blk[base + 6] = blk[base + 7] = in0;
+            return;
+        }
+        // even part
+        int tmp10 = in0 + in4;
+        int tmp11 = in0 - in4;
+        int tmp13 = in2 + in6;
+        int tmp12 = aanMultiply(in2 - in6, FIX_1_414213562) - tmp13;
+
+        int tmp0 = tmp10 + tmp13;
+        int tmp3 = tmp10 - tmp13;
+        int tmp1 = tmp11 + tmp12;
+        int tmp2 = tmp11 - tmp12;
+
+        // odd part
+        int z13 = in5 + in3;
+        int z10 = in5 - in3;
+        int z11 = in1 + in7;
+        int z12 = in1 - in7;
+
+        int tmp7 = z11 + z13;
+        tmp11 = aanMultiply(z11 - z13, FIX_1_414213562);
+        int z5 = aanMultiply(z10 + z12, FIX_1_847759065);
+        tmp10 = aanMultiply(z12, FIX_1_082392200) - z5;
+        tmp12 = z5 - aanMultiply(z10, FIX_2_613125930);
+
+        int tmp6 = tmp12 - tmp7;
+        int tmp5 = tmp11 - tmp6;
+        int tmp4 = tmp10 + tmp5;
+
+        blk[base] = tmp0 + tmp7;
+        blk[base + 7] = tmp0 - tmp7;
+        blk[base + 1] = tmp1 + tmp6;
+        blk[base + 6] = tmp1 - tmp6;
+        blk[base + 2] = tmp2 + tmp5;
+        blk[base + 5] = tmp2 - tmp5;
+        blk[base + 4] = tmp3 + tmp4;
+        blk[base + 3] = tmp3 - tmp4;
+    }
+
+    private static void aancol(int[] blk, int base) {
+        int in0 = blk[base], in1 = blk[base + 8], in2 = blk[base + 8 * 2], in3 = blk[base + 8 * 3];
+        int in4 = blk[base + 8 * 4], in5 = blk[base + 8 * 5], in6 = blk[base + 8 * 6], in7 = blk[base + 8 * 7];
+        final int round = 1 << (AAN_PASS1_BITS + 2);
+        final int shift = AAN_PASS1_BITS + 3;
+        // even part
+        int tmp10 = in0 + in4 + round;
+        int tmp11 = in0 - in4 + round;
+        int tmp13 = in2 + in6;
+        int tmp12 = aanMultiply(in2 - in6, FIX_1_414213562) - tmp13;
+
+        int tmp0 = tmp10 + tmp13;
+        int tmp3 = tmp10 - tmp13;
+        int tmp1 = tmp11 + tmp12;
+        int tmp2 = tmp11 - tmp12;
+
+        // odd part
+        int z13 = in5 + in3;
+        int z10 = in5 - in3;
+        int z11 = in1 + in7;
+        int z12 = in1 - in7;
+
+        int tmp7 = z11 + z13;
+        tmp11 = aanMultiply(z11 - z13, FIX_1_414213562);
+        int z5 = aanMultiply(z10 + z12, FIX_1_847759065);
+        tmp10 = aanMultiply(z12, FIX_1_082392200) - z5;
+        tmp12 = z5 - aanMultiply(z10, FIX_2_613125930);
+
+        int tmp6 = tmp12 - tmp7;
+        int tmp5 = tmp11 - tmp6;
+        int tmp4 = tmp10 + tmp5;
+
+        blk[base] = aanclamp((tmp0 + tmp7) >> shift);
+        blk[base + 8 * 7] = aanclamp((tmp0 - tmp7) >> shift);
+        blk[base + 8] = aanclamp((tmp1 + tmp6) >> shift);
+        blk[base + 8 * 6] = aanclamp((tmp1 - tmp6) >> shift);
+        blk[base + 8 * 2] = aanclamp((tmp2 + tmp5) >> shift);
+        blk[base + 8 * 5] = aanclamp((tmp2 - tmp5) >> shift);
+        blk[base + 8 * 4] = aanclamp((tmp3 + tmp4) >> shift);
+        blk[base + 8 * 3] = aanclamp((tmp3 - tmp4) >> shift);
+    }
+
     static {
         for (int i = 0; i < 2048; i++) {
             if (i < 1024) {
@@ -137,5 +386,13 @@ public class IDCT {
                 clamp[i] = 255;
             }
         }
+        // scale(u, v) = s(u) * s(v) where s(0) = 1 and s(k) = sqrt(2) * cos(k*pi/16)
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                double su = u == 0 ? 1 : Math.sqrt(2) * Math.cos(u * Math.PI / 16);
+                double sv = v == 0 ? 1 : Math.sqrt(2) * Math.cos(v * Math.PI / 16);
+                aanscale[u * 8 + v] = (int) Math.round(su * sv * (1 << AAN_SCALE_BITS));
+            }
+        }
     }
 }
@@ -23,14 +23,26 @@ import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.addressspace.AddressSpaceRegistrar;
 import org.jpsx.api.components.core.addressspace.MemoryMapped;
 import org.jpsx.api.components.core.dma.DMAController;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
 import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.DMAChannelOwnerBase;
 import org.jpsx.runtime.util.MiscUtil;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class MDEC extends JPSXComponent implements MemoryMapped {
     private static final Logger log = Logger.getLogger("MDEC");
 
+    public static final String PROPERTY_PARALLEL_DECODE = "parallelDecode";
+    public static final String PROPERTY_PARALLEL_THRESHOLD = "parallelThreshold";
+    public static final String PROPERTY_AAN_IDCT = "aanIDCT";
+    public static final String PROPERTY_DECODE_AHEAD = "decodeAhead";
+
     private static final boolean debugMDEC = log.isDebugEnabled();
 
     private static final int ADDR_MDEC_CTRL = 0x1f801820;
@@ -58,6 +70,10 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
 
     private static final int[] yqm = new int[64];
     private static final int[] uvqm = new int[64];
+    // the quantisation tables with the AAN IDCT's scale factors folded in
+    private static final int[] yqmAAN = new int[64];
+    private static final int[] uvqmAAN = new int[64];
+    private static boolean aanIDCT;
 
     private static final int unzig[] = new int[]{
             0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12,
@@ -70,8 +86,21 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
     private static int ctrl;
     private static int status;
     private static int stp;
-    private static AddressSpace.ResolveResult source = new AddressSpace.ResolveResult();
-    private static int sourceRemaining;
+    private static boolean parallelDecode;
+    // smallest number of macroblocks in an out transfer worth decoding in parallel
+    private static int parallelThreshold;
+    // macroblocks decoded by each leaf task
+    private static final int PARALLEL_GRAIN = 2;
+
+    // the input bitstream; positions are in halfwords, the low half of each word coming first
+    private static int[] sourceMem;
+    private static int sourcePos;
+    private static int sourceEnd;
+
+    private static boolean decodeAhead;
+    private static DecodeAheadThread decodeAheadThread;
+    // decoding of the current input, if it was started when it arrived
+    private static DecodeAhead ahead;
 
     public MDEC() {
         super("JPSX Movie Decoder");
@@ -83,6 +112,52 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
         CoreComponentConnections.ALL_MEMORY_MAPPED.add(this);
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new InChannel());
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new OutChannel());
+        parallelDecode = getBooleanProperty(PROPERTY_PARALLEL_DECODE, Runtime.getRuntime().availableProcessors() > 1);
+        parallelThreshold = getIntProperty(PROPERTY_PARALLEL_THRESHOLD, 4);
+        aanIDCT = getBooleanProperty(PROPERTY_AAN_IDCT, false);
+        decodeAhead = getBooleanProperty(PROPERTY_DECODE_AHEAD, false);
+        if (decodeAhead) {
+            decodeAheadThread = new DecodeAheadThread();
+        }
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("MDEC");
+                out.writeInt(ctrl);
+                out.writeInt(status);
+                out.writeInt(stp);
+                out.writeInts(yqm, 0, 64);
+                out.writeInts(uvqm, 0, 64);
+                // only the input not yet decoded, since it may be in a buffer the game has since reused
+                int remaining = sourceMem == null ? 0 : sourceEnd - sourcePos;
+                out.writeInt(remaining);
+                if (remaining > 0) {
+                    out.writeInt(sourcePos & 1);
+                    out.writeInts(sourceMem, sourcePos >> 1, (sourceEnd + 1 - (sourcePos & ~1)) >> 1);
+                }
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("MDEC");
+                cancelDecodeAhead();
+                ctrl = in.readInt();
+                status = in.readInt();
+                stp = in.readInt();
+                in.readInts(yqm, 0, 64);
+                in.readInts(uvqm, 0, 64);
+                IDCT.scaleQuantTable(yqm, unzig, yqmAAN);
+                IDCT.scaleQuantTable(uvqm, unzig, uvqmAAN);
+                int remaining = in.readInt();
+                if (remaining > 0) {
+                    sourcePos = in.readInt();
+                    sourceEnd = sourcePos + remaining;
+                    sourceMem = new int[(sourceEnd + 1) >> 1];
+                    in.readInts(sourceMem, 0, sourceMem.length);
+                } else {
+                    sourceMem = null;
+                    sourcePos = sourceEnd = 0;
+                }
+            }
+        });
     }
 
     @Override
@@ -156,6 +231,8 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
                 log.debug("begin DMA transfer to " + getName() + " " + MiscUtil.toHex(base, 8) + " 0x" + Integer.toHexString(blocks) + "*0x" + Integer.toHexString(blockSize) + " ctrl " + MiscUtil.toHex(ctrl, 8));
             int size = blocks * blockSize;
 
+            // any decoding ahead is for the previous input, and perhaps the previous quantisation tables
+            cancelDecodeAhead();
             if (MDEC.ctrl == 0x60000000) {
                 if (debugMDEC) log.debug("INIT COSINE TABLE size=" + MiscUtil.toHex(size, 4));
             } else if (MDEC.ctrl == 0x40000001) {
@@ -166,6 +243,8 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
                 for (int i = 0; i < 64; i++) {
                     uvqm[i] = addressSpace.read8(base + 64 + i);
                 }
+                IDCT.scaleQuantTable(yqm, unzig, yqmAAN);
+                IDCT.scaleQuantTable(uvqm, unzig, uvqmAAN);
                 // todo figure these commands out
 //            } else if (0!=(m_ctrl & BUSY0) && (0!=(m_ctrl&DREQ0)) && 0==(m_ctrl & NFIFO0)) {
             } else {
@@ -177,8 +256,21 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
 //                m_status &= ~DREG0;
 //                m_status &= ~NFIFO0;
 
+                AddressSpace.ResolveResult source = new AddressSpace.ResolveResult();
                 addressSpace.resolve(base, size * 4, true, source);
-                sourceRemaining = size * 4;
+                if (decodeAhead) {
+                    // the game may reuse its buffer once the data has been sent, so decode from a copy
+                    sourceMem = new int[size];
+                    System.arraycopy(source.mem, source.offset, sourceMem, 0, size);
+                    sourcePos = 0;
+                    sourceEnd = size * 2;
+                    ahead = new DecodeAhead(sourceMem, sourceEnd, 0 != (status & RGB24), stp);
+                    decodeAheadThread.submit(ahead);
+                } else {
+                    sourceMem = source.mem;
+                    sourcePos = source.offset * 2;
+                    sourceEnd = sourcePos + size * 2;
+                }
 //            } else {
 //                throw new IllegalStateException("unknown MDEC ctrl = "+MiscUtil.toHex( m_ctrl, 8));
             }
@@ -201,27 +293,211 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
     //    return (x<<22)>>22;
     //}
 
-    private static class OutChannel extends DMAChannelOwnerBase {
+    private static int halfword(int[] src, int pos) {
+        return (src[pos >> 1] >>> ((pos & 1) << 4)) & 0xffff;
+    }
+
+    /**
+     * Find the end of the macroblock starting at pos without decoding it; each of its six blocks is a DC/quantisation
+     * halfword followed by run/level halfwords up to and including 0xfe00.
+     *
+     * @return the position after the macroblock, or -1 if the source ends part way through it
+     */
+    private static int skipMacroblock(int[] src, int pos, int end) {
+        for (int block = 0; block < 6; block++) {
+            if (pos >= end) return -1;
+            pos++;
+            do {
+                if (pos >= end) return -1;
+            } while (halfword(src, pos++) != 0xfe00);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes macroblocks (Cr, Cb, then four Y blocks) and colour converts them into the DMA target. It holds the
+     * coefficients of the current macroblock, so each thread decoding needs its own.
+     */
+    private static final class MacroblockDecoder {
         private final int[] ycoeffs = new int[64];
         private final int[] ucoeffs = new int[64];
         private final int[] vcoeffs = new int[64];
 
-        public final int getDMAChannel() {
-            return DMAController.DMA_MDEC_OUT;
-        }
+        /**
+         * Decode the macroblock starting at pos, writing it to mem at offset; stp is or-ed into 15 bit pixels
+         *
+         * @return the position after the macroblock, or -1 if the source ends part way through it, in which case
+         *         the Y blocks completed so far have still been written
+         */
+        int decode(int[] src, int pos, int end, int[] mem, int offset, boolean rgb24, int stp) {
+            for (int mb = 0; mb < 6; mb++) {
+                if (pos >= end) return -1;
+                int word = halfword(src, pos++);
+
+                int dc = (word & 0x3ff) ^ 0x200;
+                int qf = word >> 10;
+
+                int[] coeffs;
+                int[] qm;
+                if (mb == 0) {
+                    coeffs = vcoeffs;
+                    qm = aanIDCT ? uvqmAAN : uvqm;
+                } else if (mb == 1) {
+                    coeffs = ucoeffs;
+                    qm = aanIDCT ? uvqmAAN : uvqm;
+                } else {
+                    coeffs = ycoeffs;
+                    qm = aanIDCT ? yqmAAN : yqm;
+                }
 
-        public final String getName() {
-            return "MDEC-Out";
+                for (int i = 1; i < 64; i++) coeffs[i] = 0;
+                // or of the positions written, to let the IDCT skip zeros
+                int positions = 0;
+                int index = 0;
+                if (aanIDCT) {
+                    coeffs[0] = (int) (((long) dc * qm[0]) >> IDCT.AAN_DEQUANT_SHIFT);
+                    do {
+                        if (pos >= end) return -1;
+                        word = halfword(src, pos++);
+                        if (word == 0xfe00)
+                            break;
+                        index += (word >> 10) + 1;
+                        int position = unzig[index];
+                        positions |= position;
+                        coeffs[position] = (int) (((long) qf * ((word << 22) >> 22) * qm[index]) >> (IDCT.AAN_DEQUANT_SHIFT + 3));
+                    } while (true);
+                    IDCT.transformAAN(coeffs, positions);
+                } else {
+                    coeffs[0] = dc * qm[0];
+                    do {
+                        if (pos >= end) return -1;
+                        word = halfword(src, pos++);
+                        if (word == 0xfe00)
+                            break;
+                        index += (word >> 10) + 1;
+                        int position = unzig[index];
+                        positions |= position;
+                        coeffs[position] = (qf * ((word << 22) >> 22) * qm[index]) >> 3;
+                    } while (true);
+                    IDCT.transform(coeffs, positions);
+                }
+
+                if (mb >= 2) {
+                    if (rgb24) {
+                        writeRGB24(coeffs, mb - 2, mem, offset);
+                    } else {
+                        writeRGB15(coeffs, mb - 2, mem, offset, stp);
+                    }
+                }
+            }
+            return pos;
         }
 
-        public void beginDMATransferToDevice(int base, int blocks, int blockSize, int ctrl) {
-            throw new IllegalStateException("unknown mdec dma to channel 1");
-//            if (debugMDEC) log.debug( "begin DMA transfer to "+getName()+" "+MiscUtil.toHex( base, 8)+" 0x"+Integer.toHexString(blocks)+"*0x"+Integer.toHexString( blockSize)+" ctrl "+MiscUtil.toHex( ctrl, 8));
-//            signalTransferComplete();
+        private void writeRGB24(int[] coeffs, int which, int[] mem, int offset) {
+            int uvoffset = 0;
+            if (0 != (which & 1)) {
+                offset += 6;
+                uvoffset += 4;
+            }
+            if (0 != (which & 2)) {
+                offset += 96;
+                uvoffset += 32;
+            }
+            for (int i = 0; i < 64; i += 4) {
+                int u0 = ucoeffs[uvoffset] - 128;
+                int u1 = ucoeffs[uvoffset + 1] - 128;
+                int v0 = vcoeffs[uvoffset] - 128;
+                int v1 = vcoeffs[uvoffset + 1] - 128;
+
+                int p0 = coeffs[i];
+                int p1 = coeffs[i + 1];
+                int p2 = coeffs[i + 2];
+                int p3 = coeffs[i + 3];
+                int q0 = coeffs[i + 8];
+                int q1 = coeffs[i + 9];
+                int q2 = coeffs[i + 10];
+                int q3 = coeffs[i + 11];
+
+                p0 = rgb24(p0, u0, v0);
+                p1 = rgb24(p1, u0, v0);
+                p2 = rgb24(p2, u1, v1);
+                p3 = rgb24(p3, u1, v1);
+
+                mem[offset] = p0 | (p1 << 24);                 // b1r0g0b0
+                mem[offset + 1] = ((p1 >> 8) & 0xffff) | (p2 << 16); // g2b2r1g1
+                mem[offset + 2] = ((p2 >> 16) & 0xff) | (p3 << 8);   // r3g3b3r2
+
+                q0 = rgb24(q0, u0, v0);
+                q1 = rgb24(q1, u0, v0);
+                q2 = rgb24(q2, u1, v1);
+                q3 = rgb24(q3, u1, v1);
+
+                mem[offset + 12] = q0 | (q1 << 24);
+                mem[offset + 13] = ((q1 >> 8) & 0xffff) | (q2 << 16);
+                mem[offset + 14] = ((q2 >> 16) & 0xff) | (q3 << 8);
+
+                offset += 3;
+                uvoffset += 2;
+                if (4 == (i & 7)) {
+                    i += 8;
+                    offset += 18;
+                    uvoffset += 4;
+                }
+            }
         }
 
+        private void writeRGB15(int[] coeffs, int which, int[] mem, int offset, int stp) {
+            int uvoffset = 0;
+            if (0 != (which & 1)) {
+                offset += 4;
+                uvoffset += 4;
+            }
+            if (0 != (which & 2)) {
+                offset += 64;
+                uvoffset += 32;
+            }
+            for (int i = 0; i < 64; i += 4) {
+                int u0 = ucoeffs[uvoffset] - 128;
+                int u1 = ucoeffs[uvoffset + 1] - 128;
+                int v0 = vcoeffs[uvoffset] - 128;
+                int v1 = vcoeffs[uvoffset + 1] - 128;
+
+                int p0 = coeffs[i];
+                int p1 = coeffs[i + 1];
+                int p2 = coeffs[i + 2];
+                int p3 = coeffs[i + 3];
+                int q0 = coeffs[i + 8];
+                int q1 = coeffs[i + 9];
+                int q2 = coeffs[i + 10];
+                int q3 = coeffs[i + 11];
+
+                p0 = rgb15(p0, u0, v0, stp);
+                p1 = rgb15(p1, u0, v0, stp);
+                p2 = rgb15(p2, u1, v1, stp);
+                p3 = rgb15(p3, u1, v1, stp);
+
+                mem[offset] = p0 | (p1 << 16);
+                mem[offset + 1] = p2 | (p3 << 16);
+
+                q0 = rgb15(q0, u0, v0, stp);
+                q1 = rgb15(q1, u0, v0, stp);
+                q2 = rgb15(q2, u1, v1, stp);
+                q3 = rgb15(q3, u1, v1, stp);
+
+                mem[offset + 8] = q0 | (q1 << 16);
+                mem[offset + 9] = q2 | (q3 << 16);
+
+                offset += 2;
+                uvoffset += 2;
+                if (4 == (i & 7)) {
+                    i += 8;
+                    offset += 12;
+                    uvoffset += 4;
+                }
+            }
+        }
 
-        private static int rgb15(int y, int v, int u) {
+        private static int rgb15(int y, int v, int u, int stp) {
             int r = y + ((0x0000059B * u) >> 10);
             int g = y + ((-0x15F * v) >> 10) + ((-0x2DB * u) >> 10);
             int b = y + ((0x00000716 * v) >> 10);
@@ -246,6 +522,218 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
             if (b > 255) b = 255;
             return (r << 16) | (g << 8) | b;
         }
+    }
+
+    /**
+     * Decodes a range of complete macroblocks whose start positions are already known. Each macroblock has its own
+     * area of the target, so the output is the same whatever order they are decoded in.
+     */
+    private static final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] starts;
+        private final int from, to;
+        private final int[] mem;
+        private final int offset;
+        private final int mbwords;
+        private final boolean rgb24;
+        private final int stp;
+
+        DecodeTask(int[] starts, int from, int to, int[] mem, int offset, int mbwords, boolean rgb24, int stp) {
+            this.starts = starts;
+            this.from = from;
+            this.to = to;
+            this.mem = mem;
+            this.offset = offset;
+            this.mbwords = mbwords;
+            this.rgb24 = rgb24;
+            this.stp = stp;
+        }
+
+        protected void compute() {
+            if (to - from <= PARALLEL_GRAIN) {
+                MacroblockDecoder decoder = new MacroblockDecoder();
+                for (int i = from; i < to; i++) {
+                    decoder.decode(sourceMem, starts[i], sourceEnd, mem, offset + i * mbwords, rgb24, stp);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(starts, from, mid, mem, offset, mbwords, rgb24, stp),
+                        new DecodeTask(starts, mid, to, mem, offset, mbwords, rgb24, stp));
+            }
+        }
+    }
+
+    private static void cancelDecodeAhead() {
+        if (ahead != null) {
+            ahead.cancel();
+            ahead = null;
+        }
+    }
+
+    /**
+     * Decoding of one input transfer into a staging buffer, done on the {@link DecodeAheadThread} as soon as the data
+     * arrives, so that the out transfers which follow are just copies. Complete macroblocks are decoded in order,
+     * and each out transfer takes the next ones, waiting for them if need be; anything the staged macroblocks
+     * can't satisfy (i.e. a partial macroblock at the end of the data) is left to the normal decode path.
+     */
+    private static final class DecodeAhead {
+        private final int[] src;
+        private final int end;
+        final boolean rgb24;
+        final int stp;
+        private final int mbwords;
+        // guarded by this
+        private int[] ends;
+        private int[] staging;
+        private int available = -1;
+        private int decoded;
+        private boolean finished;
+        private volatile boolean cancelled;
+        // only used by the DMA thread
+        private int consumed;
+
+        DecodeAhead(int[] src, int end, boolean rgb24, int stp) {
+            this.src = src;
+            this.end = end;
+            this.rgb24 = rgb24;
+            this.stp = stp;
+            mbwords = 64 * (rgb24 ? 3 : 2);
+        }
+
+        void run() {
+            try {
+                decode();
+            } finally {
+                // make sure the DMA thread never waits forever, even if the data is bad
+                synchronized (this) {
+                    if (available < 0) available = 0;
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void decode() {
+            if (cancelled) return;
+            int count = 0;
+            int[] ends = new int[64];
+            int pos = 0;
+            while (true) {
+                int next = skipMacroblock(src, pos, end);
+                if (next < 0) break;
+                if (count == ends.length) {
+                    int[] newEnds = new int[count * 2];
+                    System.arraycopy(ends, 0, newEnds, 0, count);
+                    ends = newEnds;
+                }
+                ends[count++] = next;
+                pos = next;
+            }
+            int[] staging = new int[count * mbwords];
+            synchronized (this) {
+                this.ends = ends;
+                this.staging = staging;
+                available = count;
+                notifyAll();
+            }
+            MacroblockDecoder decoder = new MacroblockDecoder();
+            pos = 0;
+            for (int i = 0; i < count && !cancelled; i++) {
+                decoder.decode(src, pos, end, staging, i * mbwords, rgb24, stp);
+                pos = ends[i];
+                synchronized (this) {
+                    decoded = i + 1;
+                    notifyAll();
+                }
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Copy up to count of the next decoded macroblocks to mem, waiting for them to be decoded if necessary
+         *
+         * @return the number copied
+         */
+        synchronized int copy(int count, int[] mem, int offset) {
+            try {
+                while (available < 0) wait();
+                count = Math.min(count, available - consumed);
+                while (decoded < consumed + count && !finished) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            count = Math.min(count, decoded - consumed);
+            System.arraycopy(staging, consumed * mbwords, mem, offset, count * mbwords);
+            consumed += count;
+            return count;
+        }
+
+        /**
+         * @return the source position after the macroblocks copied so far
+         */
+        synchronized int getPosition() {
+            return consumed == 0 ? 0 : ends[consumed - 1];
+        }
+    }
+
+    private static final class DecodeAheadThread extends Thread {
+        private DecodeAhead next;
+
+        DecodeAheadThread() {
+            super("MDEC decode ahead");
+            setDaemon(true);
+            start();
+        }
+
+        synchronized void submit(DecodeAhead ahead) {
+            next = ahead;
+            notify();
+        }
+
+        public void run() {
+            while (true) {
+                DecodeAhead ahead;
+                synchronized (this) {
+                    while (next == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    ahead = next;
+                    next = null;
+                }
+                try {
+                    ahead.run();
+                } catch (RuntimeException e) {
+                    log.warn("MDEC decode ahead failed; the data will be decoded when it is read", e);
+                }
+            }
+        }
+    }
+
+    private static class OutChannel extends DMAChannelOwnerBase {
+        private final MacroblockDecoder decoder = new MacroblockDecoder();
+
+        public final int getDMAChannel() {
+            return DMAController.DMA_MDEC_OUT;
+        }
+
+        public final String getName() {
+            return "MDEC-Out";
+        }
+
+        public void beginDMATransferToDevice(int base, int blocks, int blockSize, int ctrl) {
+            throw new IllegalStateException("unknown mdec dma to channel 1");
+//            if (debugMDEC) log.debug( "begin DMA transfer to "+getName()+" "+MiscUtil.toHex( base, 8)+" 0x"+Integer.toHexString(blocks)+"*0x"+Integer.toHexString( blockSize)+" ctrl "+MiscUtil.toHex( ctrl, 8));
+//            signalTransferComplete();
+        }
 
         public void beginDMATransferFromDevice(int base, int blocks, int blockSize, int ctrl) {
             if (debugMDEC)
@@ -261,187 +749,56 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
             int size = blocks * blockSize * 4;
 
             boolean rgb24 = 0 != (status & RGB24);
-            int mbsize = 256 * (rgb24 ? 3 : 2);
-            int mbcount = size / mbsize;
+            int mbwords = 64 * (rgb24 ? 3 : 2);
+            int mbcount = size / (mbwords * 4);
 
             AddressSpace.ResolveResult target = new AddressSpace.ResolveResult();
             addressSpace.resolve(base, size, false, target);
 
-            int dword = source.mem[source.offset];
-
-            outer:
-            for (; mbcount > 0; mbcount--) {
-//                // make IRQ keep happening for sake of CD streaming
-//                r3000.checkAndHandleBreakout();
-                if (debugMDEC) log.debug("mbcount " + mbcount + " remaining " + sourceRemaining);
-                for (int mb = 0; mb < 6; mb++) {
-                    int word;
-                    if (sourceRemaining <= 0) break outer;
-                    if (0 == (sourceRemaining & 2)) {
-                        dword = source.mem[source.offset];
-                        word = dword & 0xffff;
-                    } else {
-                        source.offset++;
-                        word = (dword >> 16) & 0xffff;
-                    }
-                    sourceRemaining -= 2;
-
-                    int dc = (word & 0x3ff) ^ 0x200;
-                    int qf = word >> 10;
-
-                    //if (mbcount==(size/mbsize)) dc = 0;
-
-                    int[] coeffs;
-                    int[] qm;
-                    if (mb == 0) {
-                        coeffs = vcoeffs;
-                        qm = uvqm;
-                    } else if (mb == 1) {
-                        coeffs = ucoeffs;
-                        qm = uvqm;
-                    } else {
-                        coeffs = ycoeffs;
-                        qm = yqm;
-                    }
-
-                    for (int i = 1; i < 64; i++) coeffs[i] = 0;
-                    coeffs[0] = dc * qm[0];
-
-                    int index = 0;
-                    do {
-                        if (sourceRemaining <= 0) break outer;
-                        if (0 == (sourceRemaining & 2)) {
-                            dword = source.mem[source.offset];
-                            word = dword & 0xffff;
-                        } else {
-                            source.offset++;
-                            word = (dword >> 16) & 0xffff;
-                        }
-                        sourceRemaining -= 2;
-                        if (word == 0xfe00)
-                            break;
-                        index += (word >> 10) + 1;
-                        coeffs[unzig[index]] = (qf * ((word << 22) >> 22) * qm[index]) >> 3;
-                    } while (true);
-
-                    IDCT.transform(coeffs);
-
-                    final int[] mem = target.mem;
-                    if (rgb24) {
-                        if (mb >= 2) {
-                            int uvoffset = 0;
-                            int which = mb - 2;
-                            int offset = target.offset;
-                            if (0 != (which & 1)) {
-                                offset += 6;
-                                uvoffset += 4;
-                            }
-                            if (0 != (which & 2)) {
-                                offset += 96;
-                                uvoffset += 32;
-                            }
-                            for (int i = 0; i < 64; i += 4) {
-                                int u0 = ucoeffs[uvoffset] - 128;
-                                int u1 = ucoeffs[uvoffset + 1] - 128;
-                                int v0 = vcoeffs[uvoffset] - 128;
-                                int v1 = vcoeffs[uvoffset + 1] - 128;
-
-                                int p0 = coeffs[i];
-                                int p1 = coeffs[i + 1];
-                                int p2 = coeffs[i + 2];
-                                int p3 = coeffs[i + 3];
-                                int q0 = coeffs[i + 8];
-                                int q1 = coeffs[i + 9];
-                                int q2 = coeffs[i + 10];
-                                int q3 = coeffs[i + 11];
-
-                                p0 = rgb24(p0, u0, v0);
-                                p1 = rgb24(p1, u0, v0);
-                                p2 = rgb24(p2, u1, v1);
-                                p3 = rgb24(p3, u1, v1);
-
-                                mem[offset] = p0 | (p1 << 24);                 // b1r0g0b0
-                                mem[offset + 1] = ((p1 >> 8) & 0xffff) | (p2 << 16); // g2b2r1g1
-                                mem[offset + 2] = ((p2 >> 16) & 0xff) | (p3 << 8);   // r3g3b3r2
-
-                                q0 = rgb24(q0, u0, v0);
-                                q1 = rgb24(q1, u0, v0);
-                                q2 = rgb24(q2, u1, v1);
-                                q3 = rgb24(q3, u1, v1);
-
-                                mem[offset + 12] = q0 | (q1 << 24);
-                                mem[offset + 13] = ((q1 >> 8) & 0xffff) | (q2 << 16);
-                                mem[offset + 14] = ((q2 >> 16) & 0xff) | (q3 << 8);
-
-                                offset += 3;
-                                uvoffset += 2;
-                                if (4 == (i & 7)) {
-                                    i += 8;
-                                    offset += 18;
-                                    uvoffset += 4;
-                                }
-                            }
-                        }
-                    } else {
-                        if (mb >= 2) {
-                            int uvoffset = 0;
-                            int which = mb - 2;
-                            int offset = target.offset;
-                            if (0 != (which & 1)) {
-                                offset += 4;
-                                uvoffset += 4;
-                            }
-                            if (0 != (which & 2)) {
-                                offset += 64;
-                                uvoffset += 32;
-                            }
-                            for (int i = 0; i < 64; i += 4) {
-                                int u0 = ucoeffs[uvoffset] - 128;
-                                int u1 = ucoeffs[uvoffset + 1] - 128;
-                                int v0 = vcoeffs[uvoffset] - 128;
-                                int v1 = vcoeffs[uvoffset + 1] - 128;
-
-                                int p0 = coeffs[i];
-                                int p1 = coeffs[i + 1];
-                                int p2 = coeffs[i + 2];
-                                int p3 = coeffs[i + 3];
-                                int q0 = coeffs[i + 8];
-                                int q1 = coeffs[i + 9];
-                                int q2 = coeffs[i + 10];
-                                int q3 = coeffs[i + 11];
-
-                                p0 = rgb15(p0, u0, v0);
-                                p1 = rgb15(p1, u0, v0);
-                                p2 = rgb15(p2, u1, v1);
-                                p3 = rgb15(p3, u1, v1);
-
-                                mem[offset] = p0 | (p1 << 16);
-                                mem[offset + 1] = p2 | (p3 << 16);
-
-                                q0 = rgb15(q0, u0, v0);
-                                q1 = rgb15(q1, u0, v0);
-                                q2 = rgb15(q2, u1, v1);
-                                q3 = rgb15(q3, u1, v1);
-
-                                mem[offset + 8] = q0 | (q1 << 16);
-                                mem[offset + 9] = q2 | (q3 << 16);
-
-                                offset += 2;
-                                uvoffset += 2;
-                                if (4 == (i & 7)) {
-                                    i += 8;
-                                    offset += 12;
-                                    uvoffset += 4;
-                                }
-                            }
-                        }
+            if (debugMDEC) log.debug("mbcount " + mbcount + " remaining " + (sourceEnd - sourcePos) * 2);
+            if (ahead != null) {
+                if (ahead.rgb24 == rgb24 && ahead.stp == stp) {
+                    int count = ahead.copy(mbcount, target.mem, target.offset);
+                    if (count > 0) {
+                        sourcePos = ahead.getPosition();
+                        target.offset += count * mbwords;
+                        mbcount -= count;
                     }
+                } else {
+                    // the output format changed after the data arrived
+                    cancelDecodeAhead();
                 }
-                target.offset += mbsize >> 2;
+            }
+            if (parallelDecode && mbcount >= parallelThreshold) {
+                // find where each complete macroblock starts, so they can be decoded independently
+                int[] starts = new int[mbcount];
+                int count = 0;
+                int pos = sourcePos;
+                while (count < mbcount) {
+                    int next = skipMacroblock(sourceMem, pos, sourceEnd);
+                    if (next < 0) break;
+                    starts[count++] = pos;
+                    pos = next;
+                }
+                if (count >= parallelThreshold) {
+                    ForkJoinPool.commonPool().invoke(new DecodeTask(starts, 0, count, target.mem, target.offset, mbwords, rgb24, stp));
+                    sourcePos = pos;
+                    target.offset += count * mbwords;
+                    mbcount -= count;
+                }
+            }
+            // anything left is either a small transfer, or the macroblock the source ends part way through
+            for (; mbcount > 0; mbcount--) {
+                int next = decoder.decode(sourceMem, sourcePos, sourceEnd, target.mem, target.offset, rgb24, stp);
+                if (next < 0) {
+                    sourcePos = sourceEnd;
+                    break;
+                }
+                sourcePos = next;
+                target.offset += mbwords;
             }
 
-
-            if (sourceRemaining == 0) {
+            if (sourcePos == sourceEnd) {
                 if (debugMDEC) log.debug("COMPLETE!!");
 
                 status &= ~BUSY0;
@@ -456,4 +813,4 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
             if (debugMDEC) log.debug("cancel " + getName() + " DMA transfer");
         }
     }
-}
\ No newline at end of file
+}
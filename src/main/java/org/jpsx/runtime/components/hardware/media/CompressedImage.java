@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.media;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.hardware.cd.MediaException;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
+
+/**
+ * A compressed BIN image; the sectors are split into chunks which are deflated independently, with an index of
+ * the chunk offsets so that any sector can be read without decompressing the rest of the image.
+ * <p/>
+ * The file is an 8 byte magic number, then the version, sectors per chunk, sector count and chunk count as 32 bit
+ * big endian ints, then chunk count + 1 64 bit offsets (the last is the end of the file), then the chunks.
+ * <p/>
+ * Recently used chunks are kept decompressed in an LRU cache, and as each chunk is first used, the following
+ * chunks are decompressed ahead of time on a separate thread, so that sequential reads rarely wait for inflation.
+ * <p/>
+ * Run with a BIN file to convert it; a CUE file referring to the BIN file can be used unchanged, since the
+ * compressed image is used in place of the BIN file if the latter doesn't exist.
+ */
+public class CompressedImage implements Closeable {
+    private static final Logger log = Logger.getLogger("CDImage");
+
+    public static final String EXTENSION = ".cbin";
+    public static final int DEFAULT_CHUNK_SECTORS = 16;
+
+    private static final byte[] MAGIC = {'J', 'P', 'S', 'X', 'C', 'B', 'I', 'N'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    // about 2.4M with the default chunk size
+    private static final int CACHE_CHUNKS = 64;
+    private static final int READ_AHEAD_CHUNKS = 2;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkSectors;
+    private final int sectorCount;
+    private final long[] offsets;
+
+    // guarded by this
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(CACHE_CHUNKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHE_CHUNKS;
+        }
+    };
+    private final Inflater inflater = new Inflater();
+    private final ReadAheadThread readAheadThread;
+    private int lastChunk = -1;
+    private boolean closed;
+
+    private CompressedImage(RandomAccessFile file) throws IOException {
+        this.file = file;
+        channel = file.getChannel();
+        int[] header = readHeader(file);
+        chunkSectors = header[0];
+        sectorCount = header[1];
+        offsets = new long[header[2] + 1];
+        byte[] index = new byte[offsets.length * 8];
+        file.readFully(index);
+        ByteBuffer.wrap(index).asLongBuffer().get(offsets);
+        readAheadThread = new ReadAheadThread();
+    }
+
+    /**
+     * @return the sector count, chunk size and chunk count from the header, leaving the file positioned at the index
+     */
+    private static int[] readHeader(RandomAccessFile file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        file.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a compressed image");
+        }
+        int version = file.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compressed image version " + version);
+        }
+        int chunkSectors = file.readInt();
+        int sectorCount = file.readInt();
+        int chunkCount = file.readInt();
+        if (chunkSectors <= 0 || sectorCount < 0 || chunkCount != (sectorCount + chunkSectors - 1) / chunkSectors) {
+            throw new IOException("corrupt compressed image header");
+        }
+        return new int[]{chunkSectors, sectorCount, chunkCount};
+    }
+
+    /**
+     * Reads just the header of a compressed image, without the index or a read-ahead thread
+     */
+    public static int readSectorCount(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return readHeader(raf)[1];
+        }
+    }
+
+    public static CompressedImage open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new CompressedImage(raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the compressed image to use for the given BIN file; either the file itself if it has the compressed
+     *         image extension, or a compressed image of the same name if the BIN file doesn't exist; otherwise null
+     */
+    public static File getCompressedFile(File binFile) {
+        String name = binFile.getName();
+        if (name.toLowerCase().endsWith(EXTENSION)) {
+            return binFile;
+        }
+        if (!binFile.exists()) {
+            int dot = name.lastIndexOf('.');
+            File rc = new File(binFile.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+            if (rc.exists()) {
+                return rc;
+            }
+        }
+        return null;
+    }
+
+    public int getSectorCount() {
+        return sectorCount;
+    }
+
+    public void readSector(int num, byte[] buffer) throws MediaException {
+        byte[] chunk = getChunk(checkSector(num) / chunkSectors);
+        System.arraycopy(chunk, (num % chunkSectors) * SECTOR_SIZE_BYTES, buffer, 0, SECTOR_SIZE_BYTES);
+    }
+
+    /**
+     * @return a little endian view of the sector in its decompressed chunk
+     */
+    public ByteBuffer getSector(int num) throws MediaException {
+        byte[] chunk = getChunk(checkSector(num) / chunkSectors);
+        return ByteBuffer.wrap(chunk, (num % chunkSectors) * SECTOR_SIZE_BYTES, SECTOR_SIZE_BYTES).slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int checkSector(int num) throws MediaException {
+        if (num < 0 || num >= sectorCount) {
+            throw new MediaException("readSector failed; sector " + num + " is outside the image");
+        }
+        return num;
+    }
+
+    private synchronized byte[] getChunk(int index) throws MediaException {
+        if (closed) {
+            throw new MediaException("readSector failed; the compressed image is closed");
+        }
+        byte[] rc = cache.get(index);
+        if (rc == null) {
+            while (readAheadThread.isDecoding(index)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new MediaException("readSector interrupted", e);
+                }
+            }
+            rc = cache.get(index);
+            if (rc == null) {
+                try {
+                    rc = decompress(index, inflater);
+                } catch (IOException e) {
+                    throw new MediaException("readSector failed", e);
+                }
+                cache.put(index, rc);
+            }
+        }
+        if (index != lastChunk) {
+            // moved on to a new chunk, so get the next ones ready
+            lastChunk = index;
+            readAheadThread.readAhead(index + 1);
+        }
+        return rc;
+    }
+
+    private byte[] decompress(int index, Inflater inflater) throws IOException {
+        long offset = offsets[index];
+        byte[] compressed = new byte[(int) (offsets[index + 1] - offset)];
+        ByteBuffer buf = ByteBuffer.wrap(compressed);
+        while (buf.hasRemaining()) {
+            // positional reads are safe from multiple threads
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new EOFException("compressed image is truncated");
+            }
+        }
+        int sectors = Math.min(chunkSectors, sectorCount - index * chunkSectors);
+        byte[] rc = new byte[sectors * SECTOR_SIZE_BYTES];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int length = 0;
+            while (length < rc.length && !inflater.finished()) {
+                int n = inflater.inflate(rc, length, rc.length - length);
+                if (n == 0 && inflater.needsInput()) break;
+                length += n;
+            }
+            if (length != rc.length) {
+                throw new IOException("compressed image chunk " + index + " is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed image chunk " + index + " is corrupt", e);
+        }
+        return rc;
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        readAheadThread.interrupt();
+        // the read-ahead thread may be inflating from the file outside the lock, so wait for it to finish
+        boolean interrupted = false;
+        while (!readAheadThread.stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        inflater.end();
+        file.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ReadAheadThread extends Thread {
+        private final Inflater inflater = new Inflater();
+        // guarded by CompressedImage.this; the first chunk still to be read ahead, and the chunk being decoded
+        private int next = -1;
+        private int end;
+        private int decoding = -1;
+        private boolean stopped;
+
+        ReadAheadThread() {
+            super("Compressed image read-ahead");
+            setDaemon(true);
+            start();
+        }
+
+        boolean isDecoding(int index) {
+            return decoding == index;
+        }
+
+        void readAhead(int index) {
+            next = index;
+            end = Math.min(offsets.length - 1, index + READ_AHEAD_CHUNKS);
+            CompressedImage.this.notifyAll();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    int index;
+                    synchronized (CompressedImage.this) {
+                        decoding = -1;
+                        CompressedImage.this.notifyAll();
+                        while (!closed && (next < 0 || next >= end || cache.containsKey(next))) {
+                            if (next >= 0 && next < end) {
+                                next++;
+                            } else {
+                                CompressedImage.this.wait();
+                            }
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        index = next++;
+                        decoding = index;
+                    }
+                    byte[] chunk;
+                    try {
+                        chunk = decompress(index, inflater);
+                    } catch (IOException e) {
+                        // leave it to the reader to report
+                        log.warn("Compressed image read-ahead failed: " + e.getMessage());
+                        continue;
+                    }
+                    synchronized (CompressedImage.this) {
+                        cache.put(index, chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                inflater.end();
+                synchronized (CompressedImage.this) {
+                    decoding = -1;
+                    stopped = true;
+                    CompressedImage.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        BasicConfigurator.configure();
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: CompressedImage <bin file> [<" + EXTENSION + " file>] [sectors per chunk]");
+            return;
+        }
+        File bin = new File(args[0]);
+        File out;
+        if (args.length > 1) {
+            out = new File(args[1]);
+        } else {
+            String name = bin.getName();
+            int dot = name.lastIndexOf('.');
+            out = new File(bin.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+        }
+        int chunkSectors = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CHUNK_SECTORS;
+        compress(bin, out, chunkSectors);
+    }
+
+    public static void compress(File bin, File out, int chunkSectors) throws IOException {
+        long length = bin.length();
+        if (length % SECTOR_SIZE_BYTES != 0) {
+            log.warn(bin + " is not a whole number of sectors; ignoring the last " + (length % SECTOR_SIZE_BYTES) + " bytes");
+        }
+        int sectorCount = (int) (length / SECTOR_SIZE_BYTES);
+        int chunkCount = (sectorCount + chunkSectors - 1) / chunkSectors;
+        long[] offsets = new long[chunkCount + 1];
+        byte[] chunk = new byte[chunkSectors * SECTOR_SIZE_BYTES];
+        // deflate never expands incompressible data by more than a little
+        byte[] compressed = new byte[chunk.length + chunk.length / 16 + 64];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bin), 1 << 20));
+                RandomAccessFile raf = new RandomAccessFile(out, "rw")
+        ) {
+            raf.setLength(0);
+            raf.write(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(chunkSectors);
+            raf.writeInt(sectorCount);
+            raf.writeInt(chunkCount);
+            long offset = HEADER_SIZE + 8L * (chunkCount + 1);
+            raf.seek(offset);
+            for (int i = 0; i < chunkCount; i++) {
+                int size = Math.min(chunkSectors, sectorCount - i * chunkSectors) * SECTOR_SIZE_BYTES;
+                in.readFully(chunk, 0, size);
+                deflater.reset();
+                deflater.setInput(chunk, 0, size);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    n += deflater.deflate(compressed, n, compressed.length - n);
+                }
+                offsets[i] = offset;
+                raf.write(compressed, 0, n);
+                offset += n;
+            }
+            offsets[chunkCount] = offset;
+            ByteBuffer index = ByteBuffer.allocate(offsets.length * 8);
+            index.asLongBuffer().put(offsets);
+            raf.seek(HEADER_SIZE);
+            raf.write(index.array());
+        } finally {
+            deflater.end();
+        }
+        log.info("Compressed " + bin + " (" + length + " bytes) to " + out + " (" + out.length() + " bytes) in " + chunkCount + " chunks of " + chunkSectors + " sectors");
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.log4j.Logger;
 import org.digitalmediaserver.cuelib.CueParser;
 import org.digitalmediaserver.cuelib.CueSheet;
 import org.digitalmediaserver.cuelib.FileData;
+import org.digitalmediaserver.cuelib.Index;
 import org.digitalmediaserver.cuelib.TrackData;
 import org.jpsx.api.components.hardware.cd.CDDrive;
 import org.jpsx.api.components.hardware.cd.CDMedia;
@@ -32,6 +33,7 @@ import org.jpsx.runtime.util.CDUtil;
 import org.jpsx.runtime.util.MiscUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import static org.jpsx.runtime.util.CDUtil.toMSF;
@@ -90,14 +92,20 @@ public class CueBinImageDrive extends SingletonJPSXComponent implements CDDrive
         currentMedia = CueBinImageMedia.create(cueFile);
     }
 
+    /**
+     * Media for a CUE sheet and its data files, which may be one BIN file for the whole disc or one per track;
+     * sectors are read through a {@link SectorAddressMap} laid out from the FILE entries, the track indexes and
+     * any PREGAP/POSTGAP (which aren't stored in the files).
+     */
     public static class CueBinImageMedia implements CDMedia {
         int first;
         int last;
         CueSheet cueSheet;
         int[] msfList = new int[MAX_TRACKS];
         TrackType[] trackTypeList = new TrackType[MAX_TRACKS];
-        byte[] byteBuf = new byte[SECTOR_SIZE_BYTES];
-        RandomAccessFile binFile;
+        SectorAddressMap sectors;
+        File cueFile;
+        ISO9660Index iso9660Index;
 
         protected CueBinImageMedia() {
         }
@@ -127,27 +135,33 @@ public class CueBinImageDrive extends SingletonJPSXComponent implements CDDrive
             return rc;
         }
 
+        /**
+         * @return the index of the files on the disc, which is cached in a file next to the CUE file
+         */
+        public synchronized ISO9660Index getISO9660Index() {
+            if (iso9660Index == null) {
+                iso9660Index = new ISO9660Index(this, new File(cueFile.getPath() + ISO9660Index.EXTENSION));
+            }
+            return iso9660Index;
+        }
+
         private boolean parse(String cueFilename) {
-            File cueFile = new File(cueFilename);
-            File dataFile;
-            int offset = 150;
+            cueFile = new File(cueFilename);
             try (
                     FileReader fr = new FileReader(cueFile);
                     LineNumberReader reader = new LineNumberReader(fr);
             ) {
                 parse(reader);
-                dataFile = getFirstDataFile(cueFile, cueSheet);
-                binFile = new RandomAccessFile(dataFile, "r");
-                msfList[0] = toMSF(offset + (int) (binFile.length() / (long) SECTOR_SIZE_BYTES));
+                layout(cueFile);
             } catch (IOException e) {
                 log.warn("Unable to open BIN/CUE file " + cueFilename + ": " + e.getMessage());
+                MiscUtil.closeQuietly(sectors, false);
                 return false;
             }
             return true;
         }
 
         public void parse(LineNumberReader reader) throws IOException {
-            int offset = 150;
             cueSheet = CueParser.parse(reader);
             List<TrackData> l = cueSheet.getAllTrackData();
             last = l.size();
@@ -157,8 +171,6 @@ public class CueBinImageDrive extends SingletonJPSXComponent implements CDDrive
                 TrackType tt = TrackType.getTrackType(td.getDataType());
                 if (tt != null) {
                     trackTypeList[td.getNumber()] = tt;
-                    int sectorVal = td.getIndex(1).getPosition().getTotalFrames() + offset;
-                    msfList[td.getNumber()] = toMSF(sectorVal);
                     first = first < 0 ? td.getNumber() : first;
                 } else {
                     log.warn("Unable to parse track: " + td);
@@ -168,26 +180,48 @@ public class CueBinImageDrive extends SingletonJPSXComponent implements CDDrive
 //            logTracks(this);
         }
 
-        private File getFirstDataFile(File cueFile, CueSheet cueSheet) {
-            List<FileData> l = cueSheet.getFileData();
-            return new File(cueFile.getParent(), l.get(0).getFile());
+        /**
+         * Lay the data files out one after another, with track INDEX positions relative to the start of their
+         * file; a PREGAP is inserted before the track's INDEX 01 (or 00) and a POSTGAP after its data
+         */
+        private void layout(File cueFile) throws IOException {
+            int offset = 150;
+            sectors = new SectorAddressMap();
+            for (FileData fd : cueSheet.getFileData()) {
+                ImageFile file = new ImageFile(new File(cueFile.getParent(), fd.getFile()));
+                // sectors of this file added to the map so far
+                int fileSector = 0;
+                int postgap = 0;
+                for (TrackData td : fd.getTrackData()) {
+                    int pregap = td.getPregap() == null ? 0 : td.getPregap().getTotalFrames();
+                    Index start = td.getIndex(0) != null ? td.getIndex(0) : td.getIndex(1);
+                    int startSector = Math.min(start.getPosition().getTotalFrames(), file.getSectorCount());
+                    if (postgap + pregap > 0) {
+                        sectors.addSectors(file, fileSector, startSector - fileSector);
+                        fileSector = startSector;
+                        sectors.addGap(postgap + pregap);
+                    }
+                    int index1 = td.getIndex(1).getPosition().getTotalFrames();
+                    msfList[td.getNumber()] = toMSF(sectors.getSectorCount() + index1 - fileSector + offset);
+                    postgap = td.getPostgap() == null ? 0 : td.getPostgap().getTotalFrames();
+                }
+                sectors.addSectors(file, fileSector, file.getSectorCount() - fileSector);
+                sectors.addGap(postgap);
+            }
+            msfList[0] = toMSF(offset + sectors.getSectorCount());
         }
 
         public void readSector(int num, byte[] buffer) throws MediaException {
-            try {
-                // note findbugs complains about this, but we know that the value can't overflow
-                binFile.seek(num * SECTOR_SIZE_BYTES);
-                binFile.readFully(buffer, 0, SECTOR_SIZE_BYTES);
-            } catch (IOException e) {
-                throw new MediaException("readSector failed", e);
-            }
+            sectors.readSector(num, buffer);
+        }
+
+        @Override
+        public ByteBuffer getSector(int num) throws MediaException {
+            return sectors.getSector(num);
         }
 
         public void readSector(int num, int[] buffer) throws MediaException {
-            readSector(num, byteBuf);
-            for (int i = 0; i < SECTOR_SIZE_BYTES / 4; i++) {
-                buffer[i] = CDUtil.getUInt32LE(byteBuf, i << 2);
-            }
+            sectors.getSector(num).asIntBuffer().get(buffer, 0, SECTOR_SIZE_BYTES / 4);
         }
 
         public static void logTracks(CDMedia media) {
@@ -200,7 +234,7 @@ public class CueBinImageDrive extends SingletonJPSXComponent implements CDDrive
 
         @Override
         public void close() throws IOException {
-            MiscUtil.closeQuietly(binFile, true);
+            MiscUtil.closeQuietly(sectors, true);
         }
     }
 }
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.media;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.hardware.cd.CDMedia;
+import org.jpsx.api.components.hardware.cd.MediaException;
+import org.jpsx.runtime.util.CDUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
+
+/**
+ * An index of the files in the ISO9660 filesystem of a {@link CDMedia}: path to extent (LBA), size and XA
+ * attributes. The index is built by walking the directories the first time it is used, and is optionally saved to
+ * a cache file, so later lookups (by this or another run) don't read any directory sectors.
+ * <p/>
+ * The cache file is keyed by a hash of the primary volume descriptor, which records the volume's size, path
+ * tables, root directory and creation times; hashing the whole image would cost more than walking the directories.
+ * <p/>
+ * Paths are relative to the root, backslash separated as in SYSTEM.CNF, and are matched case insensitively with or
+ * without the ";1" version.
+ * <p/>
+ * Run with a CUE file to list the files on the disc, and a directory to extract them all.
+ */
+public class ISO9660Index {
+    private static final Logger log = Logger.getLogger("CDImage");
+
+    public static final String EXTENSION = ".idx";
+
+    public static final int SECTOR_DATA_SIZE = 2048;
+    // user data offset within a raw mode 2 sector
+    public static final int SECTOR_DATA_OFFSET = 24;
+
+    // XA attributes (as stored, big endian)
+    public static final int XA_FORM1 = 0x0800;
+    public static final int XA_FORM2 = 0x1000;
+    public static final int XA_INTERLEAVED = 0x2000;
+    public static final int XA_CDDA = 0x4000;
+    public static final int XA_DIRECTORY = 0x8000;
+
+    private static final int PVD_SECTOR = 16;
+    private static final int PVD_ROOT_RECORD = 156;
+    private static final int FLAG_DIRECTORY = 2;
+    // don't follow pathological directory structures forever
+    private static final int MAX_DEPTH = 16;
+
+    private static final byte[] MAGIC = {'J', 'P', 'S', 'X', 'I', 'D', 'X', '0'};
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public final String path;
+        public final int lba;
+        public final int size;
+        public final boolean directory;
+        public final int xaAttributes;
+
+        public Entry(String path, int lba, int size, boolean directory, int xaAttributes) {
+            this.path = path;
+            this.lba = lba;
+            this.size = size;
+            this.directory = directory;
+            this.xaAttributes = xaAttributes;
+        }
+
+        /**
+         * @return the size in bytes; the directory record holds it unsigned
+         */
+        public long getLength() {
+            return size & 0xffffffffL;
+        }
+
+        public int getSectorCount() {
+            return (int) ((getLength() + SECTOR_DATA_SIZE - 1) / SECTOR_DATA_SIZE);
+        }
+
+        /**
+         * @return true if the file's sectors (also) hold mode 2 form 2 data, i.e. XA audio or video streams, which
+         *         can only be read completely as raw sectors
+         */
+        public boolean isForm2() {
+            return 0 != (xaAttributes & (XA_FORM2 | XA_INTERLEAVED));
+        }
+
+        public String toString() {
+            return String.format("%-40s %8d %10d%s", path, lba, getLength(), directory ? " <DIR>" : (isForm2() ? " XA" : ""));
+        }
+    }
+
+    private final CDMedia media;
+    private final File cacheFile;
+    // guarded by this; in path order, null until built
+    private Map<String, Entry> entries;
+
+    /**
+     * @param cacheFile file to load the index from/save it to, or null
+     */
+    public ISO9660Index(CDMedia media, File cacheFile) {
+        this.media = media;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return the index for the media; shared with the media if it keeps one
+     */
+    public static ISO9660Index forMedia(CDMedia media) {
+        if (media instanceof CueBinImageDrive.CueBinImageMedia) {
+            return ((CueBinImageDrive.CueBinImageMedia) media).getISO9660Index();
+        }
+        return new ISO9660Index(media, null);
+    }
+
+    /**
+     * @return the entry for the file or directory, or null if there is none
+     */
+    public Entry getEntry(String path) throws MediaException {
+        return getEntries().get(normalize(path));
+    }
+
+    public Collection<Entry> getAllEntries() throws MediaException {
+        return Collections.unmodifiableCollection(getEntries().values());
+    }
+
+    /**
+     * @return the contents of the file (just the user data of form 2 sectors), or null if there is no such file
+     */
+    public byte[] readFile(String path) throws MediaException {
+        Entry entry = getEntry(path);
+        if (entry == null || entry.directory) {
+            return null;
+        }
+        checkExtent(entry);
+        if (entry.size < 0) {
+            throw new MediaException(entry.path + " is too large to read into memory (" + entry.getLength() + " bytes)");
+        }
+        byte[] data = new byte[entry.size];
+        int lba = entry.lba;
+        for (int offset = 0; offset < entry.size; offset += SECTOR_DATA_SIZE) {
+            ByteBuffer sector = getUserData(lba++);
+            sector.get(data, offset, Math.min(SECTOR_DATA_SIZE, entry.size - offset));
+        }
+        return data;
+    }
+
+    /**
+     * Stream the contents of a file without reading it all into memory
+     *
+     * @param raw true to read whole 2352 byte sectors (e.g. to get at form 2 XA audio or video), otherwise just the
+     *            2048 bytes of user data of each sector
+     */
+    public InputStream openStream(Entry entry, boolean raw) throws MediaException {
+        checkExtent(entry);
+        return new EntryInputStream(entry, raw);
+    }
+
+    /**
+     * Read each sector of the file once, so that it is resident in whatever caches the media has (mapped pages or
+     * decompressed chunks) before it is needed
+     */
+    public void prewarm(Entry entry) throws MediaException {
+        checkExtent(entry);
+        int end = entry.lba + entry.getSectorCount();
+        for (int lba = entry.lba; lba < end; lba++) {
+            ByteBuffer sector = media.getSector(lba);
+            sector.get(sector.position());
+        }
+    }
+
+    /**
+     * Extract every file to the directory, preserving the directory structure. Files whose paths would end up
+     * outside the directory are skipped
+     *
+     * @param raw as for {@link #openStream}; form 2 files are always extracted raw
+     */
+    public void extractAll(File dir, boolean raw) throws IOException, MediaException {
+        byte[] buffer = new byte[SECTOR_SIZE_BYTES * 16];
+        String dirPath = dir.getCanonicalPath() + File.separator;
+        for (Entry entry : getAllEntries()) {
+            File file = getExtractFile(dir, entry.path);
+            if (file == null || !file.getCanonicalPath().startsWith(dirPath)) {
+                log.warn("Not extracting " + entry.path + ": unsafe path");
+                continue;
+            }
+            if (entry.directory) {
+                file.mkdirs();
+                continue;
+            }
+            file.getParentFile().mkdirs();
+            try (
+                    InputStream in = openStream(entry, raw || entry.isForm2());
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file))
+            ) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file to extract the path to, or null if any of its names isn't a plain file name
+     */
+    private static File getExtractFile(File dir, String path) {
+        File file = dir;
+        for (String name : path.split("\\\\", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+                return null;
+            }
+            file = new File(file, name);
+        }
+        return file;
+    }
+
+    /**
+     * Check that the entry's extent lies within the image, before anything is sized from it
+     */
+    private void checkExtent(Entry entry) throws MediaException {
+        int imageSectors = getImageSectorCount();
+        if (entry.lba < 0 || (imageSectors > 0 && (long) entry.lba + entry.getSectorCount() > imageSectors)) {
+            throw new MediaException("Extent of " + entry.path + " (" + entry.lba + "+" + entry.getSectorCount() + " sectors) is outside the image");
+        }
+    }
+
+    /**
+     * @return the number of sectors on the media (from the lead-out position), or 0 if it isn't known
+     */
+    private int getImageSectorCount() {
+        int msf = media.getTrackMSF(0);
+        return Math.max(0, CDUtil.toSector(CDUtil.fromBCD((msf >> 16) & 0xff), CDUtil.fromBCD((msf >> 8) & 0xff), CDUtil.fromBCD(msf & 0xff)));
+    }
+
+    private synchronized Map<String, Entry> getEntries() throws MediaException {
+        if (entries == null) {
+            byte[] key = getKey();
+            if (cacheFile != null && cacheFile.exists()) {
+                entries = load(key);
+            }
+            if (entries == null) {
+                long t0 = System.nanoTime();
+                entries = new LinkedHashMap<String, Entry>();
+                ByteBuffer pvd = getUserData(PVD_SECTOR);
+                if (pvd.get(pvd.position()) == 1) {
+                    int root = pvd.position() + PVD_ROOT_RECORD;
+                    addDirectory("", pvd.getInt(root + 2), pvd.getInt(root + 10), 0);
+                } else {
+                    log.warn("No ISO9660 primary volume descriptor");
+                }
+                log.info("Indexed " + entries.size() + " files in " + (System.nanoTime() - t0) / 1000000 + "ms");
+                if (cacheFile != null) {
+                    save(key);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void addDirectory(String prefix, int lba, int size, int depth) throws MediaException {
+        if (depth == MAX_DEPTH) {
+            log.warn("Directory " + prefix + " is nested too deeply; ignoring");
+            return;
+        }
+        // read the whole directory first, since we recurse
+        List<Entry> directory = new ArrayList<Entry>();
+        byte[] name = new byte[255];
+        for (int offset = 0; offset < size; offset += SECTOR_DATA_SIZE) {
+            ByteBuffer sector = getUserData(lba++);
+            int base = sector.position();
+            int pos = 0;
+            while (pos < SECTOR_DATA_SIZE) {
+                int length = sector.get(base + pos) & 0xff;
+                if (length == 0) {
+                    // records don't span sectors
+                    break;
+                }
+                int nameLength = sector.get(base + pos + 32) & 0xff;
+                if (33 + nameLength > length || pos + length > SECTOR_DATA_SIZE) {
+                    log.warn("Bad directory record in " + prefix);
+                    break;
+                }
+                for (int i = 0; i < nameLength; i++) {
+                    name[i] = sector.get(base + pos + 33 + i);
+                }
+                // skip . and ..
+                if (nameLength != 1 || (name[0] != 0 && name[0] != 1)) {
+                    boolean isDirectory = 0 != (sector.get(base + pos + 25) & FLAG_DIRECTORY);
+                    int xaAttributes = 0;
+                    // the XA system use area follows the (padded) name
+                    int xa = 33 + nameLength + ((nameLength & 1) ^ 1);
+                    if (xa + 14 <= length && sector.get(base + pos + xa + 6) == 'X' && sector.get(base + pos + xa + 7) == 'A') {
+                        xaAttributes = ((sector.get(base + pos + xa + 4) & 0xff) << 8) | (sector.get(base + pos + xa + 5) & 0xff);
+                    }
+                    String path = prefix + stripVersion(new String(name, 0, nameLength, StandardCharsets.US_ASCII)).toUpperCase();
+                    directory.add(new Entry(path, sector.getInt(base + pos + 2), sector.getInt(base + pos + 10), isDirectory, xaAttributes));
+                }
+                pos += length;
+            }
+        }
+        for (Entry entry : directory) {
+            entries.put(entry.path, entry);
+            if (entry.directory) {
+                addDirectory(entry.path + "\\", entry.lba, entry.size, depth + 1);
+            }
+        }
+    }
+
+    private Map<String, Entry> load(byte[] key) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                log.warn(cacheFile + " is not an index file; rebuilding it");
+                return null;
+            }
+            byte[] fileKey = new byte[in.readUnsignedByte()];
+            in.readFully(fileKey);
+            if (!Arrays.equals(fileKey, key)) {
+                log.info(cacheFile + " is for a different image; rebuilding it");
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Entry> rc = new LinkedHashMap<String, Entry>();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                rc.put(path, new Entry(path, in.readInt(), in.readInt(), in.readBoolean(), in.readUnsignedShort()));
+            }
+            return rc;
+        } catch (IOException e) {
+            log.warn("Unable to read " + cacheFile + "; rebuilding it", e);
+            return null;
+        }
+    }
+
+    private void save(byte[] key) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(key.length);
+            out.write(key);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeInt(entry.lba);
+                out.writeInt(entry.size);
+                out.writeBoolean(entry.directory);
+                out.writeShort(entry.xaAttributes);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to save " + cacheFile, e);
+            cacheFile.delete();
+        }
+    }
+
+    private byte[] getKey() throws MediaException {
+        ByteBuffer pvd = getUserData(PVD_SECTOR);
+        pvd.limit(pvd.position() + SECTOR_DATA_SIZE);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(pvd);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a little endian buffer positioned at the start of the 2048 byte user data of the sector
+     */
+    private ByteBuffer getUserData(int lba) throws MediaException {
+        ByteBuffer buffer = media.getSector(lba);
+        buffer.position(buffer.position() + SECTOR_DATA_OFFSET);
+        return buffer;
+    }
+
+    private static String normalize(String path) {
+        path = path.replace('/', '\\');
+        while (path.startsWith("\\")) {
+            path = path.substring(1);
+        }
+        StringBuilder rc = new StringBuilder();
+        for (String name : path.split("\\\\")) {
+            if (!name.isEmpty()) {
+                if (rc.length() > 0) rc.append('\\');
+                rc.append(stripVersion(name).toUpperCase());
+            }
+        }
+        return rc.toString();
+    }
+
+    private static String stripVersion(String name) {
+        int semi = name.indexOf(';');
+        return semi < 0 ? name : name.substring(0, semi);
+    }
+
+    private class EntryInputStream extends InputStream {
+        private final boolean raw;
+        private final int end;
+        private final int sectorSize;
+        private int lba;
+        // bytes left in the file, and in the current sector
+        private long remaining;
+        private ByteBuffer sector;
+
+        EntryInputStream(Entry entry, boolean raw) {
+            this.raw = raw;
+            lba = entry.lba;
+            end = entry.lba + entry.getSectorCount();
+            sectorSize = raw ? SECTOR_SIZE_BYTES : SECTOR_DATA_SIZE;
+            remaining = raw ? (long) entry.getSectorCount() * SECTOR_SIZE_BYTES : entry.getLength();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int total = 0;
+            while (len > 0 && remaining > 0) {
+                if (sector == null || !sector.hasRemaining()) {
+                    if (lba == end) {
+                        break;
+                    }
+                    try {
+                        sector = raw ? media.getSector(lba++) : getUserData(lba++);
+                    } catch (MediaException e) {
+                        throw new IOException(e);
+                    }
+                    sector.limit(sector.position() + (int) Math.min(sectorSize, remaining));
+                }
+                int n = Math.min(len, sector.remaining());
+                sector.get(b, off, n);
+                off += n;
+                len -= n;
+                total += n;
+                remaining -= n;
+            }
+            return total;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // only skips within the current sector
+            if (sector == null || n <= 0) {
+                return 0;
+            }
+            int skip = (int) Math.min(n, sector.remaining());
+            sector.position(sector.position() + skip);
+            remaining -= skip;
+            return skip;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, MediaException {
+        BasicConfigurator.configure();
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: ISO9660Index <cue file> [<extract dir>]");
+            return;
+        }
+        CueBinImageDrive.CueBinImageMedia media = CueBinImageDrive.CueBinImageMedia.create(args[0]);
+        if (media == null) {
+            return;
+        }
+        try {
+            ISO9660Index index = media.getISO9660Index();
+            for (Entry entry : index.getAllEntries()) {
+                System.out.println(entry);
+            }
+            if (args.length > 1) {
+                index.extractAll(new File(args[1]), false);
+            }
+        } finally {
+            media.close();
+        }
+    }
+}
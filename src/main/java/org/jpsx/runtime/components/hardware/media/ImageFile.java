@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.media;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.hardware.cd.MediaException;
+import org.jpsx.runtime.util.MiscUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
+
+/**
+ * One data file of a disc image, which may be opened and closed repeatedly (see {@link SectorAddressMap}).
+ * <p/>
+ * A BIN file is memory mapped, so that sectors are read straight from the page cache without a system call.
+ * A single mapping is limited to 2G, so the file is mapped in chunks of whole sectors; if the file can't be
+ * mapped at all, sectors are read from it with seek/read as a fallback.
+ * <p/>
+ * If the data file is a {@link CompressedImage} (or the BIN file is missing but a compressed image of the same
+ * name exists), sectors are read from that instead.
+ */
+class ImageFile {
+    private static final Logger log = Logger.getLogger("CDImage");
+
+    // about 600M per mapping
+    private static final int CHUNK_SECTORS_BITS = 18;
+    private static final int CHUNK_SECTORS = 1 << CHUNK_SECTORS_BITS;
+
+    private final File file;
+    private final boolean compressedFile;
+    private final int sectorCount;
+
+    // when open, exactly one of these is non null
+    private MappedByteBuffer[] chunks;
+    private RandomAccessFile binFile;
+    private CompressedImage compressed;
+
+    ImageFile(File binFile) throws IOException {
+        File compressedFile = CompressedImage.getCompressedFile(binFile);
+        if (compressedFile != null) {
+            file = compressedFile;
+            this.compressedFile = true;
+            sectorCount = CompressedImage.readSectorCount(file);
+        } else {
+            if (!binFile.isFile()) {
+                throw new IOException(binFile + " not found");
+            }
+            file = binFile;
+            this.compressedFile = false;
+            sectorCount = (int) (binFile.length() / SECTOR_SIZE_BYTES);
+        }
+    }
+
+    public int getSectorCount() {
+        return sectorCount;
+    }
+
+    public boolean isOpen() {
+        return chunks != null || binFile != null || compressed != null;
+    }
+
+    public void open() throws IOException {
+        if (compressedFile) {
+            compressed = CompressedImage.open(file);
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer[] rc = new MappedByteBuffer[(sectorCount + CHUNK_SECTORS - 1) >> CHUNK_SECTORS_BITS];
+        try {
+            for (int i = 0; i < rc.length; i++) {
+                int sectors = Math.min(CHUNK_SECTORS, sectorCount - (i << CHUNK_SECTORS_BITS));
+                rc[i] = channel.map(FileChannel.MapMode.READ_ONLY, ((long) i << CHUNK_SECTORS_BITS) * SECTOR_SIZE_BYTES, (long) sectors * SECTOR_SIZE_BYTES);
+            }
+            chunks = rc;
+            // the mappings remain valid without the file
+            raf.close();
+        } catch (IOException e) {
+            log.warn("Unable to memory map " + file + "; reading it instead: " + e.getMessage());
+            binFile = raf;
+        }
+    }
+
+    public void close() {
+        // the mappings stay valid until they are garbage collected, but there is no need to keep them reachable
+        chunks = null;
+        MiscUtil.closeQuietly(binFile, true);
+        binFile = null;
+        MiscUtil.closeQuietly(compressed, true);
+        compressed = null;
+    }
+
+    public void readSector(int num, byte[] buffer) throws MediaException {
+        if (compressed != null) {
+            compressed.readSector(num, buffer);
+        } else if (chunks != null) {
+            mappedSector(num).get(buffer, 0, SECTOR_SIZE_BYTES);
+        } else {
+            try {
+                binFile.seek((long) num * SECTOR_SIZE_BYTES);
+                binFile.readFully(buffer, 0, SECTOR_SIZE_BYTES);
+            } catch (IOException e) {
+                throw new MediaException("readSector failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return a read only little endian view of the sector; for a mapped or compressed file this is not a copy
+     */
+    public ByteBuffer getSector(int num) throws MediaException {
+        if (compressed != null) {
+            return compressed.getSector(num);
+        }
+        if (chunks != null) {
+            return mappedSector(num);
+        }
+        byte[] buffer = new byte[SECTOR_SIZE_BYTES];
+        readSector(num, buffer);
+        return ByteBuffer.wrap(buffer).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer mappedSector(int num) {
+        ByteBuffer rc = chunks[num >> CHUNK_SECTORS_BITS].duplicate();
+        int offset = (num & (CHUNK_SECTORS - 1)) * SECTOR_SIZE_BYTES;
+        rc.limit(offset + SECTOR_SIZE_BYTES).position(offset);
+        return rc.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public String toString() {
+        return file.toString();
+    }
+}
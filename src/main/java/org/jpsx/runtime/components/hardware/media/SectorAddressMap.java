@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.media;
+
+import org.jpsx.api.components.hardware.cd.MediaException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
+
+/**
+ * Maps the absolute sector number (LBA) of a disc to a sector of one of its data files, or to a gap (a
+ * pregap/postgap which isn't stored in any file, and reads as silence).
+ * <p/>
+ * The disc is built up as a sequence of segments in LBA order. The files are opened as they are needed, but
+ * only a few are kept open at a time, closing the least recently used.
+ */
+class SectorAddressMap implements Closeable {
+    private static final int MAX_OPEN_FILES = 8;
+    private static final ByteBuffer SILENCE = ByteBuffer.wrap(new byte[SECTOR_SIZE_BYTES]).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+    // per segment; the file is null for a gap
+    private int[] segmentStarts = new int[16];
+    private ImageFile[] segmentFiles = new ImageFile[16];
+    private int[] segmentFileSectors = new int[16];
+    private int segments;
+    private int sectorCount;
+    // the segment last read from, since reads are mostly sequential
+    private int lastSegment;
+
+    private final Map<ImageFile, ImageFile> openFiles = new LinkedHashMap<ImageFile, ImageFile>(MAX_OPEN_FILES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ImageFile, ImageFile> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                eldest.getKey().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Append count sectors of the file, starting at fileSector
+     */
+    public void addSectors(ImageFile file, int fileSector, int count) {
+        if (count > 0) {
+            addSegment(file, fileSector, count);
+        }
+    }
+
+    /**
+     * Append count sectors which aren't in any file
+     */
+    public void addGap(int count) {
+        if (count > 0) {
+            addSegment(null, 0, count);
+        }
+    }
+
+    private void addSegment(ImageFile file, int fileSector, int count) {
+        if (segments == segmentStarts.length) {
+            segmentStarts = Arrays.copyOf(segmentStarts, segments * 2);
+            segmentFiles = Arrays.copyOf(segmentFiles, segments * 2);
+            segmentFileSectors = Arrays.copyOf(segmentFileSectors, segments * 2);
+        }
+        segmentStarts[segments] = sectorCount;
+        segmentFiles[segments] = file;
+        segmentFileSectors[segments] = fileSector;
+        segments++;
+        sectorCount += count;
+    }
+
+    public int getSectorCount() {
+        return sectorCount;
+    }
+
+    public synchronized void readSector(int num, byte[] buffer) throws MediaException {
+        int segment = findSegment(num);
+        ImageFile file = segmentFiles[segment];
+        if (file == null) {
+            Arrays.fill(buffer, 0, SECTOR_SIZE_BYTES, (byte) 0);
+        } else {
+            open(file).readSector(num - segmentStarts[segment] + segmentFileSectors[segment], buffer);
+        }
+    }
+
+    /**
+     * @return a read only little endian view of the sector
+     */
+    public synchronized ByteBuffer getSector(int num) throws MediaException {
+        int segment = findSegment(num);
+        ImageFile file = segmentFiles[segment];
+        if (file == null) {
+            return SILENCE.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return open(file).getSector(num - segmentStarts[segment] + segmentFileSectors[segment]);
+    }
+
+    private int findSegment(int num) throws MediaException {
+        if (num < 0 || num >= sectorCount) {
+            throw new MediaException("readSector failed; sector " + num + " is outside the image");
+        }
+        int segment = lastSegment;
+        if (num < segmentStarts[segment] || (segment + 1 < segments && num >= segmentStarts[segment + 1])) {
+            segment = Arrays.binarySearch(segmentStarts, 0, segments, num);
+            if (segment < 0) {
+                // the segment which starts before it
+                segment = -segment - 2;
+            }
+            lastSegment = segment;
+        }
+        return segment;
+    }
+
+    private ImageFile open(ImageFile file) throws MediaException {
+        if (openFiles.get(file) == null) {
+            try {
+                file.open();
+            } catch (IOException e) {
+                throw new MediaException("Unable to open " + file, e);
+            }
+            openFiles.put(file, file);
+        }
+        return file;
+    }
+
+    public synchronized void close() {
+        for (ImageFile file : openFiles.keySet()) {
+            file.close();
+        }
+        openFiles.clear();
+    }
+}
@@ -24,6 +24,10 @@ import org.jpsx.api.components.core.addressspace.MemoryMapped;
 import org.jpsx.api.components.core.irq.IRQController;
 import org.jpsx.api.components.hardware.sio.SerialDevice;
 import org.jpsx.api.components.hardware.sio.SerialPort;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.IRQOwnerBase;
@@ -72,6 +76,26 @@ public class SIO0 extends SingletonJPSXComponent implements MemoryMapped {
         HardwareComponentConnections.RIGHT_PORT_INSTANCE.set(new Port(1));
         irq = new IRQ();
         CoreComponentConnections.IRQ_OWNERS.add(irq);
+        // the devices' own state is not saved; a transfer in progress is simply abandoned
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("SIO0");
+                out.writeInt(m_baud);
+                out.writeInt(m_mode);
+                out.writeInt(m_ctrl);
+                out.writeInt(m_status);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("SIO0");
+                m_baud = in.readInt();
+                m_mode = in.readInt();
+                m_ctrl = in.readInt();
+                m_status = in.readInt() & ~STAT_DSR;
+                communicating = false;
+                currentDevice = null;
+            }
+        });
     }
 
     private static class Port implements SerialPort {
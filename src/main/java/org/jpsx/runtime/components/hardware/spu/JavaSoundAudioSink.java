@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.spu;
+
+import org.jpsx.api.components.hardware.spu.AudioSink;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the SPU output through a Java Sound line; this is what the SPU uses if no other sink is configured.
+ */
+public class JavaSoundAudioSink extends JPSXComponent implements AudioSink {
+    private SourceDataLine line;
+
+    public JavaSoundAudioSink() {
+        super("JPSX Java Sound Audio Sink");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        HardwareComponentConnections.AUDIO_SINK.set(this);
+    }
+
+    public void openAudio(int sampleRate, int bufferSamples) {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, new AudioFormat(sampleRate, 16, 2, true, false), bufferSamples * 4);
+        try {
+            line = (SourceDataLine) AudioSystem.getLine(info);
+            line.open(info.getFormats()[0], bufferSamples * 4);
+        } catch (Throwable t) {
+            throw new IllegalStateException("can't get audio line", t);
+        }
+        line.start();
+    }
+
+    public void writeAudio(byte[] data, int offset, int length) {
+        line.write(data, offset, length);
+    }
+
+    public int getQueuedSamples() {
+        return (line.getBufferSize() - line.available()) >> 2;
+    }
+
+    public void closeAudio() {
+        if (line != null) {
+            line.flush();
+            line.stop();
+            line.close();
+            line = null;
+        }
+    }
+}
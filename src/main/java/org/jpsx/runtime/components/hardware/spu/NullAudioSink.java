@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.spu;
+
+import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.hardware.spu.AudioSink;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+
+/**
+ * Discards the SPU output, but consumes it at the emulated sample rate as a real device would, so that the SPU
+ * does all the same mixing work without an audio device; for headless runs and benchmarking.
+ */
+public class NullAudioSink extends JPSXComponent implements AudioSink {
+    private Quartz quartz;
+    private int sampleRate;
+    private long startTime;
+    private long written;
+
+    public NullAudioSink() {
+        super("JPSX Null Audio Sink");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        HardwareComponentConnections.AUDIO_SINK.set(this);
+    }
+
+    @Override
+    public void resolveConnections() {
+        super.resolveConnections();
+        quartz = CoreComponentConnections.QUARTZ.resolve();
+    }
+
+    public void openAudio(int sampleRate, int bufferSamples) {
+        this.sampleRate = sampleRate;
+        startTime = quartz.nanoTime();
+        written = 0;
+    }
+
+    public void writeAudio(byte[] data, int offset, int length) {
+        written += length >> 2;
+    }
+
+    public int getQueuedSamples() {
+        long played = ((quartz.nanoTime() - startTime) * sampleRate) / Quartz.SEC;
+        return (int) Math.max(0, written - played);
+    }
+
+    public void closeAudio() {
+    }
+}
@@ -24,26 +24,35 @@ import org.jpsx.api.components.core.addressspace.AddressSpaceRegistrar;
 import org.jpsx.api.components.core.addressspace.MemoryMapped;
 import org.jpsx.api.components.core.dma.DMAController;
 import org.jpsx.api.components.core.scheduler.Quartz;
-import org.jpsx.api.components.core.scheduler.ScheduledAction;
-import org.jpsx.api.components.core.scheduler.Scheduler;
 import org.jpsx.api.components.hardware.cd.CDAudioSink;
+import org.jpsx.api.components.hardware.spu.AudioSink;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.jpsx.api.snapshot.SpeculationListener;
+import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.SingletonJPSXComponent;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.DMAChannelOwnerBase;
 import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
 import org.jpsx.runtime.util.MiscUtil;
 
-import javax.sound.sampled.*;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
-
-// todo volume panning
 // bit of a mess! needs some work.
 //
 // TODO - noise/reverb/fm
 
-// todo check if getLevel is now supported
+/**
+ * Software SPU; all voices and CD audio are mixed into a single 44.1kHz 16 bit stereo stream, which is written to
+ * the configured {@link AudioSink} (a Java Sound line by default).
+ * <p/>
+ * Mixing is done on a dedicated render thread, which renders the samples for the machine time which has passed
+ * since it last ran. Register writes which affect the voices are not applied by the CPU thread, but posted with
+ * their machine time to a lock free queue; the render thread applies them at the sample that time corresponds to.
+ * The values written are kept for reads though, so the CPU still sees them immediately.
+ */
 public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudioSink {
     private static final Logger log = Logger.getLogger("SPU");
 
@@ -93,19 +102,40 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
 
 
     private static final int SAMPLE_RATE = 44100;
-    private static final int MIN_BUFFER_SAMPLE_RATE = 16000;
     private static final int BUFFER_MS = 240;
-    private static final long BUFFER_REFILL_PERIOD_NS = 30 * Quartz.MSEC;
-    private static final int BUFFER_MAX_FILL_MS = BUFFER_MS;
-    private static final int BUFFER_MAX_REFILL_MS = 80;
+    private static final long RENDER_PERIOD_MS = 5;
+    // how much we try to keep queued in the sink; enough to cover a late render
+    private static final int BUFFER_TARGET_MS = 60;
     private static final int BUFFER_SAMPLES = (SAMPLE_RATE * BUFFER_MS) / 1000;
-
-    private static final int CD_BUFFER_SAMPLES = SAMPLE_RATE / 2;
-    private static final byte[] cdAudioBuffer = new byte[SECTOR_SIZE_BYTES * 4 * 4]; // maximum we're likely to get!
-    private static SourceDataLine cdline;
-    private static int cdlineFreq;
-    private static FloatControl cdPanControl;
-    private static FloatControl cdGainControl;
+    private static final int BUFFER_TARGET_SAMPLES = (SAMPLE_RATE * BUFFER_TARGET_MS) / 1000;
+    // most the output may be sped up or slowed down (16.16) to keep the sink at its target level
+    private static final int MAX_DRIFT_ADJUST = 0x10000 / 100;
+
+    private static AudioSink audioSink;
+    private static SPURenderThread renderThread;
+    private static final WriteQueue writeQueue = new WriteQueue();
+    // the values last written to the voice registers, for reads
+    private static final int[] voiceRegisters = new int[VOICES * 8];
+
+    // CD audio waiting to be mixed; interleaved left/right samples at cdFreq, guarded by cdLock
+    private static final Object cdLock = new Object();
+
+    // while the machine runs ahead speculatively nothing is rendered, and writes which would affect the voices are
+    // dropped, so that the voices are as they were when it is rolled back; rendering resumes from resyncTime
+    private static final Object speculationLock = new Object();
+    private static volatile boolean speculating;
+    private static long resyncTime = -1;
+    private static short[] cdRing;
+    private static int cdRingFrames;
+    private static int cdRead;
+    private static int cdWrite;
+    private static boolean cdPlaying;
+    private static int cdFreq;
+    // 16.16 step through the CD audio per output sample, and the fraction we're at
+    private static int cdStep;
+    private static int cdFraction;
+    private static int cdLeftGain;
+    private static int cdRightGain;
     private static int cdLeftVol = 0;
     private static int cdRightVol = 0;
     private static int cdLeftVolExternal = 0x3fff;
@@ -116,8 +146,15 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
     private static int m_dataTransferWordOffset;
 
     private static int[] m_ram = new int[512 * 1024 / 4];
+    private static int[] restoredRAM;
     private static short[] m_decoded = new short[1024 * 1024];
-    // 4 short header bytes then 28 short samples... * 32768
+    // 4 short header (unused, then the decoder history) then 28 short samples... * 32768
+    private static final int BLOCKS = 32768;
+    // one bit per 16 byte ADPCM block, set when m_decoded holds the block decoded from the current m_ram contents;
+    // cleared by the CPU thread when the RAM is written, set by whichever thread decodes the block
+    private static final AtomicIntegerArray validBlocks = new AtomicIntegerArray(BLOCKS / 32);
+    // DMA uploads of at least this many blocks are decoded straight away, rather than as the voices reach them
+    private static final int BULK_DECODE_BLOCKS = 64;
 
     private static Voice[] voices = new Voice[VOICES];
 
@@ -126,12 +163,15 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
     public static final String PROPERTY_CD_AUDIO = "cdAudio";
     public static final String PROPERTY_VOICE_AUDIO = "voiceAudio";
 
+    // decoded, and owned by the render thread
     private static int mainLeftVol;
     private static int mainRightVol;
+    // the register values as last written by the CPU, for snapshots
+    private static int mainLeftVolRegister;
+    private static int mainRightVolRegister;
 
     private static AddressSpace addressSpace;
     private static Quartz quartz;
-    private static Scheduler scheduler;
 
     public SPU() {
         super("JPSX JavaSound SPU");
@@ -148,27 +188,94 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         }
         CoreComponentConnections.ALL_MEMORY_MAPPED.add(this);
         CoreComponentConnections.DMA_CHANNEL_OWNERS.add(new SPUDMAChannel());
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.add(new SnapshotParticipant() {
+            public void saveState(SnapshotWriter out) {
+                out.beginSection("SPU");
+                out.writeInt(m_ctrl);
+                out.writeInt(m_transferOffset);
+                out.writeInt(m_dataTransferWordOffset);
+                out.writeInt(mainLeftVolRegister);
+                out.writeInt(mainRightVolRegister);
+                out.writeInt(cdLeftVol);
+                out.writeInt(cdRightVol);
+                out.writeInts(voiceRegisters, 0, voiceRegisters.length);
+                out.writeInts(m_ram, 0, m_ram.length);
+            }
+
+            public void loadState(SnapshotReader in) {
+                in.beginSection("SPU");
+                loadSPUState(in);
+            }
+        });
+        RuntimeConnections.SPECULATION_LISTENERS.add(new SpeculationListener() {
+            public void speculationStarted() {
+                synchronized (speculationLock) {
+                    speculating = true;
+                }
+            }
+
+            public void speculationEnded() {
+                synchronized (speculationLock) {
+                    resyncTime = quartz.nanoTime();
+                    speculating = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * The voices' playback state belongs to the render thread, so it is not part of a snapshot; instead the voice
+     * and main volume registers are reapplied through the render thread, and all voices keyed off, so sounds playing
+     * when the snapshot was taken are cut short.
+     * When rolling back a speculative run this isn't necessary, as the voices were left alone during it.
+     */
+    private static void loadSPUState(SnapshotReader in) {
+        m_ctrl = in.readInt();
+        m_transferOffset = in.readInt();
+        m_dataTransferWordOffset = in.readInt();
+        mainLeftVolRegister = in.readInt();
+        mainRightVolRegister = in.readInt();
+        cdLeftVol = in.readInt();
+        cdRightVol = in.readInt();
+        in.readInts(voiceRegisters, 0, voiceRegisters.length);
+        if (restoredRAM == null) {
+            restoredRAM = new int[m_ram.length];
+        }
+        in.readInts(restoredRAM, 0, m_ram.length);
+        // only blocks which actually changed need decoding again
+        for (int block = 0; block < BLOCKS; block++) {
+            int i = block << 2;
+            if (m_ram[i] != restoredRAM[i] || m_ram[i + 1] != restoredRAM[i + 1] || m_ram[i + 2] != restoredRAM[i + 2] || m_ram[i + 3] != restoredRAM[i + 3]) {
+                System.arraycopy(restoredRAM, i, m_ram, i, 4);
+                invalidateBlocks(block, 1);
+            }
+        }
+        updateCDVolume();
+        if (!speculating) {
+            // the main volume is applied on the render thread, which also updates the voice and CD gains
+            postWrite(ADDR_MAIN_VOL_L, mainLeftVolRegister);
+            postWrite(ADDR_MAIN_VOL_R, mainRightVolRegister);
+            for (int i = 0; i < voiceRegisters.length; i++) {
+                postWrite(ADDR_VOICES + (i << 1), voiceRegisters[i]);
+            }
+            postWrite(ADDR_CHANNEL_OFF0, 0xffff);
+            postWrite(ADDR_CHANNEL_OFF1, 0xff);
+        }
     }
 
     public void resolveConnections() {
         super.resolveConnections();
         addressSpace = CoreComponentConnections.ADDRESS_SPACE.resolve();
         quartz = CoreComponentConnections.QUARTZ.resolve();
-        scheduler = CoreComponentConnections.SCHEDULER.resolve();
+        audioSink = HardwareComponentConnections.AUDIO_SINK.peek();
+        if (audioSink == null) {
+            audioSink = new JavaSoundAudioSink();
+        }
     }
 
     public void registerAddresses(AddressSpaceRegistrar registrar) {
         for (int i = 0; i < VOICES; i++) {
-            Voice v = new Voice(i);
-            voices[i] = v;
-
-            if (i == 0 && !v.line.isControlSupported(FloatControl.Type.SAMPLE_RATE)) {
-                log.warn("Rate control is NOT supported, hacking around it for now - might sound a bit weird until fixed properly");
-            }
-            if (i == 0 && !v.line.isControlSupported(FloatControl.Type.PAN)) {
-                // todo to fix this we need to make the voice stereo instead (identical channels)
-                log.warn("Pan control is NOT supported, voices will not be stereo positioned");
-            }
+            voices[i] = new Voice(i);
 
             int base = ADDR_VOICES + i * 0x10;
             registrar.registerWrite16Callback(base + VOICE_VOL_L, SPU.class, "writeVolLeft");
@@ -220,37 +327,34 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
     }
 
     public void begin() {
-        new SPUCallback().start();
+        if (voiceAudio || cdAudio) {
+            audioSink.openAudio(SAMPLE_RATE, BUFFER_SAMPLES);
+            renderThread = new SPURenderThread();
+        }
     }
 
     public static void writeVolLeft(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setLeftVol(val);
+        postVoiceWrite(address, val);
     }
 
     public static void writeVolRight(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setRightVol(val);
+        postVoiceWrite(address, val);
     }
 
     public static void writePitch(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setPitch(val);
+        postVoiceWrite(address, val);
     }
 
     public static void writeStartOffset(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setStartOffset(val);
+        postVoiceWrite(address, val);
     }
 
     public static void writeADSLevel(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setADSLevel(val);
+        postVoiceWrite(address, val);
     }
 
     public static void writeSRRate(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setSRRate(val);
+        postVoiceWrite(address, val);
     }
 
     public static int readADSRVol(int address) {
@@ -259,56 +363,139 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
     }
 
     public static void writeRepeatOffset(int address, int val) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        voices[voice].setRepeatOffset(val);
+        postVoiceWrite(address, val);
     }
 
     public static int readVolLeft(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getLeftVol();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readVolRight(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getRightVol();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readPitch(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getPitch();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readStartOffset(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getStartOffset();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readADSLevel(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getADSLevel();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readSRRate(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getSRRate();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static int readRepeatOffset(int address) {
-        int voice = (address - ADDR_VOICES) >> 4;
-        return voices[voice].getRepeatOffset();
+        return voiceRegisters[(address - ADDR_VOICES) >> 1];
     }
 
     public static void writeMainVolLeft(int address, int val) {
-        mainLeftVol = decodeVolume(val);
-        for (int i = 0; i < VOICES; i++) {
-            voices[i].updateVolume();
-        }
+        mainLeftVolRegister = val;
+        postWrite(address, val);
     }
 
     public static void writeMainVolRight(int address, int val) {
-        mainRightVol = decodeVolume(val);
-        for (int i = 0; i < VOICES; i++) {
-            voices[i].updateVolume();
+        mainRightVolRegister = val;
+        postWrite(address, val);
+    }
+
+    private static void postVoiceWrite(int address, int val) {
+        voiceRegisters[(address - ADDR_VOICES) >> 1] = val;
+        postWrite(address, val);
+    }
+
+    /**
+     * Have a register write which affects the rendered audio applied at the current machine time
+     */
+    private static void postWrite(int address, int val) {
+        if (speculating) return;
+        long time = quartz.nanoTime();
+        if (renderThread != null) {
+            writeQueue.post(time, address, val);
+        } else {
+            applyWrite(time, address, val);
+        }
+    }
+
+    /**
+     * Called on the render thread (unless there isn't one) to apply a register write
+     */
+    private static void applyWrite(long time, int address, int val) {
+        if (address < ADDR_MAIN_VOL_L) {
+            Voice voice = voices[(address - ADDR_VOICES) >> 4];
+            switch (address & 0xf) {
+                case VOICE_VOL_L:
+                    voice.setLeftVol(val);
+                    break;
+                case VOICE_VOL_R:
+                    voice.setRightVol(val);
+                    break;
+                case VOICE_PITCH:
+                    voice.setPitch(val);
+                    break;
+                case VOICE_START_OFFSET:
+                    voice.setStartOffset(val);
+                    break;
+                case VOICE_ADS_LEVEL:
+                    voice.setADSLevel(val);
+                    break;
+                case VOICE_SR_RATE:
+                    voice.setSRRate(val);
+                    break;
+                case VOICE_REPEAT_OFFSET:
+                    voice.setRepeatOffset(val);
+                    break;
+            }
+            return;
+        }
+        switch (address) {
+            case ADDR_MAIN_VOL_L:
+                mainLeftVol = decodeVolume(val);
+                for (int i = 0; i < VOICES; i++) {
+                    voices[i].updateVolume();
+                }
+                updateCDVolume();
+                break;
+            case ADDR_MAIN_VOL_R:
+                mainRightVol = decodeVolume(val);
+                for (int i = 0; i < VOICES; i++) {
+                    voices[i].updateVolume();
+                }
+                updateCDVolume();
+                break;
+            case ADDR_CHANNEL_ON0:
+                for (int i = 0; i < 16; i++) {
+                    if ((val & (1 << i)) != 0) {
+                        voices[i].on(time);
+                    }
+                }
+                break;
+            case ADDR_CHANNEL_ON1:
+                for (int i = 0; i < 8; i++) {
+                    if ((val & (1 << i)) != 0) {
+                        voices[i + 16].on(time);
+                    }
+                }
+                break;
+            case ADDR_CHANNEL_OFF0:
+                for (int i = 0; i < 16; i++) {
+                    if ((val & (1 << i)) != 0) {
+                        voices[i].off();
+                    }
+                }
+                break;
+            case ADDR_CHANNEL_OFF1:
+                for (int i = 0; i < 8; i++) {
+                    if ((val & (1 << i)) != 0) {
+                        voices[i + 16].off();
+                    }
+                }
+                break;
         }
     }
 
@@ -319,80 +506,72 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
     }
 
     public static void writeChannelOn0(int address, int val) {
-        for (int i = 0; i < 16; i++) {
-            if ((val & (1 << i)) != 0) {
-                voices[i].on();
-            }
-        }
+        postWrite(address, val);
     }
 
     public static void writeChannelOn1(int address, int val) {
-        for (int i = 0; i < 8; i++) {
-            if ((val & (1 << i)) != 0) {
-                voices[i + 16].on();
-            }
-        }
+        postWrite(address, val);
     }
 
     public static void writeChannelOff0(int address, int val) {
-        for (int i = 0; i < 16; i++) {
-            if ((val & (1 << i)) != 0) {
-                voices[i].off();
-            }
-        }
+        postWrite(address, val);
     }
 
     public static void writeChannelOff1(int address, int val) {
-        for (int i = 0; i < 8; i++) {
-            if ((val & (1 << i)) != 0) {
-                voices[i + 16].off();
-            }
-        }
+        postWrite(address, val);
     }
 
     public static void writeChannelFM0(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 16; i++) {
             voices[i].setFM((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelFM1(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 8; i++) {
             voices[i + 16].setFM((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelNoise0(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 16; i++) {
             voices[i].setNoise((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelNoise1(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 8; i++) {
             voices[i + 16].setNoise((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelReverb0(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 16; i++) {
             voices[i].setReverb((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelReverb1(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 8; i++) {
             voices[i + 16].setReverb((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelMute0(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 16; i++) {
             voices[i].setMute((val & (1 << i)) != 0);
         }
     }
 
     public static void writeChannelMute1(int address, int val) {
+        if (speculating) return;
         for (int i = 0; i < 8; i++) {
             voices[i + 16].setMute((val & (1 << i)) != 0);
         }
@@ -439,13 +618,13 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
 
     public static void writeTransferData(int address, int val) {
         int index = m_dataTransferWordOffset >> 1;
-        m_decoded[(m_dataTransferWordOffset << 2) & 0xfffffff0] = 0;
-        // todo mark area as dirty.
         if (0 == (m_dataTransferWordOffset & 1)) {
             m_ram[index] = (m_ram[index] & 0xffff0000) | (val & 0xffff);
         } else {
             m_ram[index] = (m_ram[index] & 0xffff) | (val << 16);
         }
+        // 8 halfwords per block
+        invalidateBlocks(m_dataTransferWordOffset >> 3, 1);
         m_dataTransferWordOffset++;
     }
 
@@ -480,12 +659,17 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
                     System.out.println("transfer to SPU overrun buffer by " + ((destIndex + size) - 0x20000) + " dwords");
                 size = 0x20000 - destIndex;
             }
-            int[] src = rr.mem;
-            for (size = size - 1; size >= 0; size--) {
-                // destIndex = 0->0x020000;
-                // decoded   = 0->0x100000;
-                m_decoded[(destIndex << 3) & 0xfffffff0] = 0;
-                m_ram[destIndex++] = src[srcIndex++];
+            if (size > 0) {
+                System.arraycopy(rr.mem, srcIndex, m_ram, destIndex, size);
+                // 4 dwords per block
+                int firstBlock = destIndex >> 2;
+                int blockCount = ((destIndex + size + 3) >> 2) - firstBlock;
+                invalidateBlocks(firstBlock, blockCount);
+                if (blockCount >= BULK_DECODE_BLOCKS) {
+                    for (int block = firstBlock; block < firstBlock + blockCount; block++) {
+                        decodeBlock(block);
+                    }
+                }
             }
             signalTransferComplete();
         }
@@ -509,31 +693,160 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         }
     }
 
-    public static class SPUCallback implements ScheduledAction {
-        private long next;
-        private static byte[] buffer = new byte[BUFFER_SAMPLES * 2];
+    /**
+     * Single producer (the CPU thread), single consumer (the render thread) queue of register writes
+     */
+    private static final class WriteQueue {
+        private static final int CAPACITY = 4096;
+        private static final int MASK = CAPACITY - 1;
+        private final long[] times = new long[CAPACITY];
+        private final int[] addresses = new int[CAPACITY];
+        private final int[] values = new int[CAPACITY];
+        // only written by the consumer
+        private volatile int head;
+        // only written by the producer
+        private volatile int tail;
+
+        void post(long time, int address, int value) {
+            int t = tail;
+            while (t - head == CAPACITY) {
+                // the render thread has fallen a long way behind
+                Thread.yield();
+            }
+            times[t & MASK] = time;
+            addresses[t & MASK] = address;
+            values[t & MASK] = value;
+            tail = t + 1;
+        }
 
-        public void start() {
-            next = quartz.nanoTime() + (BUFFER_REFILL_PERIOD_NS << 4);
-            scheduler.schedule(next, this);
+        /**
+         * @return the time of the next write, or Long.MAX_VALUE if there are none
+         */
+        long peekTime() {
+            int h = head;
+            return h == tail ? Long.MAX_VALUE : times[h & MASK];
         }
 
-        public long run(long currentTime) {
-            //System.out.println("invoke "+time);
-            for (int i = 0; i < VOICES; i++) {
-                voices[i].fill(buffer, false);
-            }
-            next = quartz.nanoTime() + BUFFER_REFILL_PERIOD_NS;
-            return next;
+        void applyNext() {
+            int h = head;
+            applyWrite(times[h & MASK], addresses[h & MASK], values[h & MASK]);
+            head = h + 1;
         }
     }
 
-    // for debugging
-    private static byte[] debugbuffer = new byte[BUFFER_SAMPLES * 2];
+    private static final class SPURenderThread extends Thread {
+        // interleaved left/right samples being mixed
+        private final int[] mixBuffer = new int[BUFFER_SAMPLES * 2];
+        private final byte[] outputBuffer = new byte[(BUFFER_SAMPLES + BUFFER_SAMPLES / 50) * 4];
+        // samples rendered since the machine started
+        private long rendered;
+        // drift correction resampling state; position is 16.16 from the last sample of the previous render
+        private int position;
+        private int lastLeft, lastRight;
+
+        SPURenderThread() {
+            super("SPU render");
+            setPriority(NORM_PRIORITY + 2);
+            setDaemon(true);
+            rendered = sampleAt(quartz.nanoTime());
+            if (audioSink.getQueuedSamples() >= 0) {
+                // start with the sink at its target level
+                audioSink.writeAudio(outputBuffer, 0, BUFFER_TARGET_SAMPLES * 4);
+            }
+            start();
+        }
+
+        private static long sampleAt(long time) {
+            return (time * SAMPLE_RATE) / Quartz.SEC;
+        }
 
-    public static void fill() {
-        for (int i = 0; i < VOICES; i++) {
-            voices[i].fill(debugbuffer, BUFFER_SAMPLES * 2);
+        public void run() {
+            try {
+                while (true) {
+                    render();
+                    Thread.sleep(RENDER_PERIOD_MS);
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        }
+
+        private void render() {
+            long target;
+            synchronized (speculationLock) {
+                if (speculating) return;
+                if (resyncTime >= 0) {
+                    // skip the time spent running ahead
+                    rendered = Math.max(rendered, sampleAt(resyncTime));
+                    resyncTime = -1;
+                }
+                target = sampleAt(quartz.nanoTime());
+            }
+            int samples = (int) Math.min(target - rendered, BUFFER_SAMPLES);
+            if (samples <= 0) return;
+            // if we fell too far behind, skip ahead rather than trying to catch up
+            rendered = target - samples;
+
+            Arrays.fill(mixBuffer, 0, samples * 2, 0);
+            int pos = 0;
+            while (pos < samples) {
+                long time;
+                while ((time = writeQueue.peekTime()) != Long.MAX_VALUE && sampleAt(time) <= rendered + pos) {
+                    writeQueue.applyNext();
+                }
+                int next = samples;
+                if (time != Long.MAX_VALUE) {
+                    next = (int) Math.min(samples, sampleAt(time) - rendered);
+                }
+                if (voiceAudio && !noVoices) {
+                    for (int i = 0; i < VOICES; i++) {
+                        voices[i].mix(mixBuffer, pos, next - pos);
+                    }
+                }
+                pos = next;
+            }
+            if (cdAudio) {
+                mixCDAudio(mixBuffer, samples);
+            }
+            rendered += samples;
+            write(samples);
+        }
+
+        /**
+         * Write the mixed samples to the sink, resampling very slightly so as to keep the amount queued in the sink
+         * near its target; this absorbs the difference between the machine's clock and the audio device's
+         */
+        private void write(int samples) {
+            int queued = audioSink.getQueuedSamples();
+            int adjust = queued < 0 ? 0 : (int) (((long) (queued - BUFFER_TARGET_SAMPLES) * MAX_DRIFT_ADJUST) / BUFFER_TARGET_SAMPLES);
+            if (adjust > MAX_DRIFT_ADJUST) adjust = MAX_DRIFT_ADJUST;
+            if (adjust < -MAX_DRIFT_ADJUST) adjust = -MAX_DRIFT_ADJUST;
+            int step = 0x10000 + adjust;
+
+            int limit = samples << 16;
+            int bytes = 0;
+            for (; position < limit; position += step) {
+                int i = position >> 16;
+                int fraction = position & 0xffff;
+                int l0 = i == 0 ? lastLeft : mixBuffer[i * 2 - 2];
+                int r0 = i == 0 ? lastRight : mixBuffer[i * 2 - 1];
+                int l = l0 + (int) (((long) (mixBuffer[i * 2] - l0) * fraction) >> 16);
+                int r = r0 + (int) (((long) (mixBuffer[i * 2 + 1] - r0) * fraction) >> 16);
+                bytes = writeSample(bytes, l);
+                bytes = writeSample(bytes, r);
+            }
+            position -= limit;
+            lastLeft = mixBuffer[samples * 2 - 2];
+            lastRight = mixBuffer[samples * 2 - 1];
+            audioSink.writeAudio(outputBuffer, 0, bytes);
+        }
+
+        private int writeSample(int offset, int val) {
+            if (val > 32767) val = 32767;
+            if (val < -32768) val = -32768;
+            outputBuffer[offset] = (byte) val;
+            outputBuffer[offset + 1] = (byte) (val >> 8);
+            return offset + 2;
         }
     }
 
@@ -559,41 +872,24 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         private boolean decS;
         private int pitch;
 
-        private int vol;
+        // 0-0x1fff, applied to samples >> 14
+        private int leftGain;
+        private int rightGain;
         private int sampleDelta;
         private int startOffset;
         private int blockOffset;
         private int repeatOffset;
         private int sample;
         private int currentBlockSample;
-        private boolean locked;
         private int envelope;
         private int currentMS;
         private int currentSubMS;
-        private int adslevel;
-        private int srrate;
 
         private static final int ENVELOPE_HISTORY_SIZE = 256;
         private int[] envelopeHistory = new int[ENVELOPE_HISTORY_SIZE];
         private long onTime;
         private long offTime;
 
-        private static byte[] buffer = new byte[BUFFER_SAMPLES * 2];
-
-        private static DataLine.Info desiredLine = new DataLine.Info(SourceDataLine.class,
-                new AudioFormat[]{new AudioFormat(SAMPLE_RATE, 16, 1, true, false)},
-// Guess this was ignored by the software mixer - doesn't really make much sense
-//                0, BUFFER_SAMPLES * 2);
-                BUFFER_SAMPLES * 2, AudioSystem.NOT_SPECIFIED);
-        private SourceDataLine line;
-        private FloatControl panControl;
-        private FloatControl rateControl;
-
-        private boolean slow;
-        private int sampleRate;
-        private int BUFFER_MAX_REFILL_SAMPLES;
-        private int BUFFER_MAX_FILL_SAMPLES;
-
         private static int[] adsrRates = initADSR();
 
         private static int[] initADSR() {
@@ -636,18 +932,11 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         }
 
         public Voice(int index) {
-            if (!voiceAudio) return;
             this.index = index;
-            try {
-                line = (SourceDataLine) AudioSystem.getLine(desiredLine);
-                line.open();
-            } catch (Throwable t) {
-                throw new IllegalStateException("can't get line for voice " + index, t);
-            }
             state = OFF;
         }
 
-        public void on() {
+        public void on(long time) {
             if (!voiceAudio) return;
             //if (index!=0) return;
             if (debugVoiceOnOff) System.out.println("voice on " + this);
@@ -655,9 +944,6 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
 //                System.out.println(this+" VOICE ON WHEN ACTIVE!");
             }
             state = OFF;
-            line.flush();
-            line.stop();
-            //line.drain();
 
             repeatOffset = 0;
             sample = 0;
@@ -666,35 +952,12 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             currentMS = 0;
             currentSubMS = 1000;
 
-            slow = pitch < 0x1000;
-            if (rateControl == null) {
-                // temp hack to get around loss of RateControl is JDK7 
-				// surprised this works, but as far as I recall, I must
-				// have done the frequency myself for anything higher than
-				// the SAMPLE_RATE, so forcing slow = false makes
-				// us do it in software, which might sound bad without filtering
-				// but is good enough for now
-                slow = false;
-            }
-            sampleRate = slow ? ((SAMPLE_RATE * pitch) >> 12) : SAMPLE_RATE;
-            int min = sampleRate < MIN_BUFFER_SAMPLE_RATE ? MIN_BUFFER_SAMPLE_RATE : sampleRate;
-            BUFFER_MAX_REFILL_SAMPLES = (min * BUFFER_MAX_REFILL_MS) / 1000;
-            BUFFER_MAX_FILL_SAMPLES = (min * BUFFER_MAX_FILL_MS) / 1000;
-            //System.out.println("slow="+slow+" sample rate="+sampleRate+" max samples="+BUFFER_MAX_REFILL_SAMPLES);
-            if (rateControl != null) {
-                rateControl.setValue(sampleRate);
-            }
-            if (!noVoices) {
-                line.start();
-            }
-
             envelope = 0;
             //System.out.println("onTime "+onTime);
-            onTime = quartz.nanoTime();
+            onTime = time;
             offTime = Long.MAX_VALUE;
             state = ATTACK;
             if (debugEnvelope) System.out.println("voice " + index + " to ATTACK");
-            fill(buffer, true);
         }
 
         public void off() {
@@ -741,38 +1004,9 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             updateVolume();
         }
 
-        public int getLeftVol() {
-            return leftVol;
-        }
-
-        public int getRightVol() {
-            return leftVol;
-        }
-
         public void updateVolume() {
-            if (!voiceAudio) return;
-            // set volume to max of left/right, then set pan
-            // assuming that:
-            // lscale = (pan<0)?1:(1-pan);
-            // rscale = (pan<0)?(1+pan):1;
-
-            int l = (leftVol * mainLeftVol) >> 15;
-            int r = (rightVol * mainRightVol) >> 15;
-            if (panControl == null) {
-				// todo fix this, for now without pan control, just average l/r volume
-                vol = (l + r) / 2;
-            } else {
-                if (l == r) {
-                    vol = l;
-                    panControl.setValue(0.0f);
-                } else if (l > r) {
-                    vol = l;
-                    panControl.setValue(((float) r) / l - 1.0f);
-                } else {
-                    vol = r;
-                    panControl.setValue(1.0f - ((float) l) / r);
-                }
-            }
+            leftGain = (leftVol * mainLeftVol) >> 15;
+            rightGain = (rightVol * mainRightVol) >> 15;
         }
 
         public void setPitch(int nPitch) {
@@ -783,20 +1017,11 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             }
         }
 
-        public int getPitch() {
-            return pitch;
-        }
-
         public void setStartOffset(int nOffset) {
             startOffset = nOffset;
         }
 
-        public int getStartOffset() {
-            return startOffset;
-        }
-
         public void setADSLevel(int val) {
-            adslevel = val;
             expA = (val & 0x8000) != 0;
             rateA = (val >> 8) & 0x7f;
             rateA ^= 0x7f;
@@ -806,12 +1031,7 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             levelS = val & 0xf;
         }
 
-        public int getADSLevel() {
-            return adslevel;
-        }
-
         public void setSRRate(int val) {
-            srrate = val;
             expS = (val & 0x8000) != 0;
             decS = (val & 0x4000) != 0;
             rateS = (val >> 6) & 0x7f;
@@ -821,10 +1041,6 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             rateR ^= 0x1f;
         }
 
-        public int getSRRate() {
-            return srrate;
-        }
-
         public int getADSRVol() {
             if (!voiceAudio) return 0;
             long time = quartz.nanoTime();
@@ -849,21 +1065,6 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             repeatOffset = nRepeat;
         }
 
-        public int getRepeatOffset() {
-            return repeatOffset;
-        }
-
-        public synchronized boolean lock() {
-            if (locked)
-                return false;
-            locked = true;
-            return true;
-        }
-
-        public synchronized void unlock() {
-            locked = false;
-        }
-
         private static final int[] expIndex = new int[]{
                 0, 4, 6, 8, 9, 10, 11, 12
         };
@@ -933,128 +1134,47 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             }
         }
 
-        public void fill(byte[] buffer, boolean unlimited) {
-            int max = unlimited ? BUFFER_MAX_FILL_SAMPLES : BUFFER_MAX_REFILL_SAMPLES;
-            fill(buffer, max);
-        }
-
-        public void fill(byte[] buffer, int max) {
-            if (noVoices) {
+        /**
+         * Add the voice's next samples to the interleaved left/right mix buffer, starting at sample offset
+         */
+        public void mix(int[] mix, int offset, int samples) {
+            if (state == OFF || sampleDelta == 0) {
                 return;
             }
-            if (lock()) {
-                if (state == OFF || sampleDelta == 0) {
-                    //if (line.isActive() && line.available()==line.getBufferSize()) {
-                    //    System.out.println(this+" line is drained and off, stopping!");
-                    //    line.close();
-                    //}
-                    unlock();
-                    return;
-                }
-                //System.out.println( Thread.currentThread().getName()+" thread fills");
-                int sampleCount = line.available() >> 1;
-                if (sampleCount == 0) {
-                    unlock();
-                    return;
-                }
-                if (sampleCount > max) {
-                    sampleCount = max;
-                }
-                int bufferBytes = 0;
-                if (slow) {
-                    // todo removed this because it keeps failing!
-                    //assert sampleDelta <= 0x800;
-                    //System.out.println( this + " filling "+sampleCount+" slow samples");
-                    for (int count = 0; count < sampleCount; count++) {
-                        int s = sample >> 11;
-                        int sold = s;
-                        do {
-                            updateADSR();
-                            sample += sampleDelta;
-                            s = sample >> 11;
-                        } while (s == sold);
-                        //updateADSR();
-                        int decodeIndex = blockOffset << 4;
-                        if (s >= currentBlockSample + 28) {
-                            currentBlockSample += 28;
-                            blockOffset += 2;
-                            decodeIndex += 32;
-
-                            int srcIndex = blockOffset << 1;
-                            int code = (m_ram[srcIndex] >> 8) & 0xff;
-                            if (0 != (code & 1)) {
-                                state = OFF;
-                                if (debugEnvelope) System.out.println("voice " + index + " to OFF (sample ended)");
-                                offTime = onTime + currentMS * Quartz.MSEC;
-                                //System.out.println("offTime "+offTime+" ("+((offTime-onTime)>>4)+")");
-                                break;
-                            }
-                            if (m_decoded[decodeIndex] == 0) {
-                                //System.out.g(this+" decode block at "+MiscUtil.toHex( nextBlockOffset, 4)+" code "+code);
-                                //    System.out.println("  decompress");
-                                decompressBlock(blockOffset);
-                            }
-                            // note maximum sample step is 16 samples, so we can't skip a block
-                        }
-                        int val = m_decoded[decodeIndex + 4 + s - currentBlockSample];
-                        val = (val * vol) >> 14;
-                        val = (val * (envelope >> 16)) >> 15;
-                        //if (index==0) System.out.println(index+" "+state+" "+MiscUtil.toHex( envelope, 8)+" "+MiscUtil.toHex( val, 4));
-                        buffer[bufferBytes++] = (byte) val;
-                        buffer[bufferBytes++] = (byte) (val >> 8);
-                        currentSubMS -= 1000;
-                        if (currentSubMS <= 0) {
-                            envelopeHistory[(currentMS >> 2) % ENVELOPE_HISTORY_SIZE] = envelope;
-                            currentMS += 4;
-                            currentSubMS += sampleRate * 4;
-                            //if (index==0) System.out.println(currentMS+" "+MiscUtil.toHex(envelope>>16,4));
-                        }
+            int index = offset * 2;
+            for (int count = 0; count < samples; count++) {
+                updateADSR();
+                int s = (sample >> 11);
+                int decodeIndex = blockOffset << 4;
+                if (s >= currentBlockSample + 28) {
+                    currentBlockSample += 28;
+                    blockOffset += 2;
+                    decodeIndex += 32;
+
+                    int srcIndex = blockOffset << 1;
+                    int code = (m_ram[srcIndex] >> 8) & 0xff;
+                    if (0 != (code & 1)) {
+                        state = OFF;
+                        offTime = onTime + currentMS * Quartz.MSEC;
+                        if (debugEnvelope) System.out.println("voice " + this.index + " to OFF (sample ended)");
+                        break;
                     }
-                } else {
-                    //System.out.println( this + " filling "+sampleCount+" fast samples");
-                    for (int count = 0; count < sampleCount; count++) {
-                        updateADSR();
-                        int s = (sample >> 11);
-                        int decodeIndex = blockOffset << 4;
-                        if (s >= currentBlockSample + 28) {
-                            currentBlockSample += 28;
-                            blockOffset += 2;
-                            decodeIndex += 32;
-
-                            int srcIndex = blockOffset << 1;
-                            int code = (m_ram[srcIndex] >> 8) & 0xff;
-                            if (0 != (code & 1)) {
-                                state = OFF;
-                                offTime = onTime + (currentMS << 4);
-                                if (debugEnvelope) System.out.println("voice " + index + " to OFF (sample ended)");
-                                //System.out.println("offTime "+offTime+" ("+((offTime-onTime)>>4)+")");
-                                break;
-                            }
-                            if (m_decoded[decodeIndex] == 0) {
-                                //System.out.println(this+" decode block at "+MiscUtil.toHex( nextBlockOffset, 4)+" code "+code);
-                                //    System.out.println("  decompress");
-                                decompressBlock(blockOffset);
-                            }
-                            // note maximum sample step is 16 samples, so we can't skip a block
-                        }
-                        int val = m_decoded[decodeIndex + 4 + s - currentBlockSample];
-                        val = (val * vol) >> 14;
-                        val = (val * (envelope >> 16)) >> 15;
-                        //if (index==0) System.out.println(index+" "+state+" "+MiscUtil.toHex( envelope, 8)+" "+MiscUtil.toHex( val, 4));
-                        buffer[bufferBytes++] = (byte) val;
-                        buffer[bufferBytes++] = (byte) (val >> 8);
-                        sample += sampleDelta;
-                        currentSubMS -= 1000;
-                        if (currentSubMS <= 0) {
-                            envelopeHistory[(currentMS >> 2) % ENVELOPE_HISTORY_SIZE] = envelope;
-                            currentMS += 4;
-                            currentSubMS += SAMPLE_RATE * 4;
-                            //System.out.println(currentMS+" "+MiscUtil.toHex(envelope>>16,4));
-                        }
+                    if (!isBlockValid(blockOffset >> 1)) {
+                        decodeBlock(blockOffset >> 1);
                     }
+                    // note maximum sample step is 16 samples, so we can't skip a block
+                }
+                int val = m_decoded[decodeIndex + 4 + s - currentBlockSample];
+                val = (val * (envelope >> 16)) >> 15;
+                mix[index++] += (val * leftGain) >> 14;
+                mix[index++] += (val * rightGain) >> 14;
+                sample += sampleDelta;
+                currentSubMS -= 1000;
+                if (currentSubMS <= 0) {
+                    envelopeHistory[(currentMS >> 2) % ENVELOPE_HISTORY_SIZE] = envelope;
+                    currentMS += 4;
+                    currentSubMS += SAMPLE_RATE * 4;
                 }
-                line.write(buffer, 0, bufferBytes);
-                unlock();
             }
         }
     }
@@ -1067,14 +1187,51 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
             0, 0, -52, -55, -60
     };
 
-    // blockOffset is in multiples of 8 bytes in src ram.
-    private static void decompressBlock(int blockOffset) {
+    private static boolean isBlockValid(int block) {
+        return (validBlocks.get(block >> 5) & (1 << (block & 31))) != 0;
+    }
+
+    /**
+     * Mark blocks as needing decoding after their RAM has been written. The block after the range is invalidated
+     * too, since its decode starts from the history at the end of the last one written.
+     */
+    private static void invalidateBlocks(int block, int count) {
+        int end = Math.min(block + count + 1, BLOCKS);
+        while (block < end) {
+            int word = block >> 5;
+            int wordEnd = Math.min(end, (word + 1) << 5);
+            int mask = (int) ((1L << (wordEnd - (word << 5))) - (1L << (block & 31)));
+            int old;
+            do {
+                old = validBlocks.get(word);
+            } while ((old & mask) != 0 && !validBlocks.compareAndSet(word, old, old & ~mask));
+            block = wordEnd;
+        }
+    }
+
+    /**
+     * Decode a 16 byte block into m_decoded and mark it valid. The block is marked valid before the RAM is read,
+     * so that a concurrent write to the RAM (which invalidates it again) can't be lost.
+     */
+    private static void decodeBlock(int block) {
+        int word = block >> 5;
+        int bit = 1 << (block & 31);
+        int old;
+        do {
+            old = validBlocks.get(word);
+        } while (!validBlocks.compareAndSet(word, old, old | bit));
+        decompressBlock(block << 1, block > 0 && isBlockValid(block - 1));
+    }
+
+    // blockOffset is in multiples of 8 bytes in src ram; the decoder history is taken from the previous block if
+    // that is valid, otherwise it starts from silence
+    private static void decompressBlock(int blockOffset, boolean continued) {
         int decodeIndex = blockOffset << 4;
         int srcIndex = blockOffset << 1;
 
         int s_1, s_2;
         if (false) {
-            if (decodeIndex < 32) {
+            if (!continued) {
                 s_1 = 0;
                 s_2 = 0;
             } else {
@@ -1101,16 +1258,15 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
                 m_decoded[decodeIndex + i] = (short) s;
                 s_2 = s_1;
                 s_1 = s;
-                if (7 == (i7)) {
+                if (7 == (i7) && i < 31) {
                     dword = m_ram[srcIndex + ((i + 1) >> 3)];
                 }
                 //System.out.print(MiscUtil.toHex(s,4)+" ");
             }
-            m_decoded[decodeIndex] = 1;
             m_decoded[decodeIndex + 1] = (short) s_1;
             m_decoded[decodeIndex + 2] = (short) s_2;
         } else {
-            if (decodeIndex < 32) {
+            if (!continued) {
                 s_1 = 0;
                 s_2 = 0;
             } else {
@@ -1134,12 +1290,11 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
                 m_decoded[decodeIndex + i] = (short) (x0 >> 4);
                 s_2 = s_1;
                 s_1 = x0;
-                if (7 == (i7)) {
+                if (7 == (i7) && i < 31) {
                     dword = m_ram[srcIndex + ((i + 1) >> 3)];
                 }
                 //System.out.print(MiscUtil.toHex(s,4)+" ");
             }
-            m_decoded[decodeIndex] = 1;
             m_decoded[decodeIndex + 1] = (short) s_1;
             m_decoded[decodeIndex + 2] = (short) s_2;
             m_decoded[decodeIndex + 3] = (short) (((s_1 >> 16) & 0xff) | ((s_2 >> 8) & 0xff00));
@@ -1151,71 +1306,106 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         return 0;
     }
 
-    private static boolean reBuffer = false;
-
     public void newCDAudio() {
-        sectorsSinceReset = 0;
-        base = System.nanoTime();
-        if (cdline != null) {
-            cdline.flush();
-            cdline.stop();
+        if (speculating) return;
+        synchronized (cdLock) {
+            sectorsSinceReset = 0;
+            cdRead = cdWrite = 0;
+            cdFraction = 0;
+            cdPlaying = false;
+            cdLock.notifyAll();
         }
     }
 
     // we can get up to 8 sectors at a time; make slightly bigger for safety
     private static final int SECTORS_TO_BUFFER = 10;
     private static final int SECTORS_TO_DELAY = 4;
+    private static final long CD_WAIT_MS = 100;
     int sectorsSinceReset;
     int bytesPerSector;
 
     public synchronized void setCDAudioRate(int hz) {
-        if (cdAudio) {
-            if (hz != cdlineFreq) {
+        if (cdAudio && !speculating) {
+            if (hz != cdFreq) {
                 newCDAudio();
-                cdline = null;
-                bytesPerSector = (hz / 75) * 4;
-                int bytesToBuffer = bytesPerSector * SECTORS_TO_BUFFER;
-
-                DataLine.Info desiredCdLine = new DataLine.Info(SourceDataLine.class,
-                        new AudioFormat[]{new AudioFormat(hz, 16, 2, true, false)},
-                        bytesToBuffer * 4, bytesToBuffer * 4);
-                try {
-                    cdline = (SourceDataLine) AudioSystem.getLine(desiredCdLine);
-                    cdline.open();
-                    //System.out.println(cdline);
-                    reBuffer = true;
-                    cdPanControl = (FloatControl) cdline.getControl(FloatControl.Type.PAN);
-                    cdGainControl = (FloatControl) cdline.getControl(FloatControl.Type.MASTER_GAIN);
-                    updateCDVolume();
-                } catch (Throwable t) {
-                    throw new IllegalStateException("can't get line for media audio", t);
+                synchronized (cdLock) {
+                    bytesPerSector = (hz / 75) * 4;
+                    cdRingFrames = (bytesPerSector / 4) * SECTORS_TO_BUFFER * 4;
+                    cdRing = new short[cdRingFrames * 2];
+                    cdStep = (int) (((long) hz << 16) / SAMPLE_RATE);
+                    cdFreq = hz;
                 }
-                cdlineFreq = hz;
             }
         }
     }
 
-    static long base;
-
     public boolean cdAudioData(byte[] data, int offset, int length) {
-        long now = System.nanoTime();
-        double delta = (now - base) / 1000000.0;
+        if (speculating) return true;
         if (log.isDebugEnabled()) {
-            log.debug("AUDIO AT " + delta + " buffer space " + cdline.available() + " length " + length + " in sectors = " + (length / (1.0 * bytesPerSector)));
+            log.debug("AUDIO buffered " + (cdWrite - cdRead) + " length " + length + " in sectors = " + (length / (1.0 * bytesPerSector)));
         }
         assert (bytesPerSector > 0);
-        while (length > 0) {
-            // write one sectors worth at a time
-            int toWrite = length > bytesPerSector ? bytesPerSector : length;
-            cdline.write(data, offset, toWrite);
-            offset += toWrite;
-            length -= toWrite;
-            sectorsSinceReset++;
-            if (sectorsSinceReset == SECTORS_TO_DELAY) {
-                cdline.start();
+        synchronized (cdLock) {
+            while (length > 0) {
+                // write one sectors worth at a time
+                int toWrite = length > bytesPerSector ? bytesPerSector : length;
+                int frames = toWrite >> 2;
+                // wait for the mixer to make room, as writing to a full line would; but if the mixer isn't running
+                // (e.g. the machine is paused), drop the oldest audio rather than stall the CD
+                if (cdWrite - cdRead + frames > cdRingFrames) {
+                    try {
+                        cdLock.wait(CD_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    int overrun = cdWrite - cdRead + frames - cdRingFrames;
+                    if (overrun > 0) {
+                        cdRead += overrun;
+                    }
+                }
+                for (int i = 0; i < frames; i++) {
+                    int index = ((cdWrite + i) % cdRingFrames) * 2;
+                    cdRing[index] = (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+                    cdRing[index + 1] = (short) ((data[offset + 2] & 0xff) | (data[offset + 3] << 8));
+                    offset += 4;
+                }
+                cdWrite += frames;
+                length -= toWrite;
+                sectorsSinceReset++;
+                if (sectorsSinceReset == SECTORS_TO_DELAY) {
+                    cdPlaying = true;
+                }
             }
+            return cdPlaying;
+        }
+    }
+
+    /**
+     * Add CD audio to the interleaved left/right mix buffer, resampling it linearly from cdFreq
+     */
+    private static void mixCDAudio(int[] mix, int samples) {
+        synchronized (cdLock) {
+            if (!cdPlaying) return;
+            int leftGain = cdLeftGain;
+            int rightGain = cdRightGain;
+            int index = 0;
+            for (int count = 0; count < samples; count++) {
+                if (cdWrite - cdRead < 2) {
+                    // ran dry
+                    break;
+                }
+                int i0 = (cdRead % cdRingFrames) * 2;
+                int i1 = ((cdRead + 1) % cdRingFrames) * 2;
+                int l = cdRing[i0] + (((cdRing[i1] - cdRing[i0]) * cdFraction) >> 16);
+                int r = cdRing[i0 + 1] + (((cdRing[i1 + 1] - cdRing[i0 + 1]) * cdFraction) >> 16);
+                mix[index++] += (l * leftGain) >> 14;
+                mix[index++] += (r * rightGain) >> 14;
+                cdFraction += cdStep;
+                cdRead += cdFraction >> 16;
+                cdFraction &= 0xffff;
+            }
+            cdLock.notifyAll();
         }
-        return sectorsSinceReset >= SECTORS_TO_DELAY;
     }
 
     public void setExternalCDAudioVolumeLeft(int vol) {
@@ -1238,33 +1428,16 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
         return (v1 * v2) >> 14;
     }
 
-    private static synchronized void updateCDVolume() {
-        if (cdline != null) {
-            int l = volMul(mainLeftVol, volMul(cdLeftVol, cdLeftVolExternal));
-            int r = volMul(mainRightVol, volMul(cdRightVol, cdRightVolExternal));
-            if (log.isDebugEnabled()) {
-                log.debug("CD Volume L=" + MiscUtil.toHex(mainLeftVol, 4) + "," + MiscUtil.toHex(cdLeftVol, 4) + "," + MiscUtil.toHex(cdLeftVolExternal, 4) + " R=" + MiscUtil.toHex(r, 4));
-            }
-            int vol;
-            if (l == r) {
-                vol = l;
-                cdPanControl.setValue(0.0f);
-            } else if (l > r) {
-                vol = l;
-                cdPanControl.setValue(((float) r) / l - 1.0f);
-            } else {
-                vol = r;
-                cdPanControl.setValue(1.0f - ((float) l) / r);
-            }
-            // todo fix this; it is just made up
-            float db = -10 + (vol - 16384) / 512f;
-            if (db < -80) db = -80;
-            cdGainControl.setValue(db);
+    private static void updateCDVolume() {
+        cdLeftGain = volMul(mainLeftVol, volMul(cdLeftVol, cdLeftVolExternal));
+        cdRightGain = volMul(mainRightVol, volMul(cdRightVol, cdRightVolExternal));
+        if (log.isDebugEnabled()) {
+            log.debug("CD Volume L=" + MiscUtil.toHex(mainLeftVol, 4) + "," + MiscUtil.toHex(cdLeftVol, 4) + "," + MiscUtil.toHex(cdLeftVolExternal, 4) + " R=" + MiscUtil.toHex(cdRightGain, 4));
         }
     }
 
     public boolean isCDAudible() {
-        return cdline != null;
+        return renderThread != null && cdFreq != 0;
     }
 
     private static int decodeVolume(int vol) {
@@ -1288,14 +1461,17 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
 
     @Override
     public void close() {
-        if (cdline != null) {
-            cdline.flush();
-            cdline.stop();
+        if (renderThread != null) {
+            renderThread.interrupt();
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+                // done
+            }
+            renderThread = null;
+        }
+        if (audioSink != null) {
+            audioSink.closeAudio();
         }
-        Arrays.stream(voices).forEach(v -> {
-            v.line.flush();
-            v.line.stop();
-        });
     }
 }
-
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.spu;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.hardware.spu.AudioSink;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Records the SPU output to a WAV file; the audio is written exactly as mixed, without the resampling the SPU does
+ * to track an audio device's clock.
+ * <p/>
+ * This is not a deterministic capture: the SPU still renders against the quartz, which follows the host's clock,
+ * and register writes are timed by when the CPU thread gets to them, so two recordings of the same run will differ
+ * in the timing of sounds (and, if the host falls behind, in audio skipped).
+ */
+public class WavFileAudioSink extends JPSXComponent implements AudioSink {
+    private static final Logger log = Logger.getLogger("SPU");
+
+    public static final String PROPERTY_WAV_FILE = "wavFile";
+
+    private static final int HEADER_SIZE = 44;
+
+    private String file;
+    private OutputStream out;
+    private long dataSize;
+
+    public WavFileAudioSink() {
+        super("JPSX WAV File Audio Sink");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        HardwareComponentConnections.AUDIO_SINK.set(this);
+        file = getProperty(PROPERTY_WAV_FILE, "jpsx.wav");
+    }
+
+    public void openAudio(int sampleRate, int bufferSamples) {
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            byte[] header = new byte[HEADER_SIZE];
+            writeTag(header, 0, "RIFF");
+            // sizes are filled in on close
+            writeTag(header, 8, "WAVE");
+            writeTag(header, 12, "fmt ");
+            writeInt(header, 16, 16);
+            // PCM, 2 channels
+            writeInt(header, 20, 1 | (2 << 16));
+            writeInt(header, 24, sampleRate);
+            writeInt(header, 28, sampleRate * 4);
+            // block align 4, 16 bits per sample
+            writeInt(header, 32, 4 | (16 << 16));
+            writeTag(header, 36, "data");
+            out.write(header);
+            dataSize = 0;
+            log.info("Recording audio to " + file);
+        } catch (IOException e) {
+            log.error("Unable to open audio file " + file, e);
+            out = null;
+        }
+    }
+
+    public void writeAudio(byte[] data, int offset, int length) {
+        if (out != null) {
+            try {
+                out.write(data, offset, length);
+                dataSize += length;
+            } catch (IOException e) {
+                log.error("Unable to write audio file " + file + "; no longer recording", e);
+                closeAudio();
+            }
+        }
+    }
+
+    public int getQueuedSamples() {
+        return -1;
+    }
+
+    public void closeAudio() {
+        if (out != null) {
+            try {
+                out.close();
+                out = null;
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    byte[] size = new byte[4];
+                    writeInt(size, 0, (int) (dataSize + HEADER_SIZE - 8));
+                    raf.seek(4);
+                    raf.write(size);
+                    writeInt(size, 0, (int) dataSize);
+                    raf.seek(40);
+                    raf.write(size);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                log.error("Unable to complete audio file " + file, e);
+            }
+        }
+    }
+
+    private static void writeTag(byte[] b, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) tag.charAt(i);
+        }
+    }
+
+    private static void writeInt(byte[] b, int offset, int val) {
+        b[offset] = (byte) val;
+        b[offset + 1] = (byte) (val >> 8);
+        b[offset + 2] = (byte) (val >> 16);
+        b[offset + 3] = (byte) (val >> 24);
+    }
+}
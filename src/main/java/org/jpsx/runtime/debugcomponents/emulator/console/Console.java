@@ -23,6 +23,7 @@ import org.jpsx.api.CPUListener;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.R3000;
 import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.snapshot.RewindBuffer;
 import org.jpsx.runtime.JPSXComponent;
 import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
@@ -317,6 +318,24 @@ public class Console extends JPSXComponent implements Runnable, CPUListener {
                     case's':
                         cpuControl.step();
                         break;
+                    case'z': {
+                        RewindBuffer rewindBuffer = RuntimeConnections.REWIND_BUFFER.peek();
+                        if (rewindBuffer == null) {
+                            System.out.println("No rewind buffer");
+                            break;
+                        }
+                        double seconds = 1.0;
+                        try {
+                            String parse = line.substring(1).trim();
+                            if (parse.length() > 0) {
+                                seconds = Double.parseDouble(parse);
+                            }
+                        } catch (NumberFormatException e) {
+                        }
+                        long rewound = rewindBuffer.rewind((long) (seconds * Quartz.SEC));
+                        System.out.println("Rewound " + rewound / Quartz.MSEC + "ms; " + rewindBuffer.getAvailableTime() / Quartz.MSEC + "ms available");
+                        break;
+                    }
                     case'q':
                         //if (jsx.core.NativeCompiler.profiling) {
                         //    jsx.core.NativeCompiler.dumpProfiling();
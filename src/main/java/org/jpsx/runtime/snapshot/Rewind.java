@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.CPUControl;
+import org.jpsx.api.CPUListener;
+import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.snapshot.RewindBuffer;
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Keeps a ring buffer of recent snapshots so that the machine can be rewound, e.g. while debugging.
+ * <p/>
+ * Every <code>frames</code> frames of emulated time the CPU is paused just long enough to capture a {@link Snapshot};
+ * the rest of the work happens on the rewind thread while the CPU runs on. Every <code>keyframes</code> captures the
+ * state is kept whole as a keyframe, otherwise it is kept as a delta against the previous keyframe: the state is
+ * compared a page at a time, unchanged pages (most of the RAM, VRAM and SPU RAM) are skipped, and changed pages are
+ * stored as the runs of words which differ, XORed with the keyframe. Once the buffer uses more than
+ * <code>budget</code> MB, the oldest keyframe and its deltas are dropped.
+ */
+public class Rewind extends JPSXComponent implements RewindBuffer, CPUListener {
+    private static final Logger log = Logger.getLogger("Rewind");
+
+    public static final String PROPERTY_FRAMES = "frames";
+    public static final String PROPERTY_KEYFRAMES = "keyframes";
+    public static final String PROPERTY_BUDGET = "budget";
+
+    private static final long FRAME_PERIOD = Quartz.SEC / 60;
+    private static final int PAGE_INTS = 1024;
+    // runs of fewer identical words than this are cheaper to store as part of the surrounding changes
+    private static final int MIN_SKIP = 3;
+    private static final int STATS_INTERVAL = 500;
+
+    private long interval;
+    private int keyframeInterval;
+    private long budget;
+
+    private CPUControl cpu;
+    private Quartz quartz;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final Snapshot snapshot = new Snapshot();
+    private Entry keyframe;
+    private long usedBytes;
+    private long nextCaptureTime;
+    private int[] current = new int[0];
+    private int[] encodeBuffer = new int[PAGE_INTS];
+
+    private volatile boolean running;
+    private volatile boolean stop;
+
+    private int captures;
+    private long totalStallTime;
+    private long maxStallTime;
+    private long totalEncodeTime;
+
+    public Rewind() {
+        super("JPSX Rewind Buffer");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        interval = FRAME_PERIOD * Math.max(1, getIntProperty(PROPERTY_FRAMES, 6));
+        keyframeInterval = Math.max(1, getIntProperty(PROPERTY_KEYFRAMES, 30));
+        budget = Math.max(1, getIntProperty(PROPERTY_BUDGET, 64)) * 1024L * 1024L;
+        RuntimeConnections.REWIND_BUFFER.set(this);
+        CoreComponentConnections.CPU_LISTENERS.add(this);
+    }
+
+    @Override
+    public void resolveConnections() {
+        super.resolveConnections();
+        cpu = RuntimeConnections.CPU_CONTROL.resolve();
+        quartz = CoreComponentConnections.QUARTZ.resolve();
+    }
+
+    @Override
+    public void begin() {
+        super.begin();
+        nextCaptureTime = quartz.nanoTime() + interval;
+        new RewindThread().start();
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+    }
+
+    public void cpuResumed() {
+        running = true;
+    }
+
+    public void cpuPaused() {
+        running = false;
+    }
+
+    public long getAvailableTime() {
+        synchronized (lock) {
+            return entries.isEmpty() ? 0 : quartz.nanoTime() - entries.getFirst().time;
+        }
+    }
+
+    public long rewind(long time) {
+        synchronized (lock) {
+            long now = quartz.nanoTime();
+            Entry target = null;
+            for (Iterator<Entry> i = entries.descendingIterator(); i.hasNext(); ) {
+                target = i.next();
+                if (now - target.time >= time) break;
+            }
+            if (target == null) return 0;
+            decode(target, snapshot);
+            synchronized (SnapshotManager.lock) {
+                boolean wasRunning = running;
+                // even if already paused, the CPU may be paused within an exception handler
+                SnapshotManager.pause(cpu);
+                try {
+                    SnapshotManager.restore(snapshot);
+                } finally {
+                    if (wasRunning) {
+                        cpu.go();
+                    }
+                }
+            }
+            // the restored state is now the present; everything newer is a future which no longer happens
+            while (entries.getLast() != target) {
+                usedBytes -= entries.removeLast().size();
+            }
+            long rewound = now - target.time;
+            for (Entry entry : entries) {
+                entry.time += rewound;
+            }
+            keyframe = target.keyframe;
+            nextCaptureTime = now + interval;
+            log.info("Rewound " + rewound / Quartz.MSEC + "ms");
+            return rewound;
+        }
+    }
+
+    /**
+     * Capture the machine state if it is time to do so
+     */
+    private void update() {
+        synchronized (lock) {
+            if (!running || quartz.nanoTime() < nextCaptureTime) return;
+            long t0, t1, t2;
+            long time;
+            synchronized (SnapshotManager.lock) {
+                // another snapshot operation may have left the CPU paused while we waited
+                if (!running) return;
+                t0 = System.nanoTime();
+                try {
+                    SnapshotManager.pause(cpu);
+                } catch (SnapshotException e) {
+                    // stuck in an exception handler; try again later
+                    return;
+                }
+                t1 = System.nanoTime();
+                try {
+                    time = quartz.nanoTime();
+                    SnapshotManager.capture(snapshot);
+                } finally {
+                    cpu.go();
+                }
+                t2 = System.nanoTime();
+            }
+            nextCaptureTime = time + interval;
+            add(time);
+            long t3 = System.nanoTime();
+            long stall = t2 - t1;
+            captures++;
+            totalStallTime += stall;
+            maxStallTime = Math.max(maxStallTime, stall);
+            totalEncodeTime += t3 - t2;
+            if (log.isDebugEnabled()) {
+                log.debug("Capture: pause " + (t1 - t0) / 1000 + "us, capture " + stall / 1000 + "us, encode " + (t3 - t2) / 1000 + "us");
+            }
+            if (0 == (captures % STATS_INTERVAL)) {
+                log.info(captures + " captures; capture avg " + totalStallTime / captures / 1000 + "us max " + maxStallTime / 1000 +
+                        "us, encode avg " + totalEncodeTime / captures / 1000 + "us; " + entries.size() + " states in " +
+                        usedBytes / 1024 + "K covering " + getAvailableTime() / Quartz.MSEC + "ms");
+            }
+        }
+    }
+
+    /**
+     * Add the state just captured into {@link #snapshot} to the buffer
+     */
+    private void add(long time) {
+        ByteBuffer data = snapshot.getData();
+        int byteLength = data.remaining();
+        int length = (byteLength + 3) >> 2;
+        if (current.length < length) {
+            current = new int[length];
+        }
+        IntBuffer ints = data.asIntBuffer();
+        int whole = ints.remaining();
+        ints.get(current, 0, whole);
+        if (whole < length) {
+            // pack the trailing bytes into a last word, in the same byte order
+            ByteBuffer tail = ByteBuffer.allocate(4).order(data.order());
+            data.position(whole << 2);
+            tail.put(data);
+            current[whole] = tail.getInt(0);
+        }
+
+        Entry entry = null;
+        if (keyframe != null && keyframe.deltas < keyframeInterval) {
+            int[] delta = encode(current, length, keyframe.data);
+            // a delta which is most of a keyframe might as well be one
+            if (delta.length < length / 2) {
+                entry = new Entry(time, byteLength, delta, keyframe);
+                keyframe.deltas++;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry(time, byteLength, Arrays.copyOf(current, length), null);
+            keyframe = entry;
+        }
+        entries.addLast(entry);
+        usedBytes += entry.size();
+        // drop the oldest keyframe and its deltas, but always keep the current keyframe
+        while (usedBytes > budget && entries.getFirst() != keyframe) {
+            usedBytes -= entries.removeFirst().size();
+            while (entries.getFirst().keyframe != entries.getFirst()) {
+                usedBytes -= entries.removeFirst().size();
+            }
+        }
+    }
+
+    /**
+     * Encode the first <code>length</code> words of <code>data</code> as a delta against <code>reference</code>;
+     * the delta is a sequence of (offset, count, count words of data XOR reference) runs
+     */
+    int[] encode(int[] data, int length, int[] reference) {
+        int n = 0;
+        int common = Math.min(length, reference.length);
+        for (int page = 0; page < length; page += PAGE_INTS) {
+            int end = Math.min(page + PAGE_INTS, length);
+            int i = page;
+            if (end <= common) {
+                while (i < end && data[i] == reference[i]) i++;
+                if (i == end) continue;
+            }
+            // worst case for the rest of the page is one run of the lot
+            if (encodeBuffer.length < n + 2 + end - i) {
+                encodeBuffer = Arrays.copyOf(encodeBuffer, Math.max(encodeBuffer.length * 2, n + 2 + end - i));
+            }
+            while (i < end) {
+                if (xor(data, reference, i) == 0) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int last = i;
+                for (i++; i < end && i - last <= MIN_SKIP; i++) {
+                    if (xor(data, reference, i) != 0) last = i;
+                }
+                encodeBuffer[n++] = start;
+                encodeBuffer[n++] = last + 1 - start;
+                for (int j = start; j <= last; j++) {
+                    encodeBuffer[n++] = xor(data, reference, j);
+                }
+                i = last + 1;
+            }
+        }
+        return Arrays.copyOf(encodeBuffer, n);
+    }
+
+    private static int xor(int[] data, int[] reference, int index) {
+        return index < reference.length ? data[index] ^ reference[index] : data[index];
+    }
+
+    private static void decode(Entry entry, Snapshot snapshot) {
+        Entry key = entry.keyframe;
+        int length = (entry.byteLength + 3) >> 2;
+        int[] data = Arrays.copyOf(key.data, length);
+        if (entry != key) {
+            applyDelta(data, entry.data);
+        }
+        // the state is padded to whole words, which is harmless as it is only read as far as it was written
+        ByteBuffer buffer = snapshot.prepareData(length << 2);
+        buffer.asIntBuffer().put(data);
+    }
+
+    /**
+     * Apply a delta from {@link #encode} to a copy of its reference, padded with zeros to the encoded length
+     */
+    static void applyDelta(int[] data, int[] delta) {
+        for (int n = 0; n < delta.length; ) {
+            int offset = delta[n++];
+            int count = delta[n++];
+            for (int j = 0; j < count; j++) {
+                data[offset + j] ^= delta[n++];
+            }
+        }
+    }
+
+    private static class Entry {
+        long time;
+        final int byteLength;
+        final int[] data;
+        final Entry keyframe;
+        int deltas;
+
+        Entry(long time, int byteLength, int[] data, Entry keyframe) {
+            this.time = time;
+            this.byteLength = byteLength;
+            this.data = data;
+            this.keyframe = keyframe == null ? this : keyframe;
+        }
+
+        long size() {
+            return data.length * 4L;
+        }
+    }
+
+    private class RewindThread extends Thread {
+        RewindThread() {
+            super("JPSX Rewind thread");
+            setDaemon(true);
+        }
+
+        public void run() {
+            log.info("Rewind thread starts");
+            while (!stop) {
+                update();
+                try {
+                    sleep(Math.max(1, interval / Quartz.MSEC / 4));
+                } catch (InterruptedException e) {
+                }
+            }
+            log.info("Rewind thread ends");
+        }
+    }
+}
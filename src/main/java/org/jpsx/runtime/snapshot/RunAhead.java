@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.CPUControl;
+import org.jpsx.api.CPUListener;
+import org.jpsx.api.InvalidConfigurationException;
+import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.hardware.gpu.DisplayManager;
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.api.snapshot.SpeculationListener;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.core.DefaultQuartz;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+import org.jpsx.runtime.components.hardware.counters.Counters;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reduces input latency by showing the display as it will be <code>frames</code> frames from now, given the
+ * current input.
+ * <p/>
+ * The display is held, so the machine's own changes to it are never shown. Each frame, just before the vsync, the
+ * machine is captured in a {@link Snapshot} and then run ahead with the {@link SpeculationListener}s silenced, and
+ * with the quartz running <code>rate</code> times faster than real time; the display is presented, and the machine
+ * is restored. It then runs the real frame, the quartz running fast enough to make up for the time spent running
+ * ahead (and, if need be, to catch up), so the machine overall keeps real time, and so the sound does.
+ * <p/>
+ * The host needs to be able to emulate <code>frames</code> + 1 frames in each frame for this to keep up; if it
+ * can't, the run ahead is cut short.
+ */
+public class RunAhead extends JPSXComponent implements CPUListener {
+    private static final Logger log = Logger.getLogger("RunAhead");
+
+    public static final String PROPERTY_FRAMES = "frames";
+    public static final String PROPERTY_RATE = "rate";
+
+    // capture this long before the vsync, when the machine is most likely idle waiting for it
+    private static final long CAPTURE_MARGIN = Quartz.MSEC;
+    // the real frame may be slowed down this much if we are ahead of time
+    private static final double MIN_RATE = 0.5;
+    // give up catching up if we get this many frames behind
+    private static final int MAX_FRAMES_BEHIND = 4;
+    private static final int STATS_INTERVAL = 600;
+
+    private int frames;
+    private double rate;
+
+    private CPUControl cpu;
+    private DefaultQuartz quartz;
+    private DisplayManager displayManager;
+    private SpeculationListener speculationListeners;
+
+    private final Snapshot snapshot = new Snapshot();
+
+    private volatile boolean running;
+    private volatile boolean stop;
+
+    private int count;
+    private int shortened;
+    private long totalCaptureTime;
+    private long totalAheadTime;
+    private long totalRestoreTime;
+    private double totalRate;
+
+    public RunAhead() {
+        super("JPSX Run Ahead");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        frames = Math.max(1, getIntProperty(PROPERTY_FRAMES, 1));
+        rate = Math.max(2, getIntProperty(PROPERTY_RATE, 4));
+        CoreComponentConnections.CPU_LISTENERS.add(this);
+    }
+
+    @Override
+    public void resolveConnections() {
+        super.resolveConnections();
+        cpu = RuntimeConnections.CPU_CONTROL.resolve();
+        Quartz q = CoreComponentConnections.QUARTZ.resolve();
+        if (!(q instanceof DefaultQuartz)) {
+            throw new InvalidConfigurationException("Run ahead requires the default quartz");
+        }
+        quartz = (DefaultQuartz) q;
+        displayManager = HardwareComponentConnections.DISPLAY_MANAGER.resolve();
+        speculationListeners = RuntimeConnections.SPECULATION_LISTENERS.resolve();
+    }
+
+    @Override
+    public void begin() {
+        super.begin();
+        displayManager.setHeld(true);
+        log.info("Running " + frames + " frame(s) ahead at " + rate + "x");
+        new RunAheadThread().start();
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+    }
+
+    public void cpuResumed() {
+        running = true;
+    }
+
+    public void cpuPaused() {
+        running = false;
+    }
+
+    /**
+     * Wait for the quartz to reach the given time, or the CPU to be paused (by someone else), or the wall clock to
+     * reach the given limit
+     *
+     * @return false if the time wasn't reached
+     */
+    private boolean waitUntil(long time, double rate, long wallLimit) {
+        for (; ; ) {
+            long remaining = time - quartz.nanoTime();
+            if (remaining <= 0) return true;
+            if (!running || stop || System.nanoTime() >= wallLimit) return false;
+            LockSupport.parkNanos(Math.min((long) (remaining / rate), wallLimit - System.nanoTime()));
+        }
+    }
+
+    /**
+     * Run ahead from a capture just before a vsync, present the display, and roll back
+     */
+    private void runAhead(long period) {
+        synchronized (SnapshotManager.lock) {
+            // another snapshot operation may have left the CPU paused while we waited
+            if (running) {
+                runAheadLocked(period);
+            }
+        }
+    }
+
+    private void runAheadLocked(long period) {
+        long t0 = System.nanoTime();
+        try {
+            SnapshotManager.pause(cpu);
+        } catch (SnapshotException e) {
+            // stuck in an exception handler; just let this frame be
+            return;
+        }
+        long time = quartz.nanoTime();
+        SnapshotManager.capture(snapshot);
+        speculationListeners.speculationStarted();
+        long t1 = System.nanoTime();
+        quartz.setRate(rate);
+        cpu.go();
+        // allow for running at half speed before giving up
+        long ahead = frames * period;
+        if (!waitUntil(time + ahead, rate, t1 + (long) (2 * ahead / rate))) {
+            shortened++;
+        }
+        boolean resume = running;
+        long t2 = System.nanoTime();
+        // the machine must always go back to the captured state, so keep trying until it is paused outside of any
+        // exception handler; the frames it runs meanwhile are never shown
+        for (; ; ) {
+            try {
+                SnapshotManager.pause(cpu);
+                break;
+            } catch (SnapshotException e) {
+                Thread.yield();
+            }
+        }
+        try {
+            displayManager.present();
+        } finally {
+            SnapshotManager.restore(snapshot);
+            speculationListeners.speculationEnded();
+            quartz.setRate(1.0);
+        }
+        if (resume) {
+            cpu.go();
+        }
+        long t3 = System.nanoTime();
+        count++;
+        totalCaptureTime += t1 - t0;
+        totalAheadTime += t2 - t1;
+        totalRestoreTime += t3 - t2;
+        if (0 == (count % STATS_INTERVAL)) {
+            log.info(count + " frames; capture avg " + totalCaptureTime / count / 1000 + "us, run ahead avg " +
+                    totalAheadTime / count / 1000 + "us, restore avg " + totalRestoreTime / count / 1000 +
+                    "us; real frames at " + (int) (100 * totalRate / count) + "% speed; " + shortened + " cut short");
+        }
+    }
+
+    private class RunAheadThread extends Thread {
+        RunAheadThread() {
+            super("JPSX Run Ahead thread");
+            setDaemon(true);
+            setPriority(MAX_PRIORITY);
+        }
+
+        public void run() {
+            log.info("Run ahead thread starts");
+            try {
+                long wallDeadline = System.nanoTime();
+                while (!stop) {
+                    if (!running) {
+                        quartz.setRate(1.0);
+                        LockSupport.parkNanos(10 * Quartz.MSEC);
+                        wallDeadline = System.nanoTime();
+                        continue;
+                    }
+                    long period = Counters.getVSyncPeriod();
+                    // run the real frame up to just before the next vsync, fast enough to get there on time
+                    long now = quartz.nanoTime();
+                    long target = Counters.getNextVSyncTime() - CAPTURE_MARGIN;
+                    if (target <= now) {
+                        target += ((now - target) / period + 1) * period;
+                    }
+                    long wallNow = System.nanoTime();
+                    wallDeadline += period;
+                    if (wallDeadline < wallNow - MAX_FRAMES_BEHIND * period) {
+                        wallDeadline = wallNow + period;
+                    }
+                    double realRate = (target - now) / (double) Math.max(wallDeadline - wallNow, 1);
+                    realRate = Math.min(rate, Math.max(MIN_RATE, realRate));
+                    quartz.setRate(realRate);
+                    totalRate += realRate;
+                    if (!waitUntil(target, realRate, Long.MAX_VALUE)) {
+                        continue;
+                    }
+                    runAhead(period);
+                }
+            } catch (Throwable t) {
+                log.error("Run ahead failed; continuing without it", t);
+                speculationListeners.speculationEnded();
+                quartz.setRate(1.0);
+                displayManager.setHeld(false);
+            }
+            log.info("Run ahead thread ends");
+        }
+    }
+}
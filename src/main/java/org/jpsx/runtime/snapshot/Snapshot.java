@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The state of the machine as written by the {@link org.jpsx.api.snapshot.SnapshotParticipant}s, held in a direct
+ * native order buffer so that the bulk arrays (RAM, VRAM etc.) are copied in and out without per element work.
+ * <p/>
+ * A snapshot may be reused for any number of captures; the buffer only grows.
+ */
+public class Snapshot {
+    private static final int SECTION_MARKER = 0x54434553; // "SECT"
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 8 * 1024 * 1024;
+
+    private ByteBuffer data;
+    private int length;
+
+    public Snapshot() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public Snapshot(int capacity) {
+        data = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return the number of bytes of state
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return a read only view of the state
+     */
+    public ByteBuffer getData() {
+        ByteBuffer rc = data.asReadOnlyBuffer().order(data.order());
+        rc.position(0).limit(length);
+        return rc;
+    }
+
+    /**
+     * Replace the state with the remaining bytes of the buffer (which is consumed)
+     */
+    public void setData(ByteBuffer src) {
+        length = 0;
+        ensureCapacity(src.remaining());
+        data.clear();
+        data.put(src);
+        length = data.position();
+    }
+
+    /**
+     * @return a buffer of the given length to fill with the state directly (e.g. from a file); the state is
+     *         replaced
+     */
+    public ByteBuffer prepareData(int length) {
+        this.length = 0;
+        ensureCapacity(length);
+        this.length = length;
+        ByteBuffer rc = data.duplicate().order(data.order());
+        rc.position(0).limit(length);
+        return rc;
+    }
+
+    /**
+     * Start a new capture, discarding the current state
+     *
+     * @param now the current quartz time
+     */
+    public SnapshotWriter openWriter(long now) {
+        length = 0;
+        data.clear();
+        return new Writer(now);
+    }
+
+    /**
+     * @param now the current quartz time
+     */
+    public SnapshotReader openReader(long now) {
+        data.position(0).limit(length);
+        return new Reader(now);
+    }
+
+    private void ensureCapacity(int required) {
+        if (data.capacity() < required) {
+            ByteBuffer old = data;
+            data = ByteBuffer.allocateDirect(Math.max(required, old.capacity() * 2)).order(ByteOrder.nativeOrder());
+            old.position(0).limit(length);
+            data.put(old);
+        }
+    }
+
+    private class Writer implements SnapshotWriter {
+        private final long baseTime;
+
+        Writer(long baseTime) {
+            this.baseTime = baseTime;
+        }
+
+        private void ensureRemaining(int bytes) {
+            length = data.position();
+            if (data.capacity() - length < bytes) {
+                ensureCapacity(length + bytes);
+            }
+            data.limit(data.capacity());
+        }
+
+        private void done() {
+            length = data.position();
+        }
+
+        public void beginSection(String name) {
+            writeInt(SECTION_MARKER);
+            writeString(name);
+        }
+
+        public void writeInt(int value) {
+            ensureRemaining(4);
+            data.putInt(value);
+            done();
+        }
+
+        public void writeLong(long value) {
+            ensureRemaining(8);
+            data.putLong(value);
+            done();
+        }
+
+        public void writeBoolean(boolean value) {
+            ensureRemaining(1);
+            data.put((byte) (value ? 1 : 0));
+            done();
+        }
+
+        public void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensureRemaining(4 + bytes.length);
+            data.putInt(bytes.length);
+            data.put(bytes);
+            done();
+        }
+
+        public void writeTime(long time) {
+            // 0 conventionally means no time, so keep it as such
+            writeLong(time == 0L ? NO_TIME : time - baseTime);
+        }
+
+        public void writeInts(int[] values, int offset, int count) {
+            ensureRemaining(count * 4);
+            data.asIntBuffer().put(values, offset, count);
+            data.position(data.position() + count * 4);
+            done();
+        }
+
+        public void writeShorts(short[] values, int offset, int count) {
+            ensureRemaining(count * 2);
+            data.asShortBuffer().put(values, offset, count);
+            data.position(data.position() + count * 2);
+            done();
+        }
+
+        public void writeBytes(byte[] values, int offset, int count) {
+            ensureRemaining(count);
+            data.put(values, offset, count);
+            done();
+        }
+    }
+
+    private class Reader implements SnapshotReader {
+        private final long baseTime;
+
+        Reader(long baseTime) {
+            this.baseTime = baseTime;
+        }
+
+        private void checkRemaining(int bytes) {
+            if (data.remaining() < bytes) {
+                throw new SnapshotException("Snapshot is truncated");
+            }
+        }
+
+        public void beginSection(String name) {
+            if (readInt() != SECTION_MARKER) {
+                throw new SnapshotException("Snapshot is corrupt or from a different machine configuration; expected " + name);
+            }
+            String actual = readString();
+            if (!actual.equals(name)) {
+                throw new SnapshotException("Snapshot is from a different machine configuration; expected " + name + " but found " + actual);
+            }
+        }
+
+        public int readInt() {
+            checkRemaining(4);
+            return data.getInt();
+        }
+
+        public long readLong() {
+            checkRemaining(8);
+            return data.getLong();
+        }
+
+        public boolean readBoolean() {
+            checkRemaining(1);
+            return data.get() != 0;
+        }
+
+        public String readString() {
+            int length = readInt();
+            if (length < 0 || length > data.remaining()) {
+                throw new SnapshotException("Snapshot is corrupt");
+            }
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public long readTime() {
+            long time = readLong();
+            return time == NO_TIME ? 0L : time + baseTime;
+        }
+
+        public void readInts(int[] values, int offset, int count) {
+            checkRemaining(count * 4);
+            data.asIntBuffer().get(values, offset, count);
+            data.position(data.position() + count * 4);
+        }
+
+        public void readShorts(short[] values, int offset, int count) {
+            checkRemaining(count * 2);
+            data.asShortBuffer().get(values, offset, count);
+            data.position(data.position() + count * 2);
+        }
+
+        public void readBytes(byte[] values, int offset, int count) {
+            checkRemaining(count);
+            data.get(values, offset, count);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.CPUControl;
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.api.snapshot.SnapshotParticipant;
+import org.jpsx.runtime.RuntimeConnections;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.core.R3000Impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Captures and restores {@link Snapshot}s of the machine via the {@link RuntimeConnections#SNAPSHOT_PARTICIPANTS},
+ * and saves them to/loads them from save state files.
+ * <p/>
+ * A save state file is an 8 byte magic number, then the version, flags, state length and stored length as 32 bit
+ * big endian ints, then the state, which is deflated if {@link #FLAG_DEFLATED} is set. The state itself is in native
+ * byte order, so (like the compiled code caches) save states are not portable between architectures of different
+ * endianness.
+ */
+public class SnapshotManager {
+    private static final Logger log = Logger.getLogger("Snapshot");
+
+    private static final byte[] MAGIC = {'J', 'P', 'S', 'X', 'S', 'N', 'A', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    public static final int FLAG_DEFLATED = 1;
+    public static final int FLAG_BIG_ENDIAN = 2;
+
+    /**
+     * Whether save state files are deflated; most of a snapshot is RAM and VRAM, which compress well, but at the
+     * cost of some time
+     */
+    public static boolean compress = true;
+
+    private static final int MAX_PAUSE_ATTEMPTS = 100;
+
+    /**
+     * Held for the whole of every operation which pauses the CPU to capture or restore the machine (saving, loading,
+     * rewinding and running ahead), since CPU pauses don't nest: one operation resuming the CPU must not let it run in
+     * the middle of another
+     */
+    static final Object lock = new Object();
+
+    /**
+     * Pause the CPU outside of any exception handler; a handler runs nested on the execution thread's stack, which
+     * can't be part of a snapshot, so if the CPU is paused within one it is resumed briefly to let the handler return
+     *
+     * @throws SnapshotException if the CPU keeps being paused in an exception handler; it is left running
+     */
+    public static void pause(CPUControl cpu) {
+        cpu.pause();
+        for (int i = 0; R3000Impl.getExecutionDepth() > 0; i++) {
+            cpu.go();
+            if (i == MAX_PAUSE_ATTEMPTS) {
+                throw new SnapshotException("CPU did not leave its exception handler");
+            }
+            Thread.yield();
+            cpu.pause();
+        }
+    }
+
+    /**
+     * Capture the machine state; the CPU must be paused (see {@link #pause})
+     */
+    public static void capture(Snapshot snapshot) {
+        long now = CoreComponentConnections.QUARTZ.resolve().nanoTime();
+        RuntimeConnections.SNAPSHOT_PARTICIPANTS.resolve().saveState(snapshot.openWriter(now));
+    }
+
+    /**
+     * Restore the machine state; the CPU must be paused (see {@link #pause})
+     *
+     * @throws SnapshotException if the snapshot is not compatible with the machine, in which case the machine state
+     *                           is undefined
+     */
+    public static void restore(Snapshot snapshot) {
+        long now = CoreComponentConnections.QUARTZ.resolve().nanoTime();
+        SnapshotParticipant participants = RuntimeConnections.SNAPSHOT_PARTICIPANTS.resolve();
+        participants.loadState(snapshot.openReader(now));
+        participants.stateLoaded();
+    }
+
+    /**
+     * Pause the CPU, capture the machine state, resume (if it was running) and write the state to the file; called
+     * from any thread other than the execution thread
+     */
+    public static void saveState(Path file) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        CPUControl cpu = RuntimeConnections.CPU_CONTROL.resolve();
+        long t0 = System.nanoTime();
+        synchronized (lock) {
+            boolean wasRunning = R3000Impl.isRunning();
+            pause(cpu);
+            try {
+                capture(snapshot);
+            } finally {
+                if (wasRunning) {
+                    cpu.go();
+                }
+            }
+        }
+        long t1 = System.nanoTime();
+        write(snapshot, file, compress);
+        long t2 = System.nanoTime();
+        log.info("Saved " + file + ": captured " + snapshot.getLength() + " bytes in " + (t1 - t0) / 1000 + "us, written in " + (t2 - t1) / 1000 + "us");
+    }
+
+    /**
+     * Read the state from the file, then pause the CPU, restore the machine state and resume (if it was running);
+     * called from any thread other than the execution thread
+     */
+    public static void loadState(Path file) throws IOException {
+        long t0 = System.nanoTime();
+        Snapshot snapshot = read(file);
+        long t1 = System.nanoTime();
+        CPUControl cpu = RuntimeConnections.CPU_CONTROL.resolve();
+        synchronized (lock) {
+            boolean wasRunning = R3000Impl.isRunning();
+            pause(cpu);
+            try {
+                restore(snapshot);
+            } finally {
+                if (wasRunning) {
+                    cpu.go();
+                }
+            }
+        }
+        long t2 = System.nanoTime();
+        log.info("Loaded " + file + ": read in " + (t1 - t0) / 1000 + "us, restored in " + (t2 - t1) / 1000 + "us");
+    }
+
+    public static void write(Snapshot snapshot, Path file, boolean deflate) throws IOException {
+        ByteBuffer state = snapshot.getData();
+        int length = state.remaining();
+        ByteBuffer stored = state;
+        if (deflate) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(toArray(state));
+                deflater.finish();
+                byte[] out = new byte[length + length / 16 + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                stored = ByteBuffer.wrap(out, 0, n);
+            } finally {
+                deflater.end();
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt((deflate ? FLAG_DEFLATED : 0) | (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? FLAG_BIG_ENDIAN : 0));
+        header.putInt(length);
+        header.putInt(stored.remaining());
+        header.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] buffers = {header, stored};
+            while (stored.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    public static Snapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a save state");
+            }
+            int flags = header.getInt();
+            if ((0 != (flags & FLAG_BIG_ENDIAN)) != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)) {
+                throw new IOException(file + " was saved on a machine with different byte order");
+            }
+            int length = header.getInt();
+            int storedLength = header.getInt();
+            Snapshot snapshot = new Snapshot(length);
+            ByteBuffer state = snapshot.prepareData(length);
+            if (0 != (flags & FLAG_DEFLATED)) {
+                ByteBuffer stored = ByteBuffer.allocate(storedLength);
+                readFully(channel, stored);
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(stored.array(), 0, storedLength);
+                    byte[] out = new byte[length];
+                    int n = 0;
+                    while (n < length && !inflater.finished()) {
+                        int count = inflater.inflate(out, n, length - n);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += count;
+                    }
+                    if (n != length) {
+                        throw new IOException(file + " is truncated");
+                    }
+                    state.put(out);
+                } catch (DataFormatException e) {
+                    throw new IOException(file + " is corrupt", e);
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                readFully(channel, state);
+            }
+            return snapshot;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] rc = new byte[buffer.remaining()];
+        buffer.duplicate().get(rc);
+        return rc;
+    }
+}
@@ -23,21 +23,32 @@ import com.google.common.base.Strings;
 import org.apache.log4j.Logger;
 import org.jpsx.api.components.hardware.gpu.Display;
 import org.jpsx.api.components.hardware.gpu.DisplayManager;
+import org.jpsx.api.snapshot.SnapshotException;
 import org.jpsx.bootstrap.JPSXLauncher;
 import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.R3000Impl;
 import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
 import org.jpsx.runtime.components.hardware.gpu.GPU;
+import org.jpsx.runtime.snapshot.SnapshotManager;
 import org.jpsx.runtime.ui.input.KeyBindingsHandler;
 import org.jpsx.runtime.util.SystemProvider;
 import org.jpsx.runtime.util.SystemProvider.SystemEvent;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SwingWindowPsx extends SwingWindow implements Display {
 
     private static final Logger LOG = Logger.getLogger(SwingWindowPsx.class.getSimpleName());
+    private static final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Snapshot thread");
+        thread.setDaemon(true);
+        return thread;
+    });
     private DisplayManager displayManager;
     private boolean hasRomFile;
     private String filePath;
@@ -116,6 +127,24 @@ public class SwingWindowPsx extends SwingWindow implements Display {
         return KeyBindingsHandler.getInstance().getKeyStrokeForEvent(event);
     }
 
+    /**
+     * Save states pause and resume the execution thread, so they must not run on it (or hold up the EDT); they run
+     * one at a time, in the order requested
+     */
+    private static void runSnapshotTask(final SystemEvent event, final Path file, final boolean save) {
+        snapshotExecutor.execute(() -> {
+            try {
+                if (save) {
+                    SnapshotManager.saveState(file);
+                } else {
+                    SnapshotManager.loadState(file);
+                }
+            } catch (IOException | SnapshotException e) {
+                LOG.error(event + " failed for " + file, e);
+            }
+        });
+    }
+
     private SystemProvider createSystemProvider() {
         return new SystemProvider() {
             @Override
@@ -134,6 +163,14 @@ public class SwingWindowPsx extends SwingWindow implements Display {
                     case NEW_ROM:
                         handleNewRomDialog();
                         break;
+                    case LOAD_STATE:
+                    case QUICK_LOAD:
+                        runSnapshotTask(event, (Path) parameter, false);
+                        break;
+                    case SAVE_STATE:
+                    case QUICK_SAVE:
+                        runSnapshotTask(event, (Path) parameter, true);
+                        break;
                 }
             }
 
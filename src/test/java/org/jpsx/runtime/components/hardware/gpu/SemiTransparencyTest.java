@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gpu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the SWAR blends against blending and clamping each channel on its own, as the renderers used to
+ */
+public class SemiTransparencyTest {
+    private static final int SEMI_5P5 = 0;
+    private static final int SEMI_10P10 = 1;
+    private static final int SEMI_10M10 = 2;
+    private static final int SEMI_10P25 = 3;
+
+    private static int reference(int mode, int dest, int src) {
+        int rc = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int d = (dest >> shift) & 0xff;
+            int s = (src >> shift) & 0xff;
+            int v;
+            switch (mode) {
+                case SEMI_5P5:
+                    v = (d + s) >> 1;
+                    break;
+                case SEMI_10P10:
+                    v = Math.min(d + s, 255);
+                    break;
+                case SEMI_10M10:
+                    v = Math.max(d - s, 0);
+                    break;
+                default:
+                    v = Math.min(d + (s >> 2), 255);
+                    break;
+            }
+            rc |= v << shift;
+        }
+        return rc;
+    }
+
+    private static int blend(int mode, int dest, int src) {
+        switch (mode) {
+            case SEMI_5P5:
+                return SemiTransparency.blend5P5(dest, src);
+            case SEMI_10P10:
+                return SemiTransparency.blend10P10(dest, src);
+            case SEMI_10M10:
+                return SemiTransparency.blend10M10(dest, src);
+            default:
+                return SemiTransparency.blend10P25(dest, src);
+        }
+    }
+
+    private static void check(int mode, int dest, int src) {
+        int expected = reference(mode, dest, src);
+        int actual = blend(mode, dest, src);
+        if (expected != actual) {
+            assertEquals("mode " + mode + " dest " + Integer.toHexString(dest) + " src " + Integer.toHexString(src), expected, actual);
+        }
+    }
+
+    /**
+     * Every pair of values in each channel in turn, with random values (and flag bits) in the other channels
+     */
+    @Test
+    public void everyChannelPair() {
+        Random random = new Random(1);
+        for (int mode = SEMI_5P5; mode <= SEMI_10P25; mode++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int keep = ~(0xff << shift);
+                for (int d = 0; d < 256; d++) {
+                    for (int s = 0; s < 256; s++) {
+                        int dest = (random.nextInt() & keep) | (d << shift);
+                        int src = (random.nextInt() & keep) | (s << shift);
+                        check(mode, dest, src);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void saturation() {
+        for (int mode = SEMI_5P5; mode <= SEMI_10P25; mode++) {
+            check(mode, 0xffffff, 0xffffff);
+            check(mode, 0x000000, 0xffffff);
+            check(mode, 0xffffff, 0x000000);
+            check(mode, 0x80ff01, 0x8001ff);
+            check(mode, 0x01ff80, 0xff0180);
+        }
+        assertEquals(0xffffff, SemiTransparency.blend10P10(0x808080, 0x808080));
+        assertEquals(0x000000, SemiTransparency.blend10M10(0x7f7f7f, 0x808080));
+        assertEquals(0xff00ff, SemiTransparency.blend10P25(0xf000f0, 0xff00ff));
+    }
+
+    @Test
+    public void flagBitsIgnored() {
+        for (int mode = SEMI_5P5; mode <= SEMI_10P25; mode++) {
+            assertEquals(blend(mode, 0x123456, 0x654321), blend(mode, 0xff123456, 0x81654321));
+            assertEquals(0, blend(mode, 0xff123456, 0x81654321) & 0xff000000);
+        }
+    }
+
+    @Test
+    public void randomPixels() {
+        Random random = new Random(2);
+        for (int i = 0; i < 1000000; i++) {
+            check(i & 3, random.nextInt(), random.nextInt());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gte;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link GTE#divide} against precomputed outputs of the hardware's UNR division (see unr-divide.txt),
+ * covering every seed table slot, the 0x1ffff cap and the H >= 2 * SZ overflow
+ */
+public class GTEDivideTest {
+    private static final int FLAG_E = 0x00020000;
+
+    @Test
+    public void matchesReferenceVectors() throws IOException {
+        InputStream is = getClass().getResourceAsStream("unr-divide.txt");
+        assertNotNull("unr-divide.txt missing", is);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+        int count = 0;
+        int overflows = 0;
+        int capped = 0;
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (line.startsWith("#")) continue;
+                String[] fields = line.split(" ");
+                int h = Integer.parseInt(fields[0], 16);
+                int sz = Integer.parseInt(fields[1], 16);
+                int expected = Integer.parseInt(fields[2], 16);
+                boolean overflow = fields[3].equals("1");
+                String context = "H=" + fields[0] + " SZ=" + fields[1];
+
+                GTE.reg_flag = 0;
+                int quotient = GTE.divide(h, sz);
+                if (overflow) {
+                    assertTrue(context + " should overflow", quotient >= 0x20000);
+                    overflows++;
+                } else {
+                    assertEquals(context, expected, quotient);
+                    if (quotient == 0x1ffff) capped++;
+                }
+                // as used by RTPS/RTPT
+                assertEquals(context, expected, GTE.LiE(quotient));
+                assertEquals(context + " flag", overflow, 0 != (GTE.reg_flag & FLAG_E));
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertTrue(count > 6000);
+        assertTrue(overflows > 0);
+        assertTrue(capped > 0);
+    }
+
+    @Test
+    public void zeroDivisorOverflows() {
+        for (int h = 0; h < 0x10000; h += 0x1111) {
+            GTE.reg_flag = 0;
+            assertEquals(0x1ffff, GTE.LiE(GTE.divide(h, 0)));
+            assertEquals(FLAG_E, GTE.reg_flag & FLAG_E);
+        }
+    }
+}
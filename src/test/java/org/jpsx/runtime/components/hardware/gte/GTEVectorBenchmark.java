@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gte;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.jpsx.runtime.components.hardware.gte.GTEVectors.*;
+
+/**
+ * Reports ns/op for each GTE command, interpreted and compiled, over the inputs of the test vectors. This is a plain
+ * benchmark (there is no JMH in the build); run its main method, optionally giving the iterations per vector.
+ */
+public class GTEVectorBenchmark {
+    // all but the last are warm up
+    private static final int TIMING_PASSES = 4;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        GTEVectors.setUp();
+        List<TestVector> vectors = readVectors(GTEVectorBenchmark.class.getResourceAsStream("gte-vectors.txt"));
+        System.out.println("command      interpreter ns/op   compiled ns/op");
+        for (int c = 0; c < COMMAND_NAMES.length; c++) {
+            List<TestVector> commandVectors = new ArrayList<TestVector>();
+            for (TestVector vector : vectors) {
+                if ((vector.command & 0x3f) == COMMAND_FUNCTIONS[c]) {
+                    commandVectors.add(vector);
+                }
+            }
+            if (commandVectors.isEmpty()) continue;
+            int command = commandVectors.get(0).command;
+            double interpreted = time(commandVectors, command, null, iterations);
+            double compiled = time(commandVectors, command, compile(command), iterations);
+            System.out.println(String.format("%-12s %17.1f %16.1f", COMMAND_NAMES[c], interpreted, compiled));
+        }
+    }
+
+    /**
+     * Each vector's inputs are loaded, then the command is repeated on them (so the state drifts, but the same way on
+     * both paths). Every vector is timed with the same command word, since each distinct word is a separate
+     * generated class which would otherwise never run long enough to be JIT compiled. For the compiled path the loop
+     * is generated code too, so the command's code is compiled into it as it would be in a real code unit; note that
+     * the JIT may hoist short commands whose outputs don't feed their inputs (e.g. nclip, avsz3) out of that loop.
+     *
+     * @return mean ns per command
+     */
+    private static double time(List<TestVector> vectors, int command, CompiledCommand compiled, int iterations) {
+        long total = 0;
+        for (int pass = 0; pass < TIMING_PASSES; pass++) {
+            total = 0;
+            for (TestVector vector : vectors) {
+                loadRegisters(vector.input);
+                long t0 = System.nanoTime();
+                if (compiled != null) {
+                    compiled.repeat(iterations);
+                } else {
+                    for (int i = 0; i < iterations; i++) {
+                        GTE.interpret_cop2(command);
+                    }
+                }
+                total += System.nanoTime() - t0;
+            }
+        }
+        return total / (double) (iterations * vectors.size());
+    }
+}
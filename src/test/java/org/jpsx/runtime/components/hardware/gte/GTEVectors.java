@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gte;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.api.components.core.cpu.CPUInstruction;
+import org.jpsx.api.components.core.cpu.CPUInstructionDisassembler;
+import org.jpsx.api.components.core.cpu.CompilationContext;
+import org.jpsx.api.components.core.cpu.InstructionRegistrar;
+import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.util.MiscUtil;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Support for the GTE command test vectors (gte-vectors.txt); running them through the interpreter
+ * ({@link GTE#interpret_cop2}) and through the code the instruction's {@link CPUInstruction#compile} method
+ * generates, loaded into a class of its own. No machine is needed; the address space and R3000 are stand-ins which
+ * just serve the instructions following the command, for the compiled code's FLAG liveness check.
+ * <p/>
+ * A vector is the 64 GTE registers before a command, the command word, and the registers after it. The file is
+ * text; one vector per line as hex words: the command, the 64 input registers, then index:value for each register
+ * which the command changed. Run main to record a new file.
+ */
+class GTEVectors {
+    static final int REGISTER_COUNT = 64;
+    static final int R_FLAG = 63;
+
+    static final int COP2_COMMAND = 0x4a000000;
+    static final int FIELDS_MASK = 0x001ffc00;
+    static final int SF = 0x80000;
+
+    static final String[] COMMAND_NAMES = {
+            "rtps", "nclip", "op", "dpcs", "intpl", "mvmva", "ncds", "cdp", "ncdt", "nccs", "cc",
+            "ncs", "nct", "sqr", "dcpl", "dpct", "avsz3", "avsz4", "rtpt", "gpf", "gpl", "ncct"
+    };
+    static final int[] COMMAND_FUNCTIONS = {
+            0x01, 0x06, 0x0c, 0x10, 0x11, 0x12, 0x13, 0x14, 0x16, 0x1b, 0x1c,
+            0x1e, 0x20, 0x28, 0x29, 0x2a, 0x2d, 0x2e, 0x30, 0x3d, 0x3e, 0x3f
+    };
+
+    // instructions which may follow a command in the stand-in memory
+    static final int NOP = 0;
+    static final int J = 0x08000000;
+    static final int CFC2_FLAG = 0x48400000 | (8 << 16) | (31 << 11);
+    static final int CTC2_FLAG = 0x48c00000 | (31 << 11);
+    static final int NCLIP = COP2_COMMAND | 0x06;
+
+    private static final int CODE_BASE = 0x80010000;
+
+    static class TestVector {
+        final int command;
+        final int[] input = new int[REGISTER_COUNT];
+        final int[] output = new int[REGISTER_COUNT];
+
+        TestVector(int command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * Implemented by the generated class for each command
+     */
+    public interface CompiledCommand {
+        /**
+         * execute the command once
+         */
+        void run();
+
+        /**
+         * execute the command count times
+         */
+        void repeat(int count);
+    }
+
+    private static CPUInstruction cop2;
+    private static final Map<Integer, Integer> memory = new HashMap<Integer, Integer>();
+    private static int nextAddress = CODE_BASE;
+    private static int classCount;
+    private static final CPUInstruction alu = new CPUInstruction("alu", R3000.class, 0, CPUInstruction.FLAG_SIMULATABLE);
+    private static final CPUInstruction jump = new CPUInstruction("j", R3000.class, 0,
+            CPUInstruction.FLAG_BRANCH | CPUInstruction.FLAG_UNCONDITIONAL | CPUInstruction.FLAG_IMM_FAR_TARGET);
+    private static final CPUInstruction invalid = new CPUInstruction("invalid", R3000.class, 0, CPUInstruction.FLAG_INVALID);
+
+    static synchronized void setUp() {
+        if (cop2 != null) return;
+        CoreComponentConnections.ADDRESS_SPACE.set(standIn(AddressSpace.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("internalRead32")) {
+                    Integer value = memory.get(args[0]);
+                    return value == null ? NOP : value;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        CoreComponentConnections.R3000.set(standIn(R3000.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("decodeInstruction")) {
+                    int ci = (Integer) args[0];
+                    switch (ci >>> 26) {
+                        case 2:
+                            return jump;
+                        case 18:
+                            return cop2.subDecode(ci);
+                        default:
+                            return alu;
+                    }
+                } else if (method.getName().equals("getInvalidInstruction")) {
+                    return invalid;
+                } else if (method.getName().equals("getInterpreterRegs")) {
+                    return new int[32];
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        GTE gte = new GTE();
+        gte.resolveConnections();
+        final CPUInstruction[] rc = new CPUInstruction[1];
+        gte.addInstructions(new InstructionRegistrar() {
+            public void setInstruction(int index, CPUInstruction inst) {
+                if (index == 18) rc[0] = inst;
+            }
+
+            public void setSPECIALInstruction(int index, CPUInstruction inst) {
+            }
+
+            public void setREGIMMInstruction(int index, CPUInstruction inst) {
+            }
+
+            public void setInstructionDisassembler(String name, CPUInstructionDisassembler disassembler) {
+            }
+        });
+        cop2 = rc[0];
+    }
+
+    private static <T> T standIn(Class<T> ifc, InvocationHandler handler) {
+        return ifc.cast(Proxy.newProxyInstance(GTEVectors.class.getClassLoader(), new Class[]{ifc}, handler));
+    }
+
+    static String commandName(int command) {
+        for (int c = 0; c < COMMAND_FUNCTIONS.length; c++) {
+            if ((command & 0x3f) == COMMAND_FUNCTIONS[c]) return COMMAND_NAMES[c];
+        }
+        return "?";
+    }
+
+    static void loadRegisters(int[] values) {
+        // SXYP pushes the FIFO and IRGB sets IR1-3, so write them before the registers they affect;
+        // ORGB and LZCR are read only
+        GTE.writeRegister(15, values[15]);
+        GTE.writeRegister(28, values[28]);
+        for (int r = 0; r < REGISTER_COUNT; r++) {
+            if (r != 15 && r != 28) {
+                GTE.writeRegister(r, values[r]);
+            }
+        }
+    }
+
+    static void saveRegisters(int[] values) {
+        for (int r = 0; r < REGISTER_COUNT; r++) {
+            values[r] = GTE.readRegister(r);
+        }
+    }
+
+    static List<TestVector> readVectors(InputStream is) throws IOException {
+        List<TestVector> rc = new ArrayList<TestVector>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+        try {
+            String line;
+            while (null != (line = in.readLine())) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] words = line.split("\\s+");
+                if (words.length < 1 + REGISTER_COUNT) {
+                    throw new IOException("Bad test vector: " + line);
+                }
+                TestVector vector = new TestVector(parseHex(words[0]));
+                for (int r = 0; r < REGISTER_COUNT; r++) {
+                    vector.input[r] = parseHex(words[1 + r]);
+                }
+                loadRegisters(vector.input);
+                saveRegisters(vector.output);
+                for (int i = 1 + REGISTER_COUNT; i < words.length; i++) {
+                    int colon = words[i].indexOf(':');
+                    vector.output[Integer.parseInt(words[i].substring(0, colon))] = parseHex(words[i].substring(colon + 1));
+                }
+                rc.add(vector);
+            }
+        } finally {
+            in.close();
+        }
+        return rc;
+    }
+
+    private static int parseHex(String word) {
+        return (int) Long.parseLong(word, 16);
+    }
+
+    /**
+     * Generate a class containing the code the GTE emits for the command, when followed by the given instructions
+     * in the rest of its basic block
+     */
+    static synchronized CompiledCommand compile(int command, int... following) {
+        int address = nextAddress;
+        nextAddress += 0x100;
+        memory.put(address, command);
+        for (int i = 0; i < following.length; i++) {
+            memory.put(address + 4 + i * 4, following[i]);
+        }
+        CPUInstruction inst = cop2.subDecode(command);
+        String classname = "GTEVectors$" + (classCount++);
+        ClassGen cg = new ClassGen(classname, "java.lang.Object", "GTEVectors", Constants.ACC_PUBLIC | Constants.ACC_SUPER,
+                new String[]{CompiledCommand.class.getName()});
+        cg.addEmptyConstructor(Constants.ACC_PUBLIC);
+        ConstantPoolGen cp = cg.getConstantPool();
+
+        InstructionList il = new InstructionList();
+        inst.compile(context(cp, following.length), address, command, il);
+        il.append(new RETURN());
+        addMethod(cg, "run", Type.NO_ARGS, il);
+
+        // for (; count > 0; count--) { command }
+        il = new InstructionList();
+        InstructionHandle loop = il.append(new ILOAD(1));
+        IFLE ifle = new IFLE(null);
+        il.append(ifle);
+        inst.compile(context(cp, following.length), address, command, il);
+        il.append(new IINC(1, -1));
+        il.append(new GOTO(loop));
+        ifle.setTarget(il.append(new RETURN()));
+        addMethod(cg, "repeat", new Type[]{Type.INT}, il);
+
+        byte[] bytes = cg.getJavaClass().getBytes();
+        try {
+            return (CompiledCommand) new Loader().define(classname, bytes).newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load compiled code for " + MiscUtil.toHex(command, 8), e);
+        }
+    }
+
+    /**
+     * @return the number of calls to the FLAG setting limiters (Li*, A1-A3) in the code the GTE emits for the command,
+     *         when followed by the given instructions
+     */
+    static synchronized int flagCheckCount(int command, int... following) {
+        int address = nextAddress;
+        nextAddress += 0x100;
+        memory.put(address, command);
+        for (int i = 0; i < following.length; i++) {
+            memory.put(address + 4 + i * 4, following[i]);
+        }
+        ConstantPoolGen cp = new ConstantPoolGen();
+        InstructionList il = new InstructionList();
+        cop2.subDecode(command).compile(context(cp, following.length), address, command, il);
+        int rc = 0;
+        for (Instruction inst : il.getInstructions()) {
+            if (inst instanceof INVOKESTATIC) {
+                String name = ((INVOKESTATIC) inst).getMethodName(cp);
+                if (name.startsWith("Li") || name.matches("A[123]")) rc++;
+            }
+        }
+        return rc;
+    }
+
+    private static void addMethod(ClassGen cg, String name, Type[] argumentTypes, InstructionList il) {
+        MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, argumentTypes, null, name, cg.getClassName(), il, cg.getConstantPool());
+        mg.setMaxLocals(LOCAL_LAST);
+        mg.setMaxStack();
+        cg.addMethod(mg.getMethod());
+        il.dispose();
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(GTEVectors.class.getClassLoader());
+        }
+
+        Class define(String classname, byte[] bytes) {
+            return defineClass(classname, bytes, 0, bytes.length);
+        }
+    }
+
+    // local 0 is this, and 1 the repeat count
+    private static final int LOCAL_TEMP0 = 2;
+    private static final int LOCAL_LAST = 8;
+
+    /**
+     * Just the parts of a compilation context the GTE commands use; they don't touch the R3000 registers, memory or
+     * control flow, so anything else is an error
+     */
+    private static CompilationContext context(final ConstantPoolGen cp, final int followingInstructionCount) {
+        return standIn(CompilationContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getConstantPoolGen")) {
+                    return cp;
+                } else if (name.equals("getFollowingInstructionCount")) {
+                    return followingInstructionCount;
+                } else if (name.equals("getTempLocal")) {
+                    int rc = LOCAL_TEMP0 + (Integer) args[0];
+                    if (rc >= LOCAL_LAST)
+                        throw new IllegalStateException("too many locals!");
+                    return rc;
+                } else if (name.equals("emitInterpretedInstruction")) {
+                    InstructionList il = (InstructionList) args[0];
+                    il.append(new PUSH(cp, (Integer) args[1]));
+                    il.append(new INVOKESTATIC(cp.addMethodref((String) args[2], (String) args[3], "(I)V")));
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * Mostly values of the size the GTE expects, but with some which will saturate
+     */
+    private static int randomValue(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt();
+            case 1:
+                return random.nextInt(0x10000) - 0x8000;
+            case 2:
+                return random.nextInt(0x2000) - 0x1000;
+            default:
+                return random.nextInt(0x200) - 0x100;
+        }
+    }
+
+    /**
+     * Record a new vector file from the current interpreter
+     * <pre>
+     * GTEVectors &lt;file&gt; [vectors per command]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: GTEVectors <file> [vectors per command]");
+            return;
+        }
+        int vectorsPerCommand = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Random random = new Random(0x505);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(args[0])));
+        try {
+            out.println("# GTE command test vectors: command, 64 input registers, index:value for each changed output register");
+            int[] loaded = new int[REGISTER_COUNT];
+            int[] output = new int[REGISTER_COUNT];
+            for (int c = 0; c < COMMAND_NAMES.length; c++) {
+                for (int i = 0; i < vectorsPerCommand; i++) {
+                    int command = COP2_COMMAND | (random.nextInt() & FIELDS_MASK) | COMMAND_FUNCTIONS[c];
+                    if (COMMAND_FUNCTIONS[c] == 0x01 || COMMAND_FUNCTIONS[c] == 0x30) {
+                        // the perspective transforms complain about sf=0
+                        command |= SF;
+                    }
+                    StringBuilder line = new StringBuilder(MiscUtil.toHex(command, 8));
+                    int[] input = new int[REGISTER_COUNT];
+                    for (int r = 0; r < REGISTER_COUNT; r++) {
+                        input[r] = randomValue(random);
+                        line.append(' ').append(MiscUtil.toHex(input[r], 8));
+                    }
+                    loadRegisters(input);
+                    saveRegisters(loaded);
+                    GTE.interpret_cop2(command);
+                    saveRegisters(output);
+                    for (int r = 0; r < REGISTER_COUNT; r++) {
+                        if (output[r] != loaded[r]) {
+                            line.append(' ').append(r).append(':').append(MiscUtil.toHex(output[r], 8));
+                        }
+                    }
+                    out.println(line);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("Recorded " + (vectorsPerCommand * COMMAND_NAMES.length) + " vectors to " + args[0]);
+    }
+}
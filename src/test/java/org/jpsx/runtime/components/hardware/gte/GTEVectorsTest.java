@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gte;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.jpsx.runtime.components.hardware.gte.GTEVectors.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the recorded GTE command vectors through the interpreter, and through the compiled code in each of the
+ * situations the compiler treats differently: FLAG observable after the command (so every check is emitted), and
+ * FLAG overwritten before it can be read (so the checks which only affect FLAG are left out, and FLAG is not compared)
+ */
+public class GTEVectorsTest {
+    private static final int CC = COP2_COMMAND | 0x1c;
+
+    // instructions following the command in its basic block, for which FLAG is live
+    private static final int[][] FLAG_LIVE = {
+            {},
+            {NOP, CFC2_FLAG},
+            {NOP, CC},
+            {J},
+    };
+    // and for which it is dead
+    private static final int[][] FLAG_DEAD = {
+            {NOP, NCLIP},
+            {CTC2_FLAG},
+    };
+
+    private static List<TestVector> vectors;
+
+    @BeforeClass
+    public static void loadVectors() throws IOException {
+        GTEVectors.setUp();
+        InputStream is = GTEVectorsTest.class.getResourceAsStream("gte-vectors.txt");
+        assertNotNull("gte-vectors.txt missing", is);
+        vectors = readVectors(is);
+    }
+
+    @Test
+    public void everyCommandCovered() {
+        for (int c = 0; c < COMMAND_FUNCTIONS.length; c++) {
+            boolean found = false;
+            for (TestVector vector : vectors) {
+                found |= (vector.command & 0x3f) == COMMAND_FUNCTIONS[c];
+            }
+            assertTrue("no vectors for " + COMMAND_NAMES[c], found);
+        }
+    }
+
+    @Test
+    public void interpreter() {
+        int[] actual = new int[REGISTER_COUNT];
+        for (TestVector vector : vectors) {
+            loadRegisters(vector.input);
+            GTE.interpret_cop2(vector.command);
+            saveRegisters(actual);
+            compare("interpreter", vector, actual, true);
+        }
+    }
+
+    @Test
+    public void compiledWithFlagLive() {
+        int[] actual = new int[REGISTER_COUNT];
+        for (int[] following : FLAG_LIVE) {
+            for (TestVector vector : vectors) {
+                CompiledCommand compiled = compile(vector.command, following);
+                loadRegisters(vector.input);
+                compiled.run();
+                saveRegisters(actual);
+                compare("compiled, followed by " + describe(following), vector, actual, true);
+            }
+        }
+    }
+
+    @Test
+    public void compiledWithFlagDead() {
+        int[] actual = new int[REGISTER_COUNT];
+        for (int[] following : FLAG_DEAD) {
+            for (TestVector vector : vectors) {
+                CompiledCommand compiled = compile(vector.command, following);
+                loadRegisters(vector.input);
+                compiled.run();
+                saveRegisters(actual);
+                compare("compiled, followed by " + describe(following), vector, actual, false);
+            }
+        }
+    }
+
+    /**
+     * The checks whose only effect is on FLAG must actually be left out when it is dead
+     */
+    @Test
+    public void deadFlagChecksEliminated() {
+        for (int c = 0; c < COMMAND_FUNCTIONS.length; c++) {
+            int command = COP2_COMMAND | SF | COMMAND_FUNCTIONS[c];
+            int live = flagCheckCount(command);
+            for (int[] following : FLAG_DEAD) {
+                int dead = flagCheckCount(command, following);
+                String context = COMMAND_NAMES[c] + " followed by " + describe(following) + ": " + dead + " checks, " + live + " when live";
+                assertTrue(context, dead <= live);
+                if (COMMAND_FUNCTIONS[c] == 0x01 || COMMAND_FUNCTIONS[c] == 0x30 || COMMAND_FUNCTIONS[c] == 0x12) {
+                    // rtps, rtpt and mvmva are compiled inline
+                    assertTrue(context, live > 0);
+                    assertEquals(context, 0, dead);
+                }
+            }
+        }
+    }
+
+    private static void compare(String path, TestVector vector, int[] actual, boolean compareFlag) {
+        StringBuilder mismatches = new StringBuilder();
+        for (int r = 0; r < REGISTER_COUNT; r++) {
+            if (actual[r] != vector.output[r] && (compareFlag || r != R_FLAG)) {
+                mismatches.append(" reg ").append(r).append(" expected ").append(Integer.toHexString(vector.output[r]))
+                        .append(" got ").append(Integer.toHexString(actual[r]));
+            }
+        }
+        if (mismatches.length() > 0) {
+            fail(path + ": " + commandName(vector.command) + " " + Integer.toHexString(vector.command) + mismatches);
+        }
+    }
+
+    private static String describe(int[] following) {
+        if (following.length == 0) return "nothing";
+        StringBuilder rc = new StringBuilder();
+        for (int ci : following) {
+            if (rc.length() > 0) rc.append(", ");
+            rc.append(Integer.toHexString(ci));
+        }
+        return rc.toString();
+    }
+}
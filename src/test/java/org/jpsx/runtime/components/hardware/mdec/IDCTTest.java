@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.mdec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the sparse paths of {@link IDCT#transform(int[], int)} against the full transform, and that the AAN
+ * transform stays close to it
+ */
+public class IDCTTest {
+    private static final int SAMPLES = 200000;
+    // the transforms don't range check (the clamp table covers -1024 to 1023 before the final shift), so inputs are
+    // kept to sizes which can't overflow it; the DC alone can go up to 8184
+    private static final int DC_RANGE = 8184;
+
+    /**
+     * A block with the given number of non zero AC coefficients, at positions chosen by the mask
+     *
+     * @return the or of the positions
+     */
+    private static int randomBlock(Random random, int[] block, int count, int positionMask) {
+        int range = 4096 / (count + 1);
+        for (int i = 0; i < 64; i++) block[i] = 0;
+        block[0] = random.nextInt(2 * range) - range;
+        int positions = 0;
+        for (int i = 0; i < count; i++) {
+            int position = random.nextInt(64) & positionMask;
+            if (position == 0) continue;
+            int value = random.nextInt(2 * range) - range;
+            if (value == 0) continue;
+            block[position] = value;
+            positions |= position;
+        }
+        return positions;
+    }
+
+    private static void checkSparse(int[] block, int positions, String context) {
+        int[] expected = block.clone();
+        IDCT.transform(expected);
+        int[] actual = block.clone();
+        IDCT.transform(actual, positions);
+        assertArrayEquals(context + " positions " + Integer.toHexString(positions), expected, actual);
+    }
+
+    @Test
+    public void dcOnly() {
+        int[] block = new int[64];
+        for (int dc = -DC_RANGE; dc <= DC_RANGE; dc++) {
+            for (int i = 0; i < 64; i++) block[i] = 0;
+            block[0] = dc;
+            checkSparse(block, 0, "dc " + dc);
+        }
+    }
+
+    @Test
+    public void topLeft4x4() {
+        Random random = new Random(35);
+        int[] block = new int[64];
+        for (int i = 0; i < SAMPLES; i++) {
+            int positions = randomBlock(random, block, 1 + random.nextInt(10), 0x1b);
+            assertTrue(0 == (positions & 0x24));
+            checkSparse(block, positions, "4x4 sample " + i);
+        }
+        // the extremes of the 4x4 area, alone
+        for (int position : new int[]{0x01, 0x03, 0x08, 0x18, 0x1b}) {
+            for (int value : new int[]{-1024, -1, 1, 1023}) {
+                for (int i = 0; i < 64; i++) block[i] = 0;
+                block[0] = value;
+                block[position] = value;
+                checkSparse(block, position, "value " + value);
+            }
+        }
+    }
+
+    @Test
+    public void anywhere() {
+        Random random = new Random(350);
+        int[] block = new int[64];
+        for (int i = 0; i < SAMPLES; i++) {
+            int positions = randomBlock(random, block, 1 + random.nextInt(20), 0x3f);
+            checkSparse(block, positions, "sample " + i);
+        }
+    }
+
+    @Test
+    public void aanCloseToFull() {
+        Random random = new Random(3500);
+        int[] unzig = new int[64];
+        int[] qm = new int[64];
+        for (int i = 0; i < 64; i++) {
+            unzig[i] = i;
+            qm[i] = 1 + random.nextInt(4);
+        }
+        int[] scaledQm = new int[64];
+        IDCT.scaleQuantTable(qm, unzig, scaledQm);
+        int[] levels = new int[64];
+        int[] full = new int[64];
+        int[] aan = new int[64];
+        int maxDifference = 0;
+        for (int i = 0; i < SAMPLES / 4; i++) {
+            // qf * qm / 8 is at most 1, keeping the dequantised coefficients within range
+            int qf = 1 + random.nextInt(2);
+            int positions = randomBlock(random, levels, 1 + random.nextInt(12), i % 3 == 0 ? 0x1b : 0x3f);
+            levels[0] /= 4;
+            // dequantised as the MDEC decoder does for each transform
+            full[0] = levels[0] * qm[0];
+            aan[0] = (int) (((long) levels[0] * scaledQm[0]) >> IDCT.AAN_DEQUANT_SHIFT);
+            for (int p = 1; p < 64; p++) {
+                full[p] = (qf * levels[p] * qm[p]) >> 3;
+                aan[p] = (int) (((long) qf * levels[p] * scaledQm[p]) >> (IDCT.AAN_DEQUANT_SHIFT + 3));
+            }
+            IDCT.transform(full, positions);
+            IDCT.transformAAN(aan, positions);
+            for (int p = 0; p < 64; p++) {
+                maxDifference = Math.max(maxDifference, Math.abs(full[p] - aan[p]));
+            }
+        }
+        assertTrue("AAN differs by " + maxDifference, maxDifference <= 2);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.media;
+
+import org.jpsx.api.components.hardware.cd.MediaException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.jpsx.api.components.hardware.cd.CDMedia.SECTOR_SIZE_BYTES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link SectorAddressMap} lays files and gaps out in LBA order, for plain and compressed files
+ */
+public class SectorAddressMapTest {
+    private File dir;
+    private SectorAddressMap map;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("jpsx", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("can't create " + dir);
+        }
+        map = new SectorAddressMap();
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * A data file whose sectors hold the file id and the sector number within the file
+     */
+    private ImageFile createFile(int id, int sectors, boolean compressed) throws IOException {
+        File bin = new File(dir, "track" + id + ".bin");
+        ByteBuffer data = ByteBuffer.allocate(sectors * SECTOR_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < sectors; i++) {
+            data.putInt(i * SECTOR_SIZE_BYTES, id);
+            data.putInt(i * SECTOR_SIZE_BYTES + 4, i);
+            data.put(i * SECTOR_SIZE_BYTES + SECTOR_SIZE_BYTES - 1, (byte) 0x5a);
+        }
+        FileOutputStream out = new FileOutputStream(bin);
+        try {
+            out.write(data.array());
+        } finally {
+            out.close();
+        }
+        if (compressed) {
+            File cbin = new File(dir, "track" + id + CompressedImage.EXTENSION);
+            CompressedImage.compress(bin, cbin, 4);
+            if (!bin.delete()) {
+                throw new IOException("can't delete " + bin);
+            }
+        }
+        ImageFile rc = new ImageFile(bin);
+        assertEquals(sectors, rc.getSectorCount());
+        return rc;
+    }
+
+    /**
+     * Checks the sector through both read paths; an id of -1 means a gap
+     */
+    private void checkSector(int lba, int id, int fileSector) throws MediaException {
+        byte[] buffer = new byte[SECTOR_SIZE_BYTES];
+        map.readSector(lba, buffer);
+        ByteBuffer read = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer view = map.getSector(lba);
+        assertEquals("view size at " + lba, SECTOR_SIZE_BYTES, view.remaining());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, view.order());
+        if (id < 0) {
+            for (int i = 0; i < SECTOR_SIZE_BYTES; i++) {
+                assertEquals("gap at " + lba, 0, buffer[i]);
+                assertEquals("gap view at " + lba, 0, view.get(view.position() + i));
+            }
+        } else {
+            assertEquals("file at " + lba, id, read.getInt(0));
+            assertEquals("file sector at " + lba, fileSector, read.getInt(4));
+            assertEquals(0x5a, buffer[SECTOR_SIZE_BYTES - 1]);
+            assertEquals("view file at " + lba, id, view.getInt(view.position()));
+            assertEquals("view file sector at " + lba, fileSector, view.getInt(view.position() + 4));
+        }
+    }
+
+    @Test
+    public void layout() throws Exception {
+        ImageFile a = createFile(1, 10, false);
+        ImageFile b = createFile(2, 8, false);
+        ImageFile c = createFile(3, 9, true);
+        // a pregap, a whole file, a postgap, part of a file, then a compressed file split around a gap, with
+        // empty segments which should take no space
+        map.addGap(150);
+        map.addSectors(a, 0, 10);
+        map.addGap(2);
+        map.addSectors(b, 2, 6);
+        map.addSectors(c, 0, 5);
+        map.addGap(0);
+        map.addGap(3);
+        map.addSectors(c, 5, 4);
+        map.addSectors(c, 9, 0);
+        assertEquals(150 + 10 + 2 + 6 + 5 + 3 + 4, map.getSectorCount());
+
+        int[][] expected = new int[map.getSectorCount()][];
+        int lba = 0;
+        for (int i = 0; i < 150; i++) expected[lba++] = new int[]{-1, 0};
+        for (int i = 0; i < 10; i++) expected[lba++] = new int[]{1, i};
+        for (int i = 0; i < 2; i++) expected[lba++] = new int[]{-1, 0};
+        for (int i = 2; i < 8; i++) expected[lba++] = new int[]{2, i};
+        for (int i = 0; i < 5; i++) expected[lba++] = new int[]{3, i};
+        for (int i = 0; i < 3; i++) expected[lba++] = new int[]{-1, 0};
+        for (int i = 5; i < 9; i++) expected[lba++] = new int[]{3, i};
+
+        // forwards, backwards, and at random, since the last segment is remembered
+        for (int i = 0; i < expected.length; i++) {
+            checkSector(i, expected[i][0], expected[i][1]);
+        }
+        for (int i = expected.length - 1; i >= 0; i--) {
+            checkSector(i, expected[i][0], expected[i][1]);
+        }
+        Random random = new Random(44);
+        for (int n = 0; n < 1000; n++) {
+            int i = random.nextInt(expected.length);
+            checkSector(i, expected[i][0], expected[i][1]);
+        }
+    }
+
+    @Test
+    public void outsideImage() throws Exception {
+        map.addGap(2);
+        map.addSectors(createFile(1, 3, false), 0, 3);
+        for (int lba : new int[]{-1, 5, Integer.MAX_VALUE}) {
+            try {
+                map.readSector(lba, new byte[SECTOR_SIZE_BYTES]);
+                fail("read sector " + lba);
+            } catch (MediaException e) {
+                // expected
+            }
+            try {
+                map.getSector(lba);
+                fail("got sector " + lba);
+            } catch (MediaException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void manyFiles() throws Exception {
+        // more files than are kept open, so they are closed and reopened as the reads move between them
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            map.addSectors(createFile(i, 3, (i & 3) == 0), 0, 3);
+        }
+        Random random = new Random(44);
+        for (int n = 0; n < 2000; n++) {
+            int lba = random.nextInt(count * 3);
+            checkSector(lba, lba / 3, lba % 3);
+        }
+        map.close();
+        // and reopened after the map is closed
+        checkSector(count * 3 - 1, count - 1, 2);
+        checkSector(0, 0, 0);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the rewind buffer's deltas decode back to the state they were encoded from
+ */
+public class RewindDeltaTest {
+    private static final int PAGE_INTS = 1024;
+
+    private final Rewind rewind = new Rewind();
+    private final Random random = new Random(49);
+
+    /**
+     * @return the delta, having checked that it decodes to the first length words of data
+     */
+    private int[] roundTrip(int[] data, int length, int[] reference) {
+        int[] delta = rewind.encode(data, length, reference);
+        int[] decoded = Arrays.copyOf(reference, length);
+        Rewind.applyDelta(decoded, delta);
+        assertArrayEquals(Arrays.copyOf(data, length), decoded);
+        return delta;
+    }
+
+    private int[] randomState(int length) {
+        int[] rc = new int[length];
+        for (int i = 0; i < length; i++) {
+            rc[i] = random.nextInt();
+        }
+        return rc;
+    }
+
+    @Test
+    public void unchanged() {
+        int[] reference = randomState(10 * PAGE_INTS + 17);
+        assertEquals(0, roundTrip(reference.clone(), reference.length, reference).length);
+    }
+
+    @Test
+    public void runs() {
+        int[] reference = randomState(4 * PAGE_INTS);
+        int[] data = reference.clone();
+        // one word
+        data[5] ^= 1;
+        assertArrayEquals(new int[]{5, 1, 1}, roundTrip(data, data.length, reference));
+        // a word which is close enough to join the run, and one which isn't
+        data[8] ^= 2;
+        data[13] ^= 4;
+        assertArrayEquals(new int[]{5, 4, 1, 0, 0, 2, 13, 1, 4}, roundTrip(data, data.length, reference));
+        // runs don't cross pages
+        data = reference.clone();
+        data[PAGE_INTS - 1] ^= 8;
+        data[PAGE_INTS] ^= 16;
+        assertArrayEquals(new int[]{PAGE_INTS - 1, 1, 8, PAGE_INTS, 1, 16}, roundTrip(data, data.length, reference));
+        // the last word
+        data = reference.clone();
+        data[data.length - 1] ^= -1;
+        assertArrayEquals(new int[]{data.length - 1, 1, -1}, roundTrip(data, data.length, reference));
+    }
+
+    @Test
+    public void sparseChanges() {
+        int[] reference = randomState(50 * PAGE_INTS + 3);
+        for (int n = 0; n < 200; n++) {
+            int[] data = reference.clone();
+            int changes = random.nextInt(1000);
+            for (int i = 0; i < changes; i++) {
+                int index = random.nextInt(data.length);
+                // sometimes a change which cancels a previous one
+                data[index] = random.nextInt(4) == 0 ? reference[index] : random.nextInt();
+            }
+            int[] delta = roundTrip(data, data.length, reference);
+            // each changed word costs at most itself and a run header
+            assertTrue(delta.length <= 3 * changes);
+        }
+    }
+
+    @Test
+    public void denseChanges() {
+        int[] reference = randomState(3 * PAGE_INTS);
+        roundTrip(randomState(reference.length), reference.length, reference);
+    }
+
+    @Test
+    public void lengthChanges() {
+        int[] reference = randomState(5 * PAGE_INTS + 100);
+        // longer than the reference, including a page which is only partly covered by it
+        int[] data = Arrays.copyOf(reference, 7 * PAGE_INTS + 5);
+        for (int i = reference.length; i < data.length; i++) {
+            data[i] = (i & 1) == 0 ? 0 : random.nextInt();
+        }
+        data[17] ^= 1;
+        roundTrip(data, data.length, reference);
+        // shorter than the reference
+        data = Arrays.copyOf(reference, 2 * PAGE_INTS + 9);
+        data[PAGE_INTS + 3] ^= 1;
+        assertArrayEquals(new int[]{PAGE_INTS + 3, 1, 1}, roundTrip(data, data.length, reference));
+        // only the given length of the data is used
+        data = reference.clone();
+        data[data.length - 1] ^= 1;
+        assertEquals(0, roundTrip(data, data.length - 1, reference).length);
+    }
+}
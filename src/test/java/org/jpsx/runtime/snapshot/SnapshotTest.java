@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ * 
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.snapshot;
+
+import org.jpsx.api.snapshot.SnapshotException;
+import org.jpsx.api.snapshot.SnapshotReader;
+import org.jpsx.api.snapshot.SnapshotWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that state written to a {@link Snapshot} reads back the same, directly and via a save state file
+ */
+public class SnapshotTest {
+    private static final long SAVE_TIME = 1000000000L;
+    private static final long LOAD_TIME = 5000000000L;
+
+    private final Random random = new Random(48);
+    private final int[] ints = new int[300000];
+    private final short[] shorts = new short[1001];
+    private final byte[] bytes = new byte[4099];
+
+    {
+        for (int i = 0; i < ints.length; i++) {
+            // mostly zero, like RAM, so deflating does something
+            ints[i] = (i & 7) == 0 ? random.nextInt() : 0;
+        }
+        for (int i = 0; i < shorts.length; i++) {
+            shorts[i] = (short) random.nextInt();
+        }
+        random.nextBytes(bytes);
+    }
+
+    private void save(Snapshot snapshot) {
+        SnapshotWriter out = snapshot.openWriter(SAVE_TIME);
+        out.beginSection("First");
+        out.writeInt(0x12345678);
+        out.writeInt(-1);
+        out.writeLong(0x123456789abcdefL);
+        out.writeBoolean(true);
+        out.writeBoolean(false);
+        out.writeString("");
+        out.writeString("caf\u00e9");
+        // a time relative to the capture, a time in the past, and no time
+        out.writeTime(SAVE_TIME + 1234);
+        out.writeTime(SAVE_TIME - 5678);
+        out.writeTime(0L);
+        out.beginSection("Second");
+        out.writeInts(ints, 0, ints.length);
+        out.writeShorts(shorts, 1, shorts.length - 1);
+        out.writeBytes(bytes, 3, bytes.length - 3);
+        out.writeInt(0xdeadbeef);
+    }
+
+    private void load(Snapshot snapshot) {
+        SnapshotReader in = snapshot.openReader(LOAD_TIME);
+        in.beginSection("First");
+        assertEquals(0x12345678, in.readInt());
+        assertEquals(-1, in.readInt());
+        assertEquals(0x123456789abcdefL, in.readLong());
+        assertTrue(in.readBoolean());
+        assertFalse(in.readBoolean());
+        assertEquals("", in.readString());
+        assertEquals("caf\u00e9", in.readString());
+        assertEquals(LOAD_TIME + 1234, in.readTime());
+        assertEquals(LOAD_TIME - 5678, in.readTime());
+        assertEquals(0L, in.readTime());
+        in.beginSection("Second");
+        int[] readInts = new int[ints.length];
+        in.readInts(readInts, 0, readInts.length);
+        assertArrayEquals(ints, readInts);
+        short[] readShorts = new short[shorts.length];
+        in.readShorts(readShorts, 1, readShorts.length - 1);
+        readShorts[0] = shorts[0];
+        assertArrayEquals(shorts, readShorts);
+        byte[] readBytes = new byte[bytes.length];
+        in.readBytes(readBytes, 3, readBytes.length - 3);
+        System.arraycopy(bytes, 0, readBytes, 0, 3);
+        assertArrayEquals(bytes, readBytes);
+        assertEquals(0xdeadbeef, in.readInt());
+        try {
+            in.readInt();
+            fail("read past the end");
+        } catch (SnapshotException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        // small enough that the buffer has to grow, including in the middle of the bulk writes
+        Snapshot snapshot = new Snapshot(16);
+        save(snapshot);
+        load(snapshot);
+        // and again, reusing the snapshot and reading it twice
+        int length = snapshot.getLength();
+        save(snapshot);
+        assertEquals(length, snapshot.getLength());
+        load(snapshot);
+        load(snapshot);
+    }
+
+    @Test
+    public void copy() {
+        Snapshot snapshot = new Snapshot();
+        save(snapshot);
+        Snapshot copy = new Snapshot(1);
+        copy.setData(snapshot.getData());
+        assertEquals(snapshot.getLength(), copy.getLength());
+        assertEquals(snapshot.getData(), copy.getData());
+        load(copy);
+    }
+
+    @Test
+    public void wrongSection() {
+        Snapshot snapshot = new Snapshot();
+        save(snapshot);
+        try {
+            snapshot.openReader(LOAD_TIME).beginSection("Second");
+            fail("read the wrong section");
+        } catch (SnapshotException e) {
+            // expected
+        }
+        SnapshotReader in = snapshot.openReader(LOAD_TIME);
+        in.beginSection("First");
+        try {
+            // not at a section
+            in.beginSection("Second");
+            fail("read a section from the middle of one");
+        } catch (SnapshotException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncated() {
+        Snapshot snapshot = new Snapshot();
+        save(snapshot);
+        Snapshot truncated = new Snapshot();
+        truncated.setData((ByteBuffer) snapshot.getData().limit(snapshot.getLength() - 1));
+        try {
+            load(truncated);
+            fail("loaded a truncated snapshot");
+        } catch (SnapshotException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void files() throws IOException {
+        Snapshot snapshot = new Snapshot();
+        save(snapshot);
+        Path file = File.createTempFile("jpsx", ".sav").toPath();
+        try {
+            for (boolean deflate : new boolean[]{false, true}) {
+                SnapshotManager.write(snapshot, file, deflate);
+                if (deflate) {
+                    assertTrue(Files.size(file) < snapshot.getLength() / 2);
+                }
+                Snapshot read = SnapshotManager.read(file);
+                assertEquals(snapshot.getData(), read.getData());
+                load(read);
+
+                // cut short in the middle of the state
+                try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                    raf.setLength(raf.length() - 10);
+                }
+                try {
+                    SnapshotManager.read(file);
+                    fail("read a truncated file");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+            Files.write(file, new byte[100]);
+            try {
+                SnapshotManager.read(file);
+                fail("read a file which isn't a save state");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}